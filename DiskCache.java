@@ -0,0 +1,360 @@
+import org.apache.lucene.index.DirectoryReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of query results and expansion terms, so that reruns
+ * of a query file, e.g. while tuning parameters, reuse what did not
+ * change.  Every entry is one file in the cache directory, named by a
+ * hash of its key; keys are built like those of {@link ResultCache}.
+ * Each file starts with the version of the index it was computed from,
+ * so entries of an older index are ignored and overwritten.  Files are
+ * memory-mapped to be read, and written to a temporary file that is then
+ * renamed, so readers never see a partly written entry.  Weights and
+ * scores are stored as raw doubles, without loss of precision.
+ * <p/>
+ * Disabled until {@link #configure(String)} is called with a directory.
+ *
+ * @author junjiah
+ */
+public class DiskCache {
+
+  private static final int MAGIC = 0x51455643;
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte RESULT = 1;
+
+  private static final byte EXPANSION = 2;
+
+  /**
+   * The cache directory, or null if the cache is disabled.
+   */
+  private static File directory;
+
+  /**
+   * Version of the open index.
+   */
+  private static long indexVersion;
+
+  private static long lookups = 0;
+
+  private static long hits = 0;
+
+  private DiskCache() {
+  }
+
+  /**
+   * Set up the cache.  The index must be open.
+   *
+   * @param path The cache directory, created if missing, or null to
+   *             disable the cache.
+   * @throws IOException
+   */
+  public static synchronized void configure(String path) throws IOException {
+    lookups = 0;
+    hits = 0;
+    if (path == null) {
+      directory = null;
+      return;
+    }
+
+    File dir = new File(path);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create cache directory " + path);
+    }
+    directory = dir;
+    // only directory readers have a version; other readers get version 0
+    indexVersion = QryEval.READER instanceof DirectoryReader ?
+            ((DirectoryReader) QryEval.READER).getVersion() : 0;
+  }
+
+  /**
+   * @return true if the cache is enabled.
+   */
+  public static synchronized boolean isEnabled() {
+    return directory != null;
+  }
+
+  /**
+   * Look up a query result.
+   *
+   * @param key The key of the result.
+   * @return The result, or null if it is not cached for the open index.
+   */
+  public static ResultCache.Entry getResult(String key) {
+    ByteBuffer buffer = open(key, RESULT);
+    if (buffer == null) {
+      return null;
+    }
+    try {
+      int n = buffer.getInt();
+      int[] docids = new int[n];
+      double[] scores = new double[n];
+      String[] externalIds = new String[n];
+      for (int i = 0; i < n; i++) {
+        docids[i] = buffer.getInt();
+        scores[i] = buffer.getDouble();
+        externalIds[i] = readString(buffer);
+      }
+      String expandedQuery = buffer.get() == 0 ? null : readString(buffer);
+      countHit();
+      return new ResultCache.Entry(docids, scores, externalIds, expandedQuery);
+    } catch (RuntimeException e) {
+      // a damaged entry is a miss, it is rewritten later
+      return null;
+    }
+  }
+
+  /**
+   * Store a query result.
+   *
+   * @param key   The key of the result.
+   * @param entry The result.
+   * @throws IOException
+   */
+  public static void putResult(String key, ResultCache.Entry entry) throws IOException {
+    File temp = createTemporaryFile();
+    if (temp == null) {
+      return;
+    }
+    DataOutputStream out = openTemporaryFile(temp);
+    boolean written = false;
+    try {
+      writeHeader(out, key, RESULT);
+      out.writeInt(entry.docids.length);
+      for (int i = 0; i < entry.docids.length; i++) {
+        out.writeInt(entry.docids[i]);
+        out.writeDouble(entry.scores[i]);
+        writeString(out, entry.externalIds[i]);
+      }
+      out.writeByte(entry.expandedQuery == null ? 0 : 1);
+      if (entry.expandedQuery != null) {
+        writeString(out, entry.expandedQuery);
+      }
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+    commit(temp, key);
+  }
+
+  /**
+   * Look up expansion terms.
+   *
+   * @param key The key of the expansion.
+   * @return The terms and their weights, or null if they are not cached
+   * for the open index.
+   */
+  public static List<Map.Entry<String, Double>> getExpansion(String key) {
+    ByteBuffer buffer = open(key, EXPANSION);
+    if (buffer == null) {
+      return null;
+    }
+    try {
+      int n = buffer.getInt();
+      List<Map.Entry<String, Double>> terms = new ArrayList<Map.Entry<String, Double>>(n);
+      for (int i = 0; i < n; i++) {
+        String term = readString(buffer);
+        terms.add(new AbstractMap.SimpleImmutableEntry<String, Double>(term, buffer.getDouble()));
+      }
+      countHit();
+      return terms;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Store expansion terms.
+   *
+   * @param key   The key of the expansion.
+   * @param terms The terms and their weights.
+   * @throws IOException
+   */
+  public static void putExpansion(String key, List<Map.Entry<String, Double>> terms)
+          throws IOException {
+    File temp = createTemporaryFile();
+    if (temp == null) {
+      return;
+    }
+    DataOutputStream out = openTemporaryFile(temp);
+    boolean written = false;
+    try {
+      writeHeader(out, key, EXPANSION);
+      out.writeInt(terms.size());
+      for (Map.Entry<String, Double> term : terms) {
+        writeString(out, term.getKey());
+        out.writeDouble(term.getValue());
+      }
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+    commit(temp, key);
+  }
+
+  /**
+   * @return The number of lookups, hits and the hit rate, for reporting.
+   */
+  public static synchronized String report() {
+    return String.format("Disk cache: %d hits of %d lookups (hit rate %.4f)",
+            hits, lookups, lookups == 0 ? 0.0 : (double) hits / lookups);
+  }
+
+  private static synchronized void countHit() {
+    hits++;
+  }
+
+  private static synchronized File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Map the file of an entry and check its header.
+   *
+   * @param key  The key of the entry.
+   * @param type The type of the entry.
+   * @return The buffer positioned after the header, or null on a miss.
+   */
+  private static ByteBuffer open(String key, byte type) {
+    File dir;
+    long version;
+    synchronized (DiskCache.class) {
+      if (directory == null) {
+        return null;
+      }
+      lookups++;
+      dir = directory;
+      version = indexVersion;
+    }
+
+    File file = new File(dir, fileName(key));
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      MappedByteBuffer buffer;
+      try {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      } finally {
+        // the mapping stays valid after the file is closed
+        raf.close();
+      }
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ||
+              buffer.get() != type || buffer.getLong() != version ||
+              !readString(buffer).equals(key)) {
+        // another index, or another key with the same hash
+        return null;
+      }
+      return buffer;
+    } catch (IOException e) {
+      return null;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Create a new temporary file in the cache directory.
+   *
+   * @return The file, or null if the cache is disabled.
+   * @throws IOException
+   */
+  private static File createTemporaryFile() throws IOException {
+    File dir = getDirectory();
+    return dir == null ? null : File.createTempFile("entry", ".tmp", dir);
+  }
+
+  private static DataOutputStream openTemporaryFile(File temp) throws IOException {
+    try {
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Move a completely written temporary file to its final name.
+   */
+  private static void commit(File temp, String key) throws IOException {
+    try {
+      Files.move(temp.toPath(), new File(temp.getParentFile(), fileName(key)).toPath(),
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+  }
+
+  private static void writeHeader(DataOutputStream out, String key, byte type)
+          throws IOException {
+    long version;
+    synchronized (DiskCache.class) {
+      version = indexVersion;
+    }
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeByte(type);
+    out.writeLong(version);
+    writeString(out, key);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Name the file of a key by the SHA-1 of the key.
+   */
+  private static String fileName(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder();
+      for (byte b : digest) {
+        name.append(String.format("%02x", b));
+      }
+      return name.append(".entry").toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+
+/**
+ * Pull-based iterator over the documents matched by a query operator,
+ * in increasing docid order.  Query trees evaluated through iterators,
+ * see {@link QryopSl#stream(RetrievalModel)}, visit one document at a
+ * time from the root down, so no operator builds the whole inverted
+ * list or score list of its arguments.  A new iterator is positioned
+ * before its first document.
+ *
+ * @author junjiah
+ */
+public abstract class DocIterator {
+
+  /**
+   * Docid of an exhausted iterator.
+   */
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  /**
+   * The current document, -1 before the first call to
+   * {@link #nextDoc()} or {@link #advance(int)}.
+   */
+  protected int docid = -1;
+
+  /**
+   * @return The current document, -1 if not positioned yet, or
+   * {@link #NO_MORE_DOCS}.
+   */
+  public int docid() {
+    return docid;
+  }
+
+  /**
+   * Move to the next document.
+   *
+   * @return The new current document, or {@link #NO_MORE_DOCS}.
+   * @throws IOException
+   */
+  public int nextDoc() throws IOException {
+    return docid == NO_MORE_DOCS ? NO_MORE_DOCS : advance(docid + 1);
+  }
+
+  /**
+   * Move to the first document at or after a target, which must be after
+   * the current document.
+   *
+   * @param target The docid to move to.
+   * @return The new current document, or {@link #NO_MORE_DOCS}.
+   * @throws IOException
+   */
+  public abstract int advance(int target) throws IOException;
+
+  /**
+   * Move the iterators that are before a target to it, for a union.
+   *
+   * @param iterators The iterators of the arguments.
+   * @param target    The docid to move to.
+   * @return The smallest current document of the iterators.
+   * @throws IOException
+   */
+  protected static int advanceAny(DocIterator[] iterators, int target) throws IOException {
+    int next = NO_MORE_DOCS;
+    for (DocIterator iterator : iterators) {
+      int docid = iterator.docid();
+      if (docid < target) {
+        docid = iterator.advance(target);
+      }
+      next = Math.min(next, docid);
+    }
+    return next;
+  }
+
+  /**
+   * Move all iterators to the first document at or after a target that
+   * they all match, for an intersection.  An iterator that overshoots
+   * the candidate document becomes the new target.
+   *
+   * @param iterators The iterators of the arguments.
+   * @param target    The docid to move to.
+   * @return The common document, or {@link #NO_MORE_DOCS}.
+   * @throws IOException
+   */
+  protected static int advanceAll(DocIterator[] iterators, int target) throws IOException {
+    CANDIDATE:
+    while (target != NO_MORE_DOCS) {
+      for (DocIterator iterator : iterators) {
+        int docid = iterator.docid();
+        if (docid < target) {
+          docid = iterator.advance(target);
+        }
+        if (docid > target) {
+          target = docid;
+          continue CANDIDATE;
+        }
+      }
+      return target;
+    }
+    return NO_MORE_DOCS;
+  }
+}
@@ -2,42 +2,170 @@
  *  Copyright (c) 2013, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.util.packed.PackedInts;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * The lengths of a field are decoded from the norms only once, the first
+ * time the field is requested, and kept in a bit-packed array afterwards.
  */
 public class DocLengthStore {
 
   private IndexReader reader;
 
-  private Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  /**
+   * Names of the indexed fields; lengths are only decoded on demand.
+   */
+  private Set<String> fields = new HashSet<String>();
+
+  private Map<String, FieldLengths> lengths = new HashMap<String, FieldLengths>();
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));
-    }
+    this.fields.addAll(MultiFields.getIndexedFields(reader));
   }
 
   /**
    * Returns the length of the specified field in the specified document.
+   * Scoring loops should prefer {@link #getFieldLengths(String)}, which
+   * avoids the field lookup for every document.
    *
    * @param fieldname Name of field to access lengths. "body" is the default
    *                  field.
    * @param docid     The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getFieldLengths(fieldname).get(docid);
+  }
+
+  /**
+   * Returns the document lengths of the specified field, decoding them
+   * from the index if this is the first request for the field.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return Lengths of the field for every document in the index.
+   * @throws IOException
+   */
+  public synchronized FieldLengths getFieldLengths(String fieldname) throws IOException {
+    FieldLengths fieldLengths = lengths.get(fieldname);
+    if (fieldLengths == null) {
+      if (!fields.contains(fieldname)) {
+        throw new IOException("Field " + fieldname + " is not indexed.");
+      }
+      fieldLengths = new FieldLengths(reader, fieldname);
+      lengths.put(fieldname, fieldLengths);
+    }
+    return fieldLengths;
+  }
+
+  /**
+   * Document lengths of one field, decoded once into a bit-packed array
+   * indexed by internal docid.
+   */
+  public static class FieldLengths {
+
+    private final String field;
+
+    private final PackedInts.Reader values;
+
+    private final int maxLength;
+
+    /**
+     * Lengths that are not read from an index, e.g. generated by a
+     * benchmark.
+     *
+     * @param field     The field the lengths belong to.
+     * @param values    The length of every document, by internal docid.
+     * @param maxLength The largest of the lengths.
+     */
+    FieldLengths(String field, PackedInts.Reader values, int maxLength) {
+      this.field = field;
+      this.values = values;
+      this.maxLength = maxLength;
+    }
+
+    private FieldLengths(IndexReader reader, String field) throws IOException {
+      this.field = field;
+
+      // norms are read from every segment directly, with docids offset
+      // by the docid base of the segment; segments without the field
+      // have no norms, and their documents have length 0
+      List<AtomicReaderContext> leaves = reader.leaves();
+      NumericDocValues[] norms = new NumericDocValues[leaves.size()];
+      boolean hasNorms = false;
+      for (int i = 0; i < leaves.size(); ++i) {
+        norms[i] = leaves.get(i).reader().getNormValues(field);
+        hasNorms |= norms[i] != null;
+      }
+      if (!hasNorms) {
+        throw new IOException("Field " + field + " has no document lengths.");
+      }
+
+      // first pass finds the largest length, so that the packed
+      // array uses as few bits per document as possible
+      long maxLength = 0;
+      for (int i = 0; i < leaves.size(); ++i) {
+        if (norms[i] == null) {
+          continue;
+        }
+        int leafMaxDoc = leaves.get(i).reader().maxDoc();
+        for (int docid = 0; docid < leafMaxDoc; ++docid) {
+          maxLength = Math.max(maxLength, norms[i].get(docid));
+        }
+      }
+
+      PackedInts.Mutable packed = PackedInts.getMutable(reader.maxDoc(),
+              PackedInts.bitsRequired(maxLength), PackedInts.DEFAULT);
+      for (int i = 0; i < leaves.size(); ++i) {
+        if (norms[i] == null) {
+          continue;
+        }
+        int docBase = leaves.get(i).docBase;
+        int leafMaxDoc = leaves.get(i).reader().maxDoc();
+        for (int docid = 0; docid < leafMaxDoc; ++docid) {
+          packed.set(docBase + docid, norms[i].get(docid));
+        }
+      }
+      this.values = packed;
+      this.maxLength = (int) maxLength;
+    }
+
+    /**
+     * @return The field these lengths belong to.
+     */
+    public String getField() {
+      return field;
+    }
+
+    /**
+     * @return The largest length of this field in any document.
+     */
+    public int getMaxLength() {
+      return maxLength;
+    }
+
+    /**
+     * Returns the length of this field in the specified document.
+     *
+     * @param docid The internal docid in the lucene index.
+     * @return The document length.
+     */
+    public int get(int docid) {
+      return (int) values.get(docid);
+    }
   }
 }
@@ -0,0 +1,269 @@
+import java.util.Arrays;
+
+/**
+ * Intersection and union of sorted docid arrays.  These replace the
+ * docid alignment loops of the conjunctive query operators once their
+ * arguments are available as primitive arrays.  Lists of similar
+ * length are merged with a loop whose pointer advances do not branch;
+ * when one list is much longer than the other, the longer one is
+ * searched with exponential (galloping) search instead.
+ *
+ * @author junjiah
+ */
+public class DocidSetOps {
+
+  /**
+   * Lists whose length ratio is above this are intersected by galloping.
+   */
+  private static final int GALLOP_RATIO = 32;
+
+  private DocidSetOps() {
+  }
+
+  /**
+   * Intersect two sorted arrays of distinct docids.
+   *
+   * @param a    The first array.
+   * @param na   Number of docids in a.
+   * @param b    The second array.
+   * @param nb   Number of docids in b.
+   * @param outA Output, the index in a of every common docid.
+   * @param outB Output, the index in b of every common docid.
+   * @return The number of common docids.
+   */
+  public static int intersect(int[] a, int na, int[] b, int nb, int[] outA, int[] outB) {
+    if (na > (long) nb * GALLOP_RATIO) {
+      return gallop(b, nb, a, na, outB, outA);
+    } else if (nb > (long) na * GALLOP_RATIO) {
+      return gallop(a, na, b, nb, outA, outB);
+    }
+
+    int i = 0, j = 0, k = 0;
+    while (i < na && j < nb) {
+      int x = a[i], y = b[j];
+      if (x == y) {
+        outA[k] = i;
+        outB[k] = j;
+        k++;
+      }
+      // advance whichever side is behind, or both on a match
+      i += x <= y ? 1 : 0;
+      j += y <= x ? 1 : 0;
+    }
+    return k;
+  }
+
+  /**
+   * Intersect any number of sorted arrays of distinct docids.
+   *
+   * @param lists Docid arrays to intersect.
+   * @param sizes Number of docids in each array.
+   * @return The common docids, with their index in every array.
+   */
+  public static Intersection intersect(int[][] lists, int[] sizes) {
+    int numLists = lists.length;
+    if (numLists == 0) {
+      Intersection empty = new Intersection(0, 0);
+      empty.docids = new int[0];
+      return empty;
+    }
+
+    // drive the intersection with the shortest list
+    int shortest = 0;
+    for (int j = 1; j < numLists; j++) {
+      if (sizes[j] < sizes[shortest]) {
+        shortest = j;
+      }
+    }
+
+    Intersection result = new Intersection(numLists, sizes[shortest]);
+    int[] common = new int[sizes[shortest]];
+    System.arraycopy(lists[shortest], 0, common, 0, sizes[shortest]);
+    for (int k = 0; k < sizes[shortest]; k++) {
+      result.positions[shortest][k] = k;
+    }
+    result.size = sizes[shortest];
+
+    int[] kept = new int[sizes[shortest]];
+    int[] matched = new int[sizes[shortest]];
+    for (int j = 0; j < numLists && result.size > 0; j++) {
+      if (j == shortest) {
+        continue;
+      }
+      int count = intersect(common, result.size, lists[j], sizes[j], kept, matched);
+
+      // keep only the docids that are also in list j
+      for (int k = 0; k < count; k++) {
+        common[k] = common[kept[k]];
+        for (int l = 0; l < numLists; l++) {
+          result.positions[l][k] = result.positions[l][kept[k]];
+        }
+        result.positions[j][k] = matched[k];
+      }
+      result.size = count;
+    }
+    result.docids = common;
+
+    return result;
+  }
+
+  /**
+   * Merge two sorted arrays of distinct docids.
+   *
+   * @param a  The first array.
+   * @param na Number of docids in a.
+   * @param b  The second array.
+   * @param nb Number of docids in b.
+   * @return The sorted docids that are in a or b, without duplicates.
+   */
+  public static int[] union(int[] a, int na, int[] b, int nb) {
+    int[] out = new int[na + nb];
+    int i = 0, j = 0, k = 0;
+    while (i < na && j < nb) {
+      int x = a[i], y = b[j];
+      out[k++] = x <= y ? x : y;
+      i += x <= y ? 1 : 0;
+      j += y <= x ? 1 : 0;
+    }
+    while (i < na) {
+      out[k++] = a[i++];
+    }
+    while (j < nb) {
+      out[k++] = b[j++];
+    }
+    return k == out.length ? out : Arrays.copyOf(out, k);
+  }
+
+  /**
+   * Merge any number of sorted arrays of distinct docids, pairwise so
+   * that every docid is copied O(log n) times.
+   *
+   * @param lists Docid arrays to merge; each is used entirely.
+   * @return The sorted docids that are in any array, without duplicates.
+   */
+  public static int[] union(int[][] lists) {
+    if (lists.length == 0) {
+      return new int[0];
+    }
+
+    int[][] merged = lists;
+    while (merged.length > 1) {
+      int[][] next = new int[(merged.length + 1) / 2][];
+      for (int j = 0; j < merged.length / 2; j++) {
+        int[] a = merged[2 * j], b = merged[2 * j + 1];
+        next[j] = union(a, a.length, b, b.length);
+      }
+      if (merged.length % 2 == 1) {
+        next[next.length - 1] = merged[merged.length - 1];
+      }
+      merged = next;
+    }
+    return merged[0];
+  }
+
+  /**
+   * Merge any number of sorted arrays of distinct docids by setting one
+   * bit per docid in a bitmap of their range, then scanning the bitmap.
+   * Cheaper than {@link #union(int[][])} when the lists are long and
+   * dense.
+   *
+   * @param lists Docid arrays to merge; each is used entirely.
+   * @return The sorted docids that are in any array, without duplicates.
+   */
+  public static int[] unionBitmap(int[][] lists) {
+    int lo = Integer.MAX_VALUE, hi = -1, total = 0;
+    for (int[] list : lists) {
+      if (list.length > 0) {
+        lo = Math.min(lo, list[0]);
+        hi = Math.max(hi, list[list.length - 1]);
+        total += list.length;
+      }
+    }
+    if (hi < 0) {
+      return new int[0];
+    }
+
+    long[] bits = new long[((hi - lo) >>> 6) + 1];
+    for (int[] list : lists) {
+      for (int docid : list) {
+        int offset = docid - lo;
+        bits[offset >>> 6] |= 1L << offset;
+      }
+    }
+
+    int[] out = new int[total];
+    int k = 0;
+    for (int w = 0; w < bits.length; w++) {
+      long word = bits[w];
+      while (word != 0) {
+        out[k++] = lo + (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+    return k == out.length ? out : Arrays.copyOf(out, k);
+  }
+
+  /**
+   * Intersect a short list with a much longer one by exponential search
+   * in the long list for every docid of the short one.
+   */
+  private static int gallop(int[] small, int ns, int[] large, int nl, int[] outS, int[] outL) {
+    int k = 0, lo = 0;
+    for (int i = 0; i < ns && lo < nl; i++) {
+      int target = small[i];
+
+      // find a range [lo, hi] that contains the target
+      int step = 1, hi = lo;
+      while (hi < nl && large[hi] < target) {
+        lo = hi + 1;
+        hi += step;
+        step <<= 1;
+      }
+      if (hi >= nl) {
+        hi = nl - 1;
+      }
+
+      // binary search for the first docid >= target
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (large[mid] < target) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      if (lo < nl && large[lo] == target) {
+        outS[k] = i;
+        outL[k] = lo;
+        k++;
+        lo++;
+      }
+    }
+    return k;
+  }
+
+  /**
+   * Docids common to several lists, and where they are in each list.
+   */
+  public static class Intersection {
+
+    /**
+     * Number of common docids.
+     */
+    public int size;
+
+    /**
+     * The common docids in ascending order; only the first size are valid.
+     */
+    public int[] docids;
+
+    /**
+     * positions[j][k] is the index of docids[k] in the j'th list.
+     */
+    public int[][] positions;
+
+    private Intersection(int numLists, int capacity) {
+      this.positions = new int[numLists][capacity];
+    }
+  }
+}
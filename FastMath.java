@@ -0,0 +1,88 @@
+/**
+ * Table-driven approximations of log and exp for the approximate
+ * scoring mode.  Both split the argument into a power of two and a
+ * fraction, look the fraction up in a table of 2^TABLE_BITS entries and
+ * interpolate linearly between neighbours.  With 10 table bits,
+ * log(x) is the exact logarithm of some x' with |x' / x - 1| < 1.2e-7,
+ * and exp(x) is within a relative error of 1.2e-7 of the exact value.
+ * Zero, negative, infinite, NaN and subnormal arguments fall back to
+ * {@link Math}.
+ *
+ * @author junjiah
+ */
+public class FastMath {
+
+  private static final int TABLE_BITS = 10;
+
+  private static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+  private static final double LN2 = Math.log(2);
+
+  private static final double LOG2E = 1 / LN2;
+
+  /**
+   * LOG_TABLE[i] = log(1 + i / TABLE_SIZE), i = 0 .. TABLE_SIZE
+   */
+  private static final double[] LOG_TABLE = new double[TABLE_SIZE + 1];
+
+  /**
+   * EXP2_TABLE[i] = 2^(i / TABLE_SIZE), i = 0 .. TABLE_SIZE
+   */
+  private static final double[] EXP2_TABLE = new double[TABLE_SIZE + 1];
+
+  static {
+    for (int i = 0; i <= TABLE_SIZE; ++i) {
+      LOG_TABLE[i] = Math.log(1 + (double) i / TABLE_SIZE);
+      EXP2_TABLE[i] = Math.pow(2, (double) i / TABLE_SIZE);
+    }
+  }
+
+  private FastMath() {
+  }
+
+  /**
+   * Approximate natural logarithm.
+   *
+   * @param x The argument.
+   * @return log(x) up to a relative error of 1.2e-7 in x.
+   */
+  public static double log(double x) {
+    long bits = Double.doubleToRawLongBits(x);
+    int exponent = (int) ((bits >>> 52) & 0x7ff);
+    if (bits <= 0 || exponent == 0 || exponent == 0x7ff) {
+      return Math.log(x);
+    }
+
+    // x = 2^(exponent - 1023) * (1 + mantissa / 2^52)
+    long mantissa = bits & 0xfffffffffffffL;
+    int index = (int) (mantissa >>> (52 - TABLE_BITS));
+    double fraction = (mantissa & ((1L << (52 - TABLE_BITS)) - 1))
+            / (double) (1L << (52 - TABLE_BITS));
+    double logMantissa = LOG_TABLE[index] + fraction * (LOG_TABLE[index + 1] - LOG_TABLE[index]);
+
+    return (exponent - 1023) * LN2 + logMantissa;
+  }
+
+  /**
+   * Approximate exponential function.
+   *
+   * @param x The argument.
+   * @return exp(x) up to a relative error of 1.2e-7.
+   */
+  public static double exp(double x) {
+    // outside this range the result is subnormal, zero or infinite
+    if (!(x > -708 && x < 709)) {
+      return Math.exp(x);
+    }
+
+    // exp(x) = 2^n * 2^f with 0 <= f < 1
+    double y = x * LOG2E;
+    int n = (int) Math.floor(y);
+    double f = (y - n) * TABLE_SIZE;
+    int index = (int) f;
+    double fraction = f - index;
+    double exp2Fraction = EXP2_TABLE[index] + fraction * (EXP2_TABLE[index + 1] - EXP2_TABLE[index]);
+
+    return exp2Fraction * Double.longBitsToDouble((long) (n + 1023) << 52);
+  }
+}
@@ -7,8 +7,9 @@
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DocsAndPositionsEnum;
-import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
@@ -31,6 +32,14 @@ public class InvList {
 
   public Vector<DocPosting> postings = new Vector<DocPosting>();
 
+  //  Document ids and term frequencies in primitive form, built on
+  //  first use and shared afterwards.  Lists are filled before they
+  //  are shared between threads; volatile publishes the arrays safely.
+
+  private volatile int[] docidArray;
+
+  private volatile int[] tfArray;
+
   /**
    * Constructor.  An empty inverted list. Useful for some query operators.
    */
@@ -52,6 +61,20 @@ public class InvList {
    * @throws IOException
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   * Fetch an inverted list from the index, optionally without positions.
+   * Without positions, postings only have term frequencies, which is
+   * all that scoring needs.
+   *
+   * @param termString  The processed (stemmed, lower-cased, etc) term string.
+   * @param fieldString The field that the term occurs in.
+   * @param positions   Whether term positions are read.
+   * @throws IOException
+   */
+  public InvList(String termString, String fieldString, boolean positions) throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -66,30 +89,57 @@ public class InvList {
       return;
     }
 
-    //  Lookup the inverted list.
-
-    DocsAndPositionsEnum iList =
-            MultiFields.getTermPositionsEnum(QryEval.READER,
-                    MultiFields.getLiveDocs(QryEval.READER),
-                    fieldString, termBytes);
-
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
     //  operators such as #SYN and #NEAR/n to be insulated from the
     //  details of Lucene inverted list implementations.
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+    //  The inverted list is read segment by segment, adding the docid
+    //  base of the segment, rather than through the slower composite
+    //  view of the whole index.  When evaluating a partition of the
+    //  docid space, only the postings within the partition are read.
 
-      int tf = iList.freq();
-      int[] positions = new int[tf];
+    PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+    int start = partition == null ? 0 : partition.lo;
+    int end = partition == null ? Integer.MAX_VALUE : partition.hi;
 
-      for (int j = 0; j < tf; j++) {
-        positions[j] = iList.nextPosition();
+    for (AtomicReaderContext leaf : QryEval.READER.leaves()) {
+      int leafEnd = leaf.docBase + leaf.reader().maxDoc();
+      if (leafEnd <= start || leaf.docBase >= end) {
+        continue;
       }
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      //  Lookup the inverted list of the segment; deleted documents
+      //  are skipped.
+
+      DocsEnum iList = positions ?
+              leaf.reader().termPositionsEnum(term) : leaf.reader().termDocsEnum(term);
+      if (iList == null) {
+        continue;
+      }
+
+      int leafDocid = start > leaf.docBase ? iList.advance(start - leaf.docBase) : iList.nextDoc();
+
+      for (; leafDocid != DocIdSetIterator.NO_MORE_DOCS && leaf.docBase + leafDocid < end;
+           leafDocid = iList.nextDoc()) {
+
+        int tf = iList.freq();
+        DocPosting posting;
+        if (positions) {
+          int[] locations = new int[tf];
+          for (int j = 0; j < tf; j++) {
+            locations[j] = ((DocsAndPositionsEnum) iList).nextPosition();
+          }
+          posting = new DocPosting(leaf.docBase + leafDocid, locations);
+        } else {
+          posting = new DocPosting(leaf.docBase + leafDocid);
+          posting.tf = tf;
+        }
+
+        this.postings.add(posting);
+        this.df++;
+        this.ctf += tf;
+      }
     }
   }
 
@@ -116,6 +166,33 @@ public class InvList {
     this.postings.add(p);
     this.df++;
     this.ctf += p.tf;
+    this.docidArray = null;
+    this.tfArray = null;
+    return true;
+  }
+
+  /**
+   * Append a posting without positions.  Posting must be appended in
+   * docid order, otherwise this method fails.
+   *
+   * @param docid The posting internal document id.
+   * @param tf    The term frequency in the document.
+   * @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting(int docid, int tf) {
+    if ((this.df > 1) &&
+            (this.postings.get(this.df - 1).docid >= docid)) {
+      return false;
+    }
+
+    DocPosting p = new DocPosting(docid);
+    p.tf = tf;
+
+    this.postings.add(p);
+    this.df++;
+    this.ctf += tf;
+    this.docidArray = null;
+    this.tfArray = null;
     return true;
   }
 
@@ -139,6 +216,56 @@ public class InvList {
     return this.postings.get(n).tf;
   }
 
+  /**
+   * Get the document ids of the inverted list as a primitive array, in
+   * posting order.  The array is built on the first call and returned
+   * by later calls until a posting is appended, so it must not be
+   * modified.
+   *
+   * @return The internal document ids.
+   */
+  public int[] getDocidArray() {
+    int[] docids = this.docidArray;
+    if (docids == null) {
+      docids = new int[this.df];
+      for (int i = 0; i < this.df; i++) {
+        docids[i] = this.postings.get(i).docid;
+      }
+      this.docidArray = docids;
+    }
+    return docids;
+  }
+
+  /**
+   * Get the term frequencies of the inverted list as a primitive array,
+   * in posting order.  Like {@link #getDocidArray()}, the array is
+   * shared and must not be modified.
+   *
+   * @return The term frequencies.
+   */
+  public int[] getTfArray() {
+    int[] tfs = this.tfArray;
+    if (tfs == null) {
+      tfs = new int[this.df];
+      for (int i = 0; i < this.df; i++) {
+        tfs[i] = this.postings.get(i).tf;
+      }
+      this.tfArray = tfs;
+    }
+    return tfs;
+  }
+
+  /**
+   * Get the positions of the n'th document of the inverted list as a
+   * primitive array, which is shared and must not be modified.
+   *
+   * @param n The index of the requested document.
+   * @return The positions; empty if the list was read without them.
+   */
+  public int[] getPositionArray(int n) {
+    return this.postings.get(n).getPositionArray();
+  }
+
   /**
    * Print the inverted list.  This is handy for debugging.
    */
@@ -150,7 +277,7 @@ public class InvList {
       System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
               + this.postings.elementAt(i).tf + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
+      for (int j = 0; j < this.postings.elementAt(i).positions.size(); j++) {
         System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
       }
 
@@ -166,12 +293,17 @@ public class InvList {
 
     public Vector<Integer> positions = new Vector<Integer>();
 
+    //  The positions in primitive form, built on first use.
+
+    private volatile int[] positionArray;
+
     public DocPosting(int d, int... locations) {
       this.docid = d;
       this.tf = locations.length;
       for (int location : locations) {
         this.positions.add(location);
       }
+      this.positionArray = locations;
     }
 
     public DocPosting(int d, List<Integer> locations) {
@@ -181,5 +313,17 @@ public class InvList {
         this.positions.add(location);
       }
     }
+
+    int[] getPositionArray() {
+      int[] array = this.positionArray;
+      if (array == null) {
+        array = new int[this.positions.size()];
+        for (int i = 0; i < array.length; i++) {
+          array[i] = this.positions.get(i);
+        }
+        this.positionArray = array;
+      }
+      return array;
+    }
   }
 }
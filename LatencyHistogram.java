@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a bounded relative error, in the manner
+ * of HdrHistogram: values below 256 have buckets of their own, and
+ * every power of two above is split into 128 linear buckets, so a
+ * percentile is within 1% of the recorded value, whatever its
+ * magnitude.  Values are recorded without locking from any number of
+ * threads.
+ *
+ * @author junjiah
+ */
+public class LatencyHistogram {
+
+  /**
+   * log2 of the number of buckets of the first power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 8;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+  /**
+   * Largest value that is recorded; larger ones are recorded as it.
+   */
+  private final long highestTrackableValue;
+
+  private final AtomicLongArray counts;
+
+  private final AtomicLong totalCount = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param highestTrackableValue Largest value that is recorded, e.g. an
+   *                              hour in the unit of the values.
+   */
+  public LatencyHistogram(long highestTrackableValue) {
+    this.highestTrackableValue = Math.max(highestTrackableValue, SUB_BUCKET_COUNT);
+    this.counts = new AtomicLongArray(index(this.highestTrackableValue) + 1);
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift);
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT +
+            (subBucket - SUB_BUCKET_HALF_COUNT);
+  }
+
+  /**
+   * @return The largest value that falls in a bucket.
+   */
+  private static long highestValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Record a value.
+   *
+   * @param value The value, negative values are recorded as 0.
+   */
+  public void record(long value) {
+    value = Math.min(Math.max(value, 0), highestTrackableValue);
+    counts.incrementAndGet(index(value));
+    totalCount.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // retry
+    }
+  }
+
+  /**
+   * @return The number of recorded values.
+   */
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  /**
+   * @return The mean of the recorded values, 0 if there are none.
+   */
+  public double getMean() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * @return The largest recorded value.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Find the value below or at which a percentage of the values are.
+   *
+   * @param percentile The percentage, e.g. 99.9.
+   * @return The largest value of the bucket of the percentile, at most
+   * the largest recorded value; 0 if there are no values.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates the arguments of a query operator in parallel on a shared
+ * fork-join pool.  Arguments are independent subtrees, so each of them
+ * can be evaluated by its own task; arguments whose estimated cost is
+ * below a threshold are evaluated by the calling thread, because forking
+ * them costs more than it saves.  Nested operators fork their own
+ * arguments from inside the pool, so the work of a deep query is spread
+ * by work stealing.
+ * <p/>
+ * Disabled until {@link #configure(int, long)} is called with a positive
+ * number of threads.
+ *
+ * @author junjiah
+ */
+public class ParallelEvaluator {
+
+  /**
+   * The shared pool, or null if evaluation is sequential.
+   */
+  private static volatile ForkJoinPool pool;
+
+  /**
+   * Minimum estimated cost of an argument for it to be forked.
+   */
+  private static volatile long minCost;
+
+  private ParallelEvaluator() {
+  }
+
+  /**
+   * Set up the shared pool.  Must be called before queries are evaluated.
+   *
+   * @param threads Number of threads of the pool, 0 to evaluate sequentially.
+   * @param minCost Minimum estimated cost of an argument, see
+   *                {@link Qryop#estimateCost()}, for it to be forked.
+   */
+  public static synchronized void configure(int threads, long minCost) {
+    if (pool != null) {
+      pool.shutdown();
+    }
+    pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    ParallelEvaluator.minCost = minCost;
+  }
+
+  /**
+   * Evaluate every argument with the specified retrieval model.
+   *
+   * @param args The arguments.
+   * @param r    A retrieval model that controls how the operators behave.
+   * @return The results, in the same order as the arguments.
+   * @throws IOException
+   */
+  public static QryResult[] evaluate(List<Qryop> args, RetrievalModel r) throws IOException {
+    // partitions wait for each other, which must not block pool threads
+    ForkJoinPool currentPool = PartitionedEvaluator.current() == null ? pool : null;
+    boolean[] costly = currentPool == null ? null : findCostlyArguments(args);
+    if (costly == null) {
+      QryResult[] results = new QryResult[args.size()];
+      for (int i = 0; i < args.size(); i++) {
+        results[i] = args.get(i).evaluate(r);
+      }
+      return results;
+    }
+
+    EvaluateArgsTask task = new EvaluateArgsTask(args, costly, r);
+    try {
+      // already inside the pool if this operator is a forked argument
+      return ForkJoinTask.inForkJoinPool() ? task.invoke() : currentPool.invoke(task);
+    } catch (EvaluationException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Tell whether the arguments of an operator would be evaluated in
+   * parallel, outside a partition.
+   *
+   * @param args The arguments.
+   * @return true if some arguments would be forked.
+   * @throws IOException
+   */
+  public static boolean isParallel(List<Qryop> args) throws IOException {
+    return pool != null && findCostlyArguments(args) != null;
+  }
+
+  /**
+   * Find the arguments worth evaluating on another thread.
+   *
+   * @param args The arguments.
+   * @return Whether each argument is costly, or null if parallel
+   * evaluation would not pay off at all.
+   * @throws IOException
+   */
+  private static boolean[] findCostlyArguments(List<Qryop> args) throws IOException {
+    boolean[] costly = new boolean[args.size()];
+    int numCostly = 0;
+    for (int i = 0; i < args.size(); i++) {
+      costly[i] = args.get(i).estimateCost() >= minCost;
+      if (costly[i]) {
+        numCostly++;
+      }
+    }
+    // one costly argument is evaluated by the calling thread anyway
+    return numCostly < 2 ? null : costly;
+  }
+
+  /**
+   * Forks the costly arguments, evaluates the cheap ones in the current
+   * thread, then joins.
+   */
+  private static class EvaluateArgsTask extends RecursiveTask<QryResult[]> {
+
+    private final List<Qryop> args;
+
+    private final boolean[] costly;
+
+    private final RetrievalModel r;
+
+    EvaluateArgsTask(List<Qryop> args, boolean[] costly, RetrievalModel r) {
+      this.args = args;
+      this.costly = costly;
+      this.r = r;
+    }
+
+    @Override
+    protected QryResult[] compute() {
+      QryResult[] results = new QryResult[args.size()];
+      List<EvaluateArgTask> forked = new ArrayList<EvaluateArgTask>();
+      List<Integer> forkedIndexes = new ArrayList<Integer>();
+      boolean[] isForked = new boolean[args.size()];
+
+      // keep the first costly argument for this thread
+      boolean keptOne = false;
+      for (int i = 0; i < args.size(); i++) {
+        if (costly[i]) {
+          if (keptOne) {
+            EvaluateArgTask task = new EvaluateArgTask(args.get(i), r);
+            task.fork();
+            forked.add(task);
+            forkedIndexes.add(i);
+            isForked[i] = true;
+          } else {
+            keptOne = true;
+          }
+        }
+      }
+
+      for (int i = 0; i < args.size(); i++) {
+        if (!isForked[i]) {
+          results[i] = EvaluateArgTask.evaluate(args.get(i), r);
+        }
+      }
+
+      // join in reverse order of forking, so that tasks not yet stolen
+      // are run by this thread
+      for (int j = forked.size() - 1; j >= 0; j--) {
+        results[forkedIndexes.get(j)] = forked.get(j).join();
+      }
+      return results;
+    }
+  }
+
+  /**
+   * Evaluates one argument.
+   */
+  private static class EvaluateArgTask extends RecursiveTask<QryResult> {
+
+    private final Qryop arg;
+
+    private final RetrievalModel r;
+
+    EvaluateArgTask(Qryop arg, RetrievalModel r) {
+      this.arg = arg;
+      this.r = r;
+    }
+
+    @Override
+    protected QryResult compute() {
+      return evaluate(arg, r);
+    }
+
+    static QryResult evaluate(Qryop arg, RetrievalModel r) {
+      try {
+        return arg.evaluate(r);
+      } catch (IOException e) {
+        throw new EvaluationException(e);
+      }
+    }
+  }
+
+  /**
+   * Carries an IOException out of a task, which may only throw
+   * unchecked exceptions.
+   */
+  private static class EvaluationException extends RuntimeException {
+
+    EvaluationException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Evaluates an expensive query by splitting the docid space into equal
+ * ranges and evaluating a copy of the whole query tree per range, each
+ * on its own thread.  Inverted lists fetched by a thread only cover its
+ * range, see {@link #current()}.  Scores need collection statistics of
+ * whole inverted lists, so the #SCORE operators of all partitions sum
+ * their partial df and ctf through {@link Partition#globalStatistics}
+ * before scoring.  Each partition keeps its top documents, and the
+ * merged list is truncated by the caller as usual.
+ *
+ * @author junjiah
+ */
+public class PartitionedEvaluator {
+
+  /**
+   * Builds a new query tree, so that every partition evaluates a tree of
+   * its own.
+   */
+  public interface QueryBuilder {
+
+    Qryop build() throws IOException;
+  }
+
+  /**
+   * The partition evaluated by the current thread, if any.
+   */
+  private static final ThreadLocal<Partition> CURRENT = new ThreadLocal<Partition>();
+
+  /**
+   * Runs the partitions.  Partitions wait for each other, so the pool
+   * must not limit the number of threads.
+   */
+  private static final ExecutorService EXECUTOR =
+          Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "partition");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+  private static volatile int numPartitions = 1;
+
+  /**
+   * Minimum estimated cost of a query for it to be partitioned.
+   */
+  private static volatile long minCost;
+
+  private PartitionedEvaluator() {
+  }
+
+  /**
+   * Set up partitioned evaluation.  Must be called before queries are
+   * evaluated.
+   *
+   * @param partitions Number of docid ranges, 1 to evaluate queries whole.
+   * @param minCost    Minimum estimated cost of a query, see
+   *                   {@link Qryop#estimateCost()}, for it to be partitioned.
+   */
+  public static synchronized void configure(int partitions, long minCost) {
+    if (partitions < 1) {
+      QryEval.fatalError("Error: Parameter 'partitions' must be positive.");
+    }
+    numPartitions = partitions;
+    PartitionedEvaluator.minCost = minCost;
+  }
+
+  /**
+   * @return The partition evaluated by the current thread, or null if the
+   * thread evaluates whole queries.
+   */
+  public static Partition current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Evaluate a query, in partitions if it is expensive enough.
+   *
+   * @param builder Builds the query tree.
+   * @param r       A retrieval model that controls how the operators behave.
+   * @return The result of evaluating the query.  If the query was
+   * partitioned, the score list only has the top documents of every
+   * partition and is not sorted.
+   * @throws IOException
+   */
+  public static QryResult evaluate(QueryBuilder builder, RetrievalModel r)
+          throws IOException {
+    return evaluate(builder, r, false);
+  }
+
+  /**
+   * Evaluate a query, in partitions if it is expensive enough, and
+   * optionally one document at a time, see
+   * {@link QryopSl#stream(RetrievalModel)}.
+   *
+   * @param builder   Builds the query tree.
+   * @param r         A retrieval model that controls how the operators behave.
+   * @param streaming Whether the tree is evaluated through its iterators.
+   * @return The result of evaluating the query.  If the query was
+   * partitioned, the score list only has the top documents of every
+   * partition and is not sorted.
+   * @throws IOException
+   */
+  public static QryResult evaluate(QueryBuilder builder, final RetrievalModel r,
+                                   final boolean streaming) throws IOException {
+    Qryop query = builder.build();
+    int n = numPartitions;
+    if (n < 2 || current() != null || query.estimateCost() < minCost) {
+      return evaluate(query, r, streaming);
+    }
+
+    // split the docid space into n ranges of about the same size
+    int maxDoc = QryEval.READER.maxDoc();
+    Statistics statistics = new Statistics(n);
+    Partition[] partitions = new Partition[n];
+    for (int i = 0; i < n; i++) {
+      partitions[i] = new Partition((int) ((long) maxDoc * i / n),
+              i == n - 1 ? Integer.MAX_VALUE : (int) ((long) maxDoc * (i + 1) / n), statistics);
+    }
+
+    // build every tree before any partition starts waiting for the others
+    Qryop[] queries = new Qryop[n];
+    queries[0] = query;
+    for (int i = 1; i < n; i++) {
+      queries[i] = builder.build();
+    }
+
+    List<Future<QryResult>> futures = new ArrayList<Future<QryResult>>(n - 1);
+    for (int i = 1; i < n; i++) {
+      final Partition partition = partitions[i];
+      final Qryop partitionQuery = queries[i];
+      futures.add(EXECUTOR.submit(new Callable<QryResult>() {
+        @Override
+        public QryResult call() throws Exception {
+          return evaluatePartition(partition, partitionQuery, r, streaming);
+        }
+      }));
+    }
+
+    // the first partition is evaluated by this thread
+    QryResult result = evaluatePartition(partitions[0], query, r, streaming);
+    for (Future<QryResult> future : futures) {
+      try {
+        result.docScores.scores.addAll(future.get().docScores.scores);
+      } catch (InterruptedException e) {
+        statistics.abort();
+        throw new IOException("Interrupted while evaluating partitions", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Evaluating a partition failed", e.getCause());
+      }
+    }
+    return result;
+  }
+
+  private static QryResult evaluate(Qryop query, RetrievalModel r, boolean streaming)
+          throws IOException {
+    if (streaming && query instanceof QryopSl) {
+      return ((QryopSl) query).stream(r);
+    }
+    return query.evaluate(r);
+  }
+
+  private static QryResult evaluatePartition(Partition partition, Qryop query, RetrievalModel r,
+                                             boolean streaming) throws IOException {
+    CURRENT.set(partition);
+    try {
+      QryResult result = evaluate(query, r, streaming);
+      result.docScores.sortAndTruncate();
+      return result;
+    } catch (IOException e) {
+      // do not leave the other partitions waiting for statistics
+      partition.statistics.abort();
+      throw e;
+    } catch (RuntimeException e) {
+      partition.statistics.abort();
+      throw e;
+    } finally {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * A range of docids evaluated by one thread.
+   */
+  public static class Partition {
+
+    /**
+     * First docid of the range.
+     */
+    public final int lo;
+
+    /**
+     * Docid after the end of the range.
+     */
+    public final int hi;
+
+    private final Statistics statistics;
+
+    /**
+     * Number of times each key was exchanged by this partition, to tell
+     * apart operators that print the same.
+     */
+    private final Map<String, Integer> occurrences = new HashMap<String, Integer>();
+
+    private Partition(int lo, int hi, Statistics statistics) {
+      this.lo = lo;
+      this.hi = hi;
+      this.statistics = statistics;
+    }
+
+    /**
+     * Add this partition's statistics of an inverted list to those of the
+     * other partitions, and wait until all partitions have done so.  All
+     * partitions evaluate the same tree in the same order, so the n'th
+     * exchange of a key refers to the same operator in every partition.
+     *
+     * @param key The operator whose inverted list is counted.
+     * @param df  Document frequency within this partition.
+     * @param ctf Collection term frequency within this partition.
+     * @return {df, ctf} of the whole collection.
+     * @throws IOException If another partition failed.
+     */
+    public long[] globalStatistics(String key, int df, long ctf) throws IOException {
+      Integer occurrence = occurrences.get(key);
+      occurrence = occurrence == null ? 0 : occurrence + 1;
+      occurrences.put(key, occurrence);
+      return statistics.exchange(key + "\u0000" + occurrence, df, ctf);
+    }
+  }
+
+  /**
+   * Collection statistics shared by the partitions of one query.
+   */
+  private static class Statistics {
+
+    private final int numPartitions;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private volatile boolean aborted = false;
+
+    Statistics(int numPartitions) {
+      this.numPartitions = numPartitions;
+    }
+
+    long[] exchange(String key, int df, long ctf) throws IOException {
+      Entry entry;
+      synchronized (this) {
+        if (aborted) {
+          throw new IOException("Another partition failed");
+        }
+        entry = entries.get(key);
+        if (entry == null) {
+          entry = new Entry(numPartitions);
+          entries.put(key, entry);
+        }
+        entry.df += df;
+        entry.ctf += ctf;
+      }
+      entry.arrived.countDown();
+
+      try {
+        entry.arrived.await();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for other partitions", e);
+      }
+      if (aborted) {
+        throw new IOException("Another partition failed");
+      }
+      synchronized (this) {
+        return new long[]{entry.df, entry.ctf};
+      }
+    }
+
+    /**
+     * Release every partition waiting for statistics.
+     */
+    synchronized void abort() {
+      aborted = true;
+      for (Entry entry : entries.values()) {
+        while (entry.arrived.getCount() > 0) {
+          entry.arrived.countDown();
+        }
+      }
+    }
+  }
+
+  private static class Entry {
+
+    final CountDownLatch arrived;
+
+    long df = 0;
+
+    long ctf = 0;
+
+    Entry(int numPartitions) {
+      arrived = new CountDownLatch(numPartitions);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+
+/**
+ * Iterator over the postings of an inverted list operator: the current
+ * document, its term frequency and, if the plan reads them, its
+ * positions.  See {@link DocIterator}.
+ *
+ * @author junjiah
+ */
+public abstract class PostingIterator extends DocIterator {
+
+  /**
+   * The field the postings are in.
+   */
+  protected String field;
+
+  /**
+   * @return The field the postings are in.
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * @return The term frequency in the current document.
+   * @throws IOException
+   */
+  public abstract int tf() throws IOException;
+
+  /**
+   * @return The positions in the current document in increasing order;
+   * empty if positions are not read.
+   * @throws IOException
+   */
+  public abstract int[] positions() throws IOException;
+
+  /**
+   * Iterate an inverted list that was already built, such as a shared
+   * or cached one.
+   *
+   * @param list The inverted list; must not be modified while iterated.
+   * @return An iterator over its postings.
+   */
+  public static PostingIterator over(InvList list) {
+    return new ListIterator(list);
+  }
+
+  private static class ListIterator extends PostingIterator {
+
+    private final InvList list;
+
+    /**
+     * Index of the current posting.
+     */
+    private int index = -1;
+
+    ListIterator(InvList list) {
+      this.list = list;
+      this.field = list.field;
+    }
+
+    @Override
+    public int advance(int target) {
+      do {
+        index++;
+      } while (index < list.df && list.getDocid(index) < target);
+      docid = index < list.df ? list.getDocid(index) : NO_MORE_DOCS;
+      return docid;
+    }
+
+    @Override
+    public int tf() {
+      return list.getTf(index);
+    }
+
+    @Override
+    public int[] positions() {
+      return list.getPositionArray(index);
+    }
+  }
+}
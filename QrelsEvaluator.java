@@ -0,0 +1,241 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates rankings against relevance judgments in memory, so that
+ * tuning does not write a run file and run trec_eval on it.  The
+ * judgments are read once, in the qrels format of trec_eval:
+ * <pre>
+ *   queryId iteration externalId grade
+ * </pre>
+ * A document is relevant if its grade is positive; unjudged documents
+ * are not relevant.  Measures follow trec_eval, except that rankings are
+ * evaluated in the order they are given rather than sorted again.
+ * An evaluator is immutable once read, so rankings of different queries
+ * can be evaluated on different threads at the same time.
+ *
+ * @author junjiah
+ */
+public class QrelsEvaluator {
+
+  /**
+   * Names of the measures, in the order of the arrays of values.
+   */
+  public static final String[] MEASURES = {
+          "map", "recip_rank", "P_5", "P_10", "P_20", "P_30", "ndcg", "ndcg_cut_10"
+  };
+
+  private static final int[] PRECISION_CUTOFFS = {5, 10, 20, 30};
+
+  private static final int NDCG_CUTOFF = 10;
+
+  private static final double LOG_2 = Math.log(2);
+
+  /**
+   * Grade of every judged document, by query id and external id.
+   */
+  private final Map<Integer, Map<String, Integer>> judgments =
+          new HashMap<Integer, Map<String, Integer>>();
+
+  /**
+   * Positive grades of every query in decreasing order, the ideal
+   * ranking for NDCG.
+   */
+  private final Map<Integer, int[]> idealGrades = new HashMap<Integer, int[]>();
+
+  /**
+   * Read relevance judgments.
+   *
+   * @param qrelsFilePath The path of the qrels file.
+   * @throws IOException
+   */
+  public QrelsEvaluator(String qrelsFilePath) throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(qrelsFilePath));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] parts = line.split("\\s+");
+        if (parts.length != 4) {
+          QryEval.fatalError("Error: Malformed qrels line: " + line);
+        }
+        int queryId = Integer.parseInt(parts[0]);
+        Map<String, Integer> grades = judgments.get(queryId);
+        if (grades == null) {
+          grades = new HashMap<String, Integer>();
+          judgments.put(queryId, grades);
+        }
+        grades.put(parts[2], Integer.parseInt(parts[3]));
+      }
+    } finally {
+      reader.close();
+    }
+
+    for (Map.Entry<Integer, Map<String, Integer>> entry : judgments.entrySet()) {
+      List<Integer> positive = new ArrayList<Integer>();
+      for (int grade : entry.getValue().values()) {
+        if (grade > 0) {
+          positive.add(grade);
+        }
+      }
+      Collections.sort(positive, Collections.reverseOrder());
+      int[] ideal = new int[positive.size()];
+      for (int i = 0; i < ideal.length; i++) {
+        ideal[i] = positive.get(i);
+      }
+      idealGrades.put(entry.getKey(), ideal);
+    }
+  }
+
+  /**
+   * Evaluate the ranking of one query.
+   *
+   * @param queryId     The query id.
+   * @param externalIds External ids of the ranked documents, best first.
+   * @return The value of every measure in {@link #MEASURES}, or null if
+   * the query has no judgments.
+   */
+  public double[] evaluate(int queryId, String[] externalIds) {
+    Map<String, Integer> grades = judgments.get(queryId);
+    if (grades == null) {
+      return null;
+    }
+    int[] ideal = idealGrades.get(queryId);
+
+    int relevantRetrieved = 0;
+    int[] relevantAtCutoff = new int[PRECISION_CUTOFFS.length];
+    double sumPrecision = 0, reciprocalRank = 0, dcg = 0, dcgAtCutoff = 0;
+    for (int i = 0; i < externalIds.length; i++) {
+      Integer grade = grades.get(externalIds[i]);
+      if (grade == null || grade <= 0) {
+        continue;
+      }
+      relevantRetrieved++;
+      sumPrecision += relevantRetrieved / (i + 1.0);
+      if (reciprocalRank == 0) {
+        reciprocalRank = 1 / (i + 1.0);
+      }
+      for (int c = 0; c < PRECISION_CUTOFFS.length; c++) {
+        if (i < PRECISION_CUTOFFS[c]) {
+          relevantAtCutoff[c]++;
+        }
+      }
+      double gain = grade * LOG_2 / Math.log(i + 2);
+      dcg += gain;
+      if (i < NDCG_CUTOFF) {
+        dcgAtCutoff += gain;
+      }
+    }
+
+    double idcg = 0, idcgAtCutoff = 0;
+    for (int i = 0; i < ideal.length; i++) {
+      double gain = ideal[i] * LOG_2 / Math.log(i + 2);
+      idcg += gain;
+      if (i < NDCG_CUTOFF) {
+        idcgAtCutoff += gain;
+      }
+    }
+
+    double[] values = new double[MEASURES.length];
+    values[0] = ideal.length == 0 ? 0 : sumPrecision / ideal.length;
+    values[1] = reciprocalRank;
+    for (int c = 0; c < PRECISION_CUTOFFS.length; c++) {
+      values[2 + c] = relevantAtCutoff[c] / (double) PRECISION_CUTOFFS[c];
+    }
+    values[6] = idcg == 0 ? 0 : dcg / idcg;
+    values[7] = idcgAtCutoff == 0 ? 0 : dcgAtCutoff / idcgAtCutoff;
+    return values;
+  }
+
+  /**
+   * Evaluate a sorted score list.
+   *
+   * @param queryId   The query id.
+   * @param docScores The ranking, sorted, e.g. by
+   *                  {@link ScoreList#sortAndTruncate()}.
+   * @return The value of every measure, or null if the query has no
+   * judgments.
+   * @throws IOException
+   */
+  public double[] evaluate(int queryId, ScoreList docScores) throws IOException {
+    String[] externalIds = new String[docScores.scores.size()];
+    for (int i = 0; i < externalIds.length; i++) {
+      externalIds[i] = QryEval.getExternalDocid(docScores.getDocid(i));
+    }
+    return evaluate(queryId, externalIds);
+  }
+
+  /**
+   * Write the values of the measures in trec_eval format.
+   *
+   * @param queryId The query id, or "all" for means.
+   * @param values  The value of every measure.
+   * @return One line per measure.
+   */
+  public static String format(String queryId, double[] values) {
+    StringBuilder lines = new StringBuilder();
+    for (int m = 0; m < MEASURES.length; m++) {
+      lines.append(String.format("%-22s\t%s\t%.4f\n", MEASURES[m], queryId, values[m]));
+    }
+    return lines.toString();
+  }
+
+  /**
+   * Means of the measures over the judged queries of a run.  Not
+   * thread safe; queries are added by the thread that writes results.
+   */
+  public static class Summary {
+
+    private final double[] sums = new double[MEASURES.length];
+
+    private int count = 0;
+
+    /**
+     * @param values The value of every measure for one query, or null if
+     *               the query has no judgments, which is not counted.
+     */
+    public void add(double[] values) {
+      if (values == null) {
+        return;
+      }
+      for (int m = 0; m < sums.length; m++) {
+        sums[m] += values[m];
+      }
+      count++;
+    }
+
+    /**
+     * @return The number of judged queries.
+     */
+    public int getCount() {
+      return count;
+    }
+
+    /**
+     * @return The mean of every measure, 0 without judged queries.
+     */
+    public double[] mean() {
+      double[] means = new double[sums.length];
+      for (int m = 0; m < sums.length; m++) {
+        means[m] = count == 0 ? 0 : sums[m] / count;
+      }
+      return means;
+    }
+
+    /**
+     * @return The means in trec_eval format.
+     */
+    public String report() {
+      return String.format("%-22s\tall\t%d\n", "num_q", count) + format("all", mean());
+    }
+  }
+}
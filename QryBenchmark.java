@@ -0,0 +1,591 @@
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks of the parts of query evaluation that changes
+ * usually touch: inverted lists, docid set operations, scoring kernels,
+ * query operators, score list selection, parsing and query expansion.
+ * <p/>
+ * Usage:  java QryBenchmark [paramFile]
+ * <p/>
+ * Every benchmark is warmed up, then run for a number of timed
+ * iterations, and reports its time per operation with the standard
+ * deviation over iterations, the bytes it allocates per operation, and
+ * the garbage collections during the timed iterations.  Allocations
+ * are counted by the thread, so a benchmark must not hand work to other
+ * threads.
+ * <p/>
+ * Benchmarks on inverted lists are generated from a fixed seed, and
+ * are parameterized by the length of the longest list, the number of
+ * lists, and the skew, the ratio of the longest to the shortest list;
+ * the other lists are spread geometrically between them.  Benchmarks
+ * of score lists, whole queries and expansion need an index and run
+ * only if indexPath is given, with the queries of queryFilePath, such
+ * as those generated by {@link QryIndexGenerator}.  The parameters,
+ * all optional, are
+ * <pre>
+ *   benchmark            regular expression the names must match
+ *   benchmarkLengths     e.g. 1000,100000
+ *   benchmarkArgs        e.g. 2,4
+ *   benchmarkSkews       e.g. 1,100
+ *   benchmarkWarmup      warmup time in ms
+ *   benchmarkIterations  number of timed iterations
+ *   benchmarkTime        time of an iteration in ms
+ *   benchmarkOutputPath  file to also write the results to, as CSV
+ * </pre>
+ *
+ * @author junjiah
+ */
+public class QryBenchmark {
+
+  private static final long SEED = 42;
+
+  /**
+   * Queries parsed when no query file is given.
+   */
+  private static final String[] DEFAULT_QUERIES = {
+          "obama family tree",
+          "#AND(#NEAR/1(french lick) resort casino)",
+          "#WAND(0.3 apple 0.7 #SYN(pie tart))",
+          "#SUM(cheap internet #OR(dsl cable))",
+          "#AND(#WINDOW/8(espn sports) #NEAR/3(wedding budget calculator))"
+  };
+
+  /**
+   * Results are folded into this, so that the work of a benchmark cannot
+   * be optimized away.
+   */
+  private static volatile int sink;
+
+  private QryBenchmark() {
+  }
+
+  /**
+   * @param args The only, optional, argument is the path to the
+   *             parameter file.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> params = args.length > 0 ?
+            QryEval.readParameters(args[0]) : new HashMap<String, String>();
+    Pattern filter = Pattern.compile(get(params, "benchmark", ".*"));
+    int[] lengths = parseInts(get(params, "benchmarkLengths", "1000,100000"));
+    int[] numArgs = parseInts(get(params, "benchmarkArgs", "2,4"));
+    int[] skews = parseInts(get(params, "benchmarkSkews", "1,100"));
+    long warmup = Long.parseLong(get(params, "benchmarkWarmup", "1000")) * 1000000;
+    int iterations = Integer.parseInt(get(params, "benchmarkIterations", "5"));
+    long time = Long.parseLong(get(params, "benchmarkTime", "1000")) * 1000000;
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (int length : lengths) {
+      benchmarks.addAll(listBenchmarks(length));
+      for (int skew : skews) {
+        benchmarks.addAll(pairBenchmarks(length, skew));
+        for (int n : numArgs) {
+          benchmarks.addAll(operatorBenchmarks(length, n, skew));
+        }
+      }
+    }
+    benchmarks.add(parseBenchmark(params));
+    if (params.containsKey("indexPath")) {
+      QryEval.openIndex(params);
+      for (int length : lengths) {
+        benchmarks.add(sortBenchmark(length));
+      }
+      benchmarks.addAll(indexBenchmarks(params));
+    }
+
+    BufferedWriter csv = null;
+    if (params.containsKey("benchmarkOutputPath")) {
+      csv = new BufferedWriter(new FileWriter(new File(params.get("benchmarkOutputPath"))));
+      csv.write("benchmark,ns_per_op,ns_stddev,bytes_per_op,gc_count,gc_ms\n");
+    }
+    try {
+      for (Benchmark benchmark : benchmarks) {
+        if (!filter.matcher(benchmark.name).find()) {
+          continue;
+        }
+        Result result = measure(benchmark, warmup, iterations, time);
+        System.out.println(result);
+        if (csv != null) {
+          csv.write(result.toCsv());
+          csv.flush();
+        }
+      }
+    } finally {
+      if (csv != null) {
+        csv.close();
+      }
+    }
+  }
+
+  private static String get(Map<String, String> params, String name, String defaultValue) {
+    return params.containsKey(name) ? params.get(name) : defaultValue;
+  }
+
+  private static int[] parseInts(String values) {
+    String[] parts = values.split(",");
+    int[] ints = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      ints[i] = Integer.parseInt(parts[i].trim());
+    }
+    return ints;
+  }
+
+  /**
+   * Run a benchmark: warm up, then time the iterations.
+   *
+   * @param benchmark  The benchmark.
+   * @param warmup     Warmup time in ns.
+   * @param iterations Number of timed iterations.
+   * @param time       Time of an iteration in ns.
+   * @return The measurements.
+   * @throws Exception
+   */
+  private static Result measure(Benchmark benchmark, long warmup, int iterations, long time)
+          throws Exception {
+    long end = System.nanoTime() + warmup;
+    while (System.nanoTime() < end) {
+      consume(benchmark.run());
+    }
+
+    Result result = new Result(benchmark.name, iterations);
+    long gcCount = -gcCount(), gcTime = -gcTime();
+    long allocated = -allocatedBytes(), operations = 0;
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime(), elapsed;
+      int n = 0;
+      do {
+        consume(benchmark.run());
+        n++;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < time);
+      result.nsPerOp[i] = (double) elapsed / n;
+      operations += n;
+    }
+    allocated += allocatedBytes();
+    result.bytesPerOp = allocatedBytes() < 0 ? Double.NaN : (double) allocated / operations;
+    result.gcCount = gcCount + gcCount();
+    result.gcTime = gcTime + gcTime();
+    return result;
+  }
+
+  private static void consume(Object o) {
+    sink += o == null ? 0 : System.identityHashCode(o);
+  }
+
+  /**
+   * @return The bytes allocated by this thread, or -1 if the JVM does
+   * not count them.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+      if (counting.isThreadAllocatedMemorySupported() &&
+              counting.isThreadAllocatedMemoryEnabled()) {
+        return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+
+  /**
+   * Benchmarks of one inverted list: building it, and scoring it with
+   * the kernels of BM25 and Indri.
+   */
+  private static List<Benchmark> listBenchmarks(final int length) {
+    String params = "[length=" + length + "]";
+    Random random = new Random(SEED);
+    final int numDocs = length * 4;
+    final InvList list = positionalList(random, length, numDocs);
+    final int[] docids = list.getDocidArray();
+    final int[] tfs = list.getTfArray();
+    final double[] lengthNorms = new double[numDocs];
+    int maxLength = 50 + 999;
+    PackedInts.Mutable packedLengths =
+            PackedInts.getMutable(numDocs, PackedInts.bitsRequired(maxLength), PackedInts.DEFAULT);
+    for (int d = 0; d < numDocs; d++) {
+      int docLength = 50 + random.nextInt(1000);
+      lengthNorms[d] = 1.2 * (0.25 + 0.75 * docLength / 550.0);
+      packedLengths.set(d, docLength);
+    }
+    final DocLengthStore.FieldLengths docLengths =
+            new DocLengthStore.FieldLengths("body", packedLengths, maxLength);
+    final double[] scores = new double[length];
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.add(new Benchmark("invlist.append" + params) {
+      @Override
+      Object run() {
+        InvList copy = new InvList("body");
+        for (int i = 0; i < list.df; i++) {
+          copy.appendPosting(list.getDocid(i), list.postings.get(i).positions);
+        }
+        return copy;
+      }
+    });
+    benchmarks.add(new Benchmark("kernel.bm25" + params) {
+      @Override
+      Object run() {
+        ScoringKernels.bm25(docids, tfs, docids.length, lengthNorms, 2.5, scores);
+        return scores;
+      }
+    });
+    benchmarks.add(new Benchmark("kernel.indri" + params) {
+      @Override
+      Object run() {
+        ScoringKernels.indri(docids, tfs, docids.length, docLengths, 2500, 0.4, 2.5e-4, 1e-6,
+                false, scores);
+        return scores;
+      }
+    });
+    benchmarks.add(new Benchmark("kernel.indri.approximate" + params) {
+      @Override
+      Object run() {
+        ScoringKernels.indri(docids, tfs, docids.length, docLengths, 2500, 0.4, 2.5e-4, 1e-6,
+                true, scores);
+        return scores;
+      }
+    });
+    return benchmarks;
+  }
+
+  /**
+   * Benchmarks of the intersection of two lists, balanced if the skew
+   * is 1, galloping if it is large.
+   */
+  private static List<Benchmark> pairBenchmarks(final int length, int skew) {
+    String params = "[length=" + length + ",skew=" + skew + "]";
+    Random random = new Random(SEED);
+    final int[] a = docids(random, length, length * 4);
+    final int[] b = docids(random, Math.max(1, length / skew), length * 4);
+    final int[] outA = new int[b.length], outB = new int[b.length];
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.add(new Benchmark("docidset.intersect" + params) {
+      @Override
+      Object run() {
+        return DocidSetOps.intersect(a, a.length, b, b.length, outA, outB);
+      }
+    });
+    return benchmarks;
+  }
+
+  /**
+   * Benchmarks of the docid set operations and query operators over a
+   * number of lists.
+   */
+  private static List<Benchmark> operatorBenchmarks(int length, final int numArgs, int skew) {
+    String params = "[length=" + length + ",args=" + numArgs + ",skew=" + skew + "]";
+    Random random = new Random(SEED);
+    final InvList[] lists = new InvList[numArgs];
+    final int[][] docids = new int[numArgs][];
+    final int[] sizes = new int[numArgs];
+    for (int i = 0; i < numArgs; i++) {
+      int size = (int) Math.max(1,
+              length / Math.pow(skew, (double) i / Math.max(1, numArgs - 1)));
+      lists[i] = positionalList(random, size, length * 4);
+      docids[i] = lists[i].getDocidArray();
+      sizes[i] = size;
+    }
+    final RetrievalModel model = new RetrievalModelRankedBoolean();
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.add(new Benchmark("docidset.intersectN" + params) {
+      @Override
+      Object run() {
+        return DocidSetOps.intersect(docids, sizes);
+      }
+    });
+    benchmarks.add(new Benchmark("docidset.union" + params) {
+      @Override
+      Object run() {
+        return DocidSetOps.union(docids);
+      }
+    });
+    benchmarks.add(new Benchmark("op.and" + params) {
+      @Override
+      Object run() throws Exception {
+        return terms(new QryopSlAnd(), lists).evaluate(model);
+      }
+    });
+    benchmarks.add(new Benchmark("op.or" + params) {
+      @Override
+      Object run() throws Exception {
+        return terms(new QryopSlOr(), lists).evaluate(model);
+      }
+    });
+    benchmarks.add(new Benchmark("op.syn" + params) {
+      @Override
+      Object run() throws Exception {
+        return terms(new QryopIlSyn(), lists).evaluate(model);
+      }
+    });
+    benchmarks.add(new Benchmark("op.near" + params) {
+      @Override
+      Object run() throws Exception {
+        return terms(new QryopIlNear(3), lists).evaluate(model);
+      }
+    });
+    benchmarks.add(new Benchmark("op.window" + params) {
+      @Override
+      Object run() throws Exception {
+        return terms(new QryopIlWindow(8), lists).evaluate(model);
+      }
+    });
+    return benchmarks;
+  }
+
+  /**
+   * Add a term bound to each of the lists to an operator.
+   */
+  private static Qryop terms(Qryop op, InvList[] lists) throws Exception {
+    for (int i = 0; i < lists.length; i++) {
+      QryopIlTerm term = new QryopIlTerm("t" + i);
+      term.setSharedList(lists[i]);
+      op.add(term);
+    }
+    return op;
+  }
+
+  private static Benchmark parseBenchmark(Map<String, String> params) throws Exception {
+    final List<String> queries = new ArrayList<String>();
+    if (params.containsKey("queryFilePath")) {
+      queries.addAll(QryEval.readQueries(params.get("queryFilePath")).values());
+    } else {
+      for (String query : DEFAULT_QUERIES) {
+        queries.add(query);
+      }
+    }
+    return new Benchmark("parse[queries=" + queries.size() + "]") {
+      @Override
+      Object run() throws Exception {
+        Qryop query = null;
+        for (String queryString : queries) {
+          query = QryEval.parseQuery(queryString, new QryopSlAnd());
+        }
+        return query;
+      }
+    };
+  }
+
+  /**
+   * Benchmark of ranking a score list.  The list is truncated by the
+   * ranking, so every operation also fills it again.
+   */
+  private static Benchmark sortBenchmark(int length) {
+    Random random = new Random(SEED);
+    final int[] docids = docids(random, Math.min(length, QryEval.READER.maxDoc()),
+            QryEval.READER.maxDoc());
+    final double[] scores = new double[docids.length];
+    for (int i = 0; i < scores.length; i++) {
+      // coarse scores, so that ties are broken by external id
+      scores[i] = random.nextInt(1000) / 100.0;
+    }
+    return new Benchmark("scorelist.sortAndTruncate[length=" + docids.length + "]") {
+      @Override
+      Object run() throws Exception {
+        ScoreList docScores = new ScoreList();
+        for (int i = 0; i < docids.length; i++) {
+          docScores.add(docids[i], scores[i]);
+        }
+        docScores.sortAndTruncate();
+        return docScores;
+      }
+    };
+  }
+
+  /**
+   * Benchmarks of the queries of the query file under BM25 and Indri,
+   * and of the expansion of the first query.
+   */
+  private static List<Benchmark> indexBenchmarks(Map<String, String> params) throws Exception {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    if (!params.containsKey("queryFilePath")) {
+      return benchmarks;
+    }
+    final Map<Integer, String> queryStrings = QryEval.readQueries(params.get("queryFilePath"));
+    if (queryStrings.isEmpty()) {
+      return benchmarks;
+    }
+
+    String[][] models = {
+            {"BM25", "BM25:k_1", "1.2", "BM25:b", "0.75", "BM25:k_3", "0"},
+            {"Indri", "Indri:mu", "2500", "Indri:lambda", "0.4"}
+    };
+    RetrievalModel indri = null;
+    for (String[] model : models) {
+      Map<String, String> modelParams = new HashMap<String, String>(params);
+      modelParams.put("retrievalAlgorithm", model[0]);
+      modelParams.put("fb", "false");
+      for (int i = 1; i < model.length; i += 2) {
+        if (!modelParams.containsKey(model[i])) {
+          modelParams.put(model[i], model[i + 1]);
+        }
+      }
+      final QryEvalContext context = new QryEvalContext(modelParams, queryStrings.keySet());
+      if (context.getModel() instanceof RetrievalModelIndri) {
+        indri = context.getModel();
+      }
+      benchmarks.add(new Benchmark("query." + model[0] + "[queries=" + queryStrings.size() + "]") {
+        @Override
+        Object run() throws Exception {
+          QryEvalContext.Output output = null;
+          for (Map.Entry<Integer, String> entry : queryStrings.entrySet()) {
+            output = context.evaluate(entry.getKey(), entry.getValue());
+          }
+          return output;
+        }
+      });
+    }
+
+    String first = queryStrings.values().iterator().next();
+    final QryResult initial =
+            QryEval.parseQuery(first, QryEval.createDefaultQryop(indri)).evaluate(indri);
+    initial.docScores.sortAndTruncate();
+    final int fbDocs = Integer.parseInt(get(params, "fbDocs", "10"));
+    final int fbTerms = Integer.parseInt(get(params, "fbTerms", "10"));
+    final int fbMu = Integer.parseInt(get(params, "fbMu", "0"));
+    benchmarks.add(new Benchmark("expand[fbDocs=" + fbDocs + ",fbTerms=" + fbTerms + "]") {
+      @Override
+      Object run() throws Exception {
+        return QryEval.expansionTerms(initial, fbDocs, fbTerms, fbMu, false);
+      }
+    });
+    return benchmarks;
+  }
+
+  /**
+   * Draw distinct docids uniformly, in increasing order.
+   *
+   * @param random  The random numbers.
+   * @param n       Number of docids, at most numDocs.
+   * @param numDocs Docids are drawn from [0, numDocs).
+   * @return The docids.
+   */
+  private static int[] docids(Random random, int n, int numDocs) {
+    int[] docids = new int[n];
+    int selected = 0;
+    for (int d = 0; d < numDocs && selected < n; d++) {
+      // select each remaining docid with the probability that keeps n exact
+      if (random.nextInt(numDocs - d) < n - selected) {
+        docids[selected++] = d;
+      }
+    }
+    return docids;
+  }
+
+  /**
+   * Generate an inverted list with one to four positions per document.
+   */
+  private static InvList positionalList(Random random, int n, int numDocs) {
+    InvList list = new InvList("body");
+    for (int docid : docids(random, n, numDocs)) {
+      List<Integer> positions = new ArrayList<Integer>();
+      int position = 0;
+      for (int tf = 1 + random.nextInt(4); tf > 0; tf--) {
+        position += 1 + random.nextInt(50);
+        positions.add(position);
+      }
+      list.appendPosting(docid, positions);
+    }
+    return list;
+  }
+
+  /**
+   * A benchmark: one operation, on data prepared when it is created.
+   */
+  private abstract static class Benchmark {
+
+    final String name;
+
+    Benchmark(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Run one operation.
+     *
+     * @return The result of the operation, which is consumed.
+     * @throws Exception
+     */
+    abstract Object run() throws Exception;
+  }
+
+  /**
+   * The measurements of a benchmark.
+   */
+  private static class Result {
+
+    final String name;
+
+    final double[] nsPerOp;
+
+    double bytesPerOp;
+
+    long gcCount;
+
+    long gcTime;
+
+    Result(String name, int iterations) {
+      this.name = name;
+      this.nsPerOp = new double[iterations];
+    }
+
+    double mean() {
+      double sum = 0;
+      for (double ns : nsPerOp) {
+        sum += ns;
+      }
+      return sum / nsPerOp.length;
+    }
+
+    double stddev() {
+      double mean = mean(), sum = 0;
+      for (double ns : nsPerOp) {
+        sum += (ns - mean) * (ns - mean);
+      }
+      return nsPerOp.length < 2 ? 0 : Math.sqrt(sum / (nsPerOp.length - 1));
+    }
+
+    String toCsv() {
+      return String.format("\"%s\",%.1f,%.1f,%.1f,%d,%d\n", name, mean(), stddev(), bytesPerOp,
+              gcCount, gcTime);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-50s %14.1f +- %10.1f ns/op %14.1f B/op %5d gc %6d ms", name,
+              mean(), stddev(), bytesPerOp, gcCount, gcTime);
+    }
+  }
+}
@@ -0,0 +1,462 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles query trees into scorers specialized for their shape and
+ * retrieval model.  The operators evaluate any tree, but pay for it
+ * on every document: the model is tested with instanceof, arguments
+ * are reached through lists of DaaTPtrs and score lists, and default
+ * scores go through virtual calls that HotSpot cannot inline.  A
+ * compiled scorer makes those decisions once, and scores the postings
+ * of the terms in one loop over primitive arrays, with the model's
+ * parameters and per-term constants in local variables.
+ * <p/>
+ * Compiled shapes are flat operators over terms, which most queries
+ * are: BM25 #SUM, Indri #AND and #WAND, and boolean #AND and #OR.
+ * Other trees are evaluated by their operators as before.  The shape of
+ * a query is its tree with every term replaced by a slot that only
+ * keeps the term's field, e.g. #sum(?.body^1 ?.body^2), so queries that
+ * differ only in their terms share one compiled scorer, which is cached
+ * with the model's parameters.  A scorer only keeps what depends on the
+ * shape, such as weights; length tables are taken from the model each
+ * query is evaluated with, so cached scorers do not keep models alive.
+ * <p/>
+ * Scores are those of document-at-a-time evaluation.  Indri queries
+ * that are planned, or set, to run term-at-a-time are not compiled, so
+ * compiled and uncompiled queries score alike.
+ *
+ * @author junjiah
+ */
+public class QryCompiler {
+
+  private static final int MAX_SHAPES = 1024;
+
+  /**
+   * Compiled scorers by model and shape, least recently used first.
+   */
+  private static final Map<String, Scorer> SCORERS =
+          new LinkedHashMap<String, Scorer>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Scorer> eldest) {
+              return size() > MAX_SHAPES;
+            }
+          };
+
+  private static long compiled = 0;
+
+  private static long reused = 0;
+
+  private QryCompiler() {
+  }
+
+  /**
+   * Compile a query tree, if its shape can be compiled.
+   *
+   * @param query The query tree, rewritten and planned, or null.
+   * @param model The retrieval model the query will be evaluated with.
+   * @return An operator that evaluates the query with a compiled scorer,
+   * or the query itself.
+   * @throws IOException
+   */
+  public static Qryop compile(Qryop query, RetrievalModel model) throws IOException {
+    if (query == null || (query.plan != null && query.plan.strategy == QryPlan.Strategy.EMPTY)) {
+      return query;
+    }
+    if (model instanceof RetrievalModelIndri && query instanceof QryopSlAnd &&
+            ((QryopSlAnd) query).isTermAtATime((RetrievalModelIndri) model)) {
+      return query;
+    }
+
+    List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+    String shape = shape(query, model, terms);
+    if (shape == null) {
+      return query;
+    }
+
+    String key = model + "|" + shape;
+    Scorer scorer;
+    synchronized (SCORERS) {
+      scorer = SCORERS.get(key);
+      if (scorer != null) {
+        reused++;
+      }
+    }
+    if (scorer == null) {
+      scorer = createScorer(query, model, terms.size());
+      synchronized (SCORERS) {
+        SCORERS.put(key, scorer);
+        compiled++;
+      }
+    }
+    return new QryopSlCompiled((QryopSl) query, scorer, terms);
+  }
+
+  /**
+   * @return true if any query was compiled.
+   */
+  public static boolean isUsed() {
+    synchronized (SCORERS) {
+      return compiled > 0;
+    }
+  }
+
+  /**
+   * @return The number of compiled and reused shapes, for reporting.
+   */
+  public static String report() {
+    synchronized (SCORERS) {
+      return String.format("Query compiler: %d shapes compiled, %d reused, %d cached",
+              compiled, reused, SCORERS.size());
+    }
+  }
+
+  /**
+   * Describe the shape of a query, collecting its terms in slot order.
+   *
+   * @return The shape, or null if the query cannot be compiled.
+   */
+  private static String shape(Qryop query, RetrievalModel model, List<QryopIlTerm> terms) {
+    Class<?> type = query.getClass();
+    boolean booleanModel = model instanceof RetrievalModelUnrankedBoolean ||
+            model instanceof RetrievalModelRankedBoolean;
+    String name;
+    if (model instanceof RetrievalModelBM25 && type == QryopSlSum.class) {
+      name = "#sum";
+    } else if (model instanceof RetrievalModelIndri && type == QryopSlAnd.class) {
+      name = "#and";
+    } else if (model instanceof RetrievalModelIndri && type == QryopSlWeightedAnd.class &&
+            ((QryopSlWeighted) query).getWeights().size() == query.args.size()) {
+      name = "#wand";
+    } else if (booleanModel && (type == QryopSlAnd.class || type == QryopSlOr.class)) {
+      name = type == QryopSlAnd.class ? "#and" : "#or";
+    } else {
+      return null;
+    }
+    if (query.args.isEmpty()) {
+      return null;
+    }
+
+    StringBuilder shape = new StringBuilder(name).append('(');
+    for (int i = 0; i < query.args.size(); i++) {
+      Qryop arg = query.args.get(i);
+      if (arg instanceof QryopSlScore) {
+        arg = arg.args.get(0);
+      }
+      if (!(arg instanceof QryopIlTerm)) {
+        return null;
+      }
+      terms.add((QryopIlTerm) arg);
+
+      if (i > 0) {
+        shape.append(' ');
+      }
+      if (type == QryopSlWeightedAnd.class) {
+        shape.append(((QryopSlWeighted) query).getWeights().get(i)).append(' ');
+      }
+      shape.append("?.").append(((QryopIlTerm) arg).getField());
+      if (type == QryopSlSum.class) {
+        shape.append('^').append(((QryopSlSum) query).getQtf(i));
+      }
+    }
+    return shape.append(')').toString();
+  }
+
+  /**
+   * Create the scorer of a shape; everything that does not depend on the
+   * terms is computed here.
+   */
+  private static Scorer createScorer(Qryop query, RetrievalModel model, int n) {
+    if (model instanceof RetrievalModelBM25) {
+      double k_3 = ((RetrievalModelBM25) model).getK_3();
+      double[] userWeights = new double[n];
+      for (int i = 0; i < n; i++) {
+        double qtf = ((QryopSlSum) query).getQtf(i);
+        userWeights[i] = (k_3 + 1) * qtf / (k_3 + qtf);
+      }
+      return new Bm25SumScorer(userWeights);
+    } else if (model instanceof RetrievalModelIndri) {
+      double[] weights = new double[n];
+      double totalWeights = 0;
+      for (int i = 0; i < n; i++) {
+        weights[i] = query instanceof QryopSlWeighted ?
+                ((QryopSlWeighted) query).getWeights().get(i) : 1.0;
+        totalWeights += weights[i];
+      }
+      return new IndriAndScorer(weights, totalWeights);
+    }
+    return new BooleanScorer(query instanceof QryopSlAnd,
+            model instanceof RetrievalModelRankedBoolean);
+  }
+
+  /**
+   * Scores the postings of the terms of one shape.
+   */
+  private abstract static class Scorer {
+
+    /**
+     * @param r          The retrieval model, whose parameters and length
+     *                   tables are used.
+     * @param lists      The inverted list of every slot, within the
+     *                   current partition if any.
+     * @param statistics {df, ctf} of every slot over the whole collection.
+     * @return The scores of the matching documents.
+     * @throws IOException
+     */
+    abstract QryResult score(RetrievalModel r, InvList[] lists, long[][] statistics)
+            throws IOException;
+
+    /**
+     * Whether the scorer needs collection statistics.
+     */
+    boolean needsStatistics() {
+      return true;
+    }
+  }
+
+  private static class Bm25SumScorer extends Scorer {
+
+    private final double[] userWeights;
+
+    Bm25SumScorer(double[] userWeights) {
+      this.userWeights = userWeights;
+    }
+
+    @Override
+    QryResult score(RetrievalModel r, InvList[] lists, long[][] statistics)
+            throws IOException {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+      int n = lists.length;
+      int[][] docids = new int[n][];
+      int[][] tfs = new int[n][];
+      double[] idfs = new double[n];
+      double[][] lengthNorms = new double[n][];
+      for (int i = 0; i < n; i++) {
+        docids[i] = lists[i].getDocidArray();
+        tfs[i] = lists[i].getTfArray();
+        long df = statistics[i][0];
+        int docCount = QryEval.READER.getDocCount(lists[i].field);
+        idfs[i] = Math.log((docCount - df + 0.5) / (df + 0.5));
+        lengthNorms[i] = bm25.getLengthNorms(lists[i].field);
+      }
+
+      QryResult result = new QryResult();
+      int[] next = new int[n];
+      while (true) {
+        int docid = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+          if (next[i] < docids[i].length && docids[i][next[i]] < docid) {
+            docid = docids[i][next[i]];
+          }
+        }
+        if (docid == Integer.MAX_VALUE) {
+          return result;
+        }
+
+        double score = 0;
+        for (int i = 0; i < n; i++) {
+          if (next[i] < docids[i].length && docids[i][next[i]] == docid) {
+            double tf = tfs[i][next[i]++];
+            score += idfs[i] * (tf / (tf + lengthNorms[i][docid])) * userWeights[i];
+          }
+        }
+        result.docScores.add(docid, score);
+      }
+    }
+  }
+
+  private static class IndriAndScorer extends Scorer {
+
+    private final double[] weights;
+
+    private final double totalWeights;
+
+    IndriAndScorer(double[] weights, double totalWeights) {
+      this.weights = weights;
+      this.totalWeights = totalWeights;
+    }
+
+    @Override
+    QryResult score(RetrievalModel r, InvList[] lists, long[][] statistics)
+            throws IOException {
+      QryResult result = new QryResult();
+      if (totalWeights == 0) {
+        return result;
+      }
+
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+      int mu = indri.getMu();
+      double lambda = indri.getLambda();
+      boolean approximate = indri.isApproximateMath();
+      int n = lists.length;
+      int[][] docids = new int[n][];
+      int[][] tfs = new int[n][];
+      double[] ctfParam1 = new double[n];
+      double[] ctfParam2 = new double[n];
+      DocLengthStore.FieldLengths[] docLengths = new DocLengthStore.FieldLengths[n];
+      for (int i = 0; i < n; i++) {
+        docids[i] = lists[i].getDocidArray();
+        tfs[i] = lists[i].getTfArray();
+        double ctfProb = ((double) statistics[i][1]) /
+                QryEval.READER.getSumTotalTermFreq(lists[i].field);
+        ctfParam1[i] = mu * ctfProb;
+        ctfParam2[i] = (1 - lambda) * ctfProb;
+        docLengths[i] = QryEval.LENGTH_STORE.getFieldLengths(lists[i].field);
+      }
+
+      int[] next = new int[n];
+      while (true) {
+        int docid = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+          if (next[i] < docids[i].length && docids[i][next[i]] < docid) {
+            docid = docids[i][next[i]];
+          }
+        }
+        if (docid == Integer.MAX_VALUE) {
+          return result;
+        }
+
+        // a term that does not match gets its default score, tf = 0
+        double docScore = 0;
+        for (int i = 0; i < n; i++) {
+          double p;
+          if (next[i] < docids[i].length && docids[i][next[i]] == docid) {
+            p = lambda * (tfs[i][next[i]++] + ctfParam1[i]) / (docLengths[i].get(docid) + mu) +
+                    ctfParam2[i];
+          } else {
+            p = lambda * ctfParam1[i] / (docLengths[i].get(docid) + mu) + ctfParam2[i];
+          }
+          docScore += (approximate ? FastMath.log(p) : Math.log(p)) * weights[i];
+        }
+        result.docScores.add(docid, docScore / totalWeights);
+      }
+    }
+  }
+
+  private static class BooleanScorer extends Scorer {
+
+    private final boolean and;
+
+    private final boolean ranked;
+
+    BooleanScorer(boolean and, boolean ranked) {
+      this.and = and;
+      this.ranked = ranked;
+    }
+
+    @Override
+    boolean needsStatistics() {
+      return false;
+    }
+
+    @Override
+    QryResult score(RetrievalModel r, InvList[] lists, long[][] statistics) {
+      int n = lists.length;
+      int[][] docids = new int[n][];
+      int[] sizes = new int[n];
+      for (int i = 0; i < n; i++) {
+        docids[i] = lists[i].getDocidArray();
+        sizes[i] = docids[i].length;
+      }
+
+      QryResult result = new QryResult();
+      if (and) {
+        // the smallest term frequency of every common document
+        DocidSetOps.Intersection common = DocidSetOps.intersect(docids, sizes);
+        for (int k = 0; k < common.size; k++) {
+          double score = 1.0;
+          if (ranked) {
+            score = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+              score = Math.min(score, lists[i].getTf(common.positions[i][k]));
+            }
+          }
+          result.docScores.add(common.docids[k], score);
+        }
+        return result;
+      }
+
+      // the largest term frequency of every document
+      int[] next = new int[n];
+      while (true) {
+        int docid = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+          if (next[i] < sizes[i] && docids[i][next[i]] < docid) {
+            docid = docids[i][next[i]];
+          }
+        }
+        if (docid == Integer.MAX_VALUE) {
+          return result;
+        }
+
+        double score = ranked ? Double.NEGATIVE_INFINITY : 1.0;
+        for (int i = 0; i < n; i++) {
+          if (next[i] < sizes[i] && docids[i][next[i]] == docid) {
+            if (ranked) {
+              score = Math.max(score, lists[i].getTf(next[i]));
+            }
+            next[i]++;
+          }
+        }
+        result.docScores.add(docid, score);
+      }
+    }
+  }
+
+  /**
+   * A query evaluated by a compiled scorer.  Its only argument is the
+   * query, which still evaluates it through iterators, and is explained
+   * as usual.
+   */
+  private static class QryopSlCompiled extends QryopSl {
+
+    private final Scorer scorer;
+
+    private final List<QryopIlTerm> terms;
+
+    QryopSlCompiled(QryopSl query, Scorer scorer, List<QryopIlTerm> terms) {
+      this.args.add(query);
+      this.scorer = scorer;
+      this.terms = terms;
+    }
+
+    @Override
+    public void add(Qryop q) {
+      QryEval.fatalError("Error: A compiled query cannot take arguments.");
+    }
+
+    @Override
+    public QryResult evaluate(RetrievalModel r) throws IOException {
+      int n = terms.size();
+      InvList[] lists = new InvList[n];
+      long[][] statistics = new long[n][];
+      PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+      for (int i = 0; i < n; i++) {
+        lists[i] = terms.get(i).evaluate(r).invertedList;
+        statistics[i] = new long[]{lists[i].df, lists[i].ctf};
+        if (partition != null && scorer.needsStatistics()) {
+          statistics[i] = partition.globalStatistics(terms.get(i).toString(),
+                  lists[i].df, lists[i].ctf);
+        }
+      }
+      return scorer.score(r, lists, statistics);
+    }
+
+    @Override
+    public ScoreIterator iterator(RetrievalModel r) throws IOException {
+      return ((QryopSl) args.get(0)).iterator(r);
+    }
+
+    @Override
+    public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+      return ((QryopSl) args.get(0)).getDefaultScore(r, docid);
+    }
+
+    @Override
+    public String toString() {
+      return "#COMPILED( " + args.get(0) + " )";
+    }
+  }
+}
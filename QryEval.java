@@ -12,9 +12,11 @@
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
@@ -22,6 +24,10 @@ import org.apache.lucene.util.Version;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class QryEval {
 
@@ -65,7 +71,7 @@ public class QryEval {
    * @return A map between query id and query result
    * @throws Exception
    */
-  private static Map<Integer, QryResult> getRankResults(Collection<Integer> queryIds,
+  static Map<Integer, QryResult> getRankResults(Collection<Integer> queryIds,
           String fbInitialRankingFile) throws Exception {
     String line;
     Map<Integer, QryResult> initRankResultMap = new HashMap<Integer, QryResult>();
@@ -90,22 +96,24 @@ public class QryEval {
   }
 
   /**
-   * Expand query from query results.
+   * Select expansion terms from query results.
    *
    * @param queryResult Query result
    * @param fbDocs      Number of feedback documents
    * @param fbTerms     Number of feedback terms
    * @param fbMu        Parameter mu for p(t|d)
-   * @return Expaneded query from previously evaluated query result
+   * @param approximate Whether to use the approximate log and exp of {@link FastMath}
+   * @return At most fbTerms expansion terms and their weights, by descending weight
    */
-  private static Qryop expandQuery(QryResult queryResult, int fbDocs, int fbTerms, int fbMu)
-          throws IOException {
+  static List<Map.Entry<String, Double>> expansionTerms(QryResult queryResult, int fbDocs,
+          int fbTerms, int fbMu, boolean approximate) throws IOException {
     Map<String, Double> termScore = new HashMap<String, Double>();
     Map<String, Double> ctfProb = new HashMap<String, Double>();
     List<TermVector> termVectorList = new ArrayList<TermVector>(fbDocs);
     List<Double> scoreList = new ArrayList<Double>(fbDocs);
     List<Long> lengthList = new ArrayList<Long>(fbDocs);
     long fieldLength = READER.getSumTotalTermFreq("body");
+    DocLengthStore.FieldLengths docLengths = LENGTH_STORE.getFieldLengths("body");
 
     for (int i = 0; i < fbDocs && i < queryResult.docScores.scores.size(); ++i) {
       int internalId = queryResult.docScores.getDocid(i);
@@ -113,10 +121,10 @@ public class QryEval {
       Double score = queryResult.docScores.getDocidScore(i);
       // if in log space, convert back
       if (score < 0)
-        score = Math.exp(score);
+        score = approximate ? FastMath.exp(score) : Math.exp(score);
 
       // record length, score and term vector separately
-      lengthList.add(LENGTH_STORE.getDocLength("body", internalId));
+      lengthList.add((long) docLengths.get(internalId));
       scoreList.add(score);
       TermVector termVector = new TermVector(internalId, "body");
       termVectorList.add(termVector);
@@ -133,6 +141,13 @@ public class QryEval {
       }
     }
 
+    // idf part of the term score, computed once per term
+    Map<String, Double> idf = new HashMap<String, Double>();
+    for (Map.Entry<String, Double> entry : ctfProb.entrySet()) {
+      double inverse = 1 / entry.getValue();
+      idf.put(entry.getKey(), approximate ? FastMath.log(inverse) : Math.log(inverse));
+    }
+
     // iterate all documents to get terms and their scores
     for (int i = 0; i < termVectorList.size(); ++i) {
       TermVector termVector = termVectorList.get(i);
@@ -152,7 +167,7 @@ public class QryEval {
           tf = termFreq.get(term);
         }
         double tGivenC = ctfProb.get(term);
-        currentScore += (tf + fbMu * tGivenC) / (length + fbMu) * score * Math.log(1 / tGivenC);
+        currentScore += (tf + fbMu * tGivenC) / (length + fbMu) * score * idf.get(term);
         termScore.put(term, currentScore);
       }
     }
@@ -168,11 +183,21 @@ public class QryEval {
       }
     });
 
+    int termLimit = Math.min(fbTerms, sortedTermScore.size());
+    return sortedTermScore.subList(0, termLimit);
+  }
+
+  /**
+   * Build the expanded query from expansion terms.
+   *
+   * @param expansionTerms Expansion terms and their weights, see
+   *                       {@link #expansionTerms}
+   * @return A new expanded query
+   */
+  static QryopSlWeightedAnd buildExpandedQuery(List<Map.Entry<String, Double>> expansionTerms) {
     // build the final query!
     QryopSlWeightedAnd expandedQuery = new QryopSlWeightedAnd();
-    int termLimit = Math.min(fbTerms, sortedTermScore.size());
-    for (int i = 0; i < termLimit; ++i) {
-      Map.Entry<String, Double> entry = sortedTermScore.get(i);
+    for (Map.Entry<String, Double> entry : expansionTerms) {
       expandedQuery.add(entry.getValue());
       expandedQuery.add(new QryopIlTerm(entry.getKey(), "body"));
     }
@@ -193,48 +218,168 @@ public class QryEval {
       System.exit(1);
     }
 
-    // read in the parameter file; one parameter per line in format of key=value
-    Map<String, String> params = new HashMap<String, String>();
-    Scanner scan = new Scanner(new File(args[0]));
-    String line;
-    do {
-      line = scan.nextLine();
-      String[] pair = line.split("=");
-      params.put(pair[0].trim(), pair[1].trim());
-    } while (scan.hasNext());
-    scan.close();
+    Map<String, String> params = readParameters(args[0]);
+    openIndex(params);
 
-    // parameters required for this example to run
-    if (!params.containsKey("indexPath")) {
-      fatalError("Error: Parameter 'indexPath' was missing.");
-    }
+    // open query input file and read queries
+    Map<Integer, String> queryStrings = readQueries(params.get("queryFilePath"));
 
-    // open the index and LENGTH_STORE
-    READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
-    try {
-      LENGTH_STORE = new DocLengthStore(QryEval.READER);
-    } catch (IOException e) {
-      fatalError("Error: DocLengthStore initialization error");
+    // define the retrieval model and feedback settings from parameter file
+    final QryEvalContext context = new QryEvalContext(params, queryStrings.keySet());
+
+    int threads = 1;
+    if (params.containsKey("threads")) {
+      threads = Integer.parseInt(params.get("threads"));
     }
+    String threadType = params.containsKey("threadType") ? params.get("threadType") : "platform";
+    int batchSize = 0;
+    if (params.containsKey("batchSize")) {
+      batchSize = Integer.parseInt(params.get("batchSize"));
+    }
+    ExecutorService executor = createExecutor(threadType, threads);
+    configureIntraQuery(params);
+    configureCaches(params);
+
+    // with relevance judgments, rankings are evaluated in memory, and the
+    // run file is only written if asked for
+    if (!params.containsKey("trecEvalOutputPath") && !params.containsKey("qrelsFilePath")) {
+      fatalError("Error: Parameter 'trecEvalOutputPath' was missing.");
+    }
+    final QrelsEvaluator qrels = params.containsKey("qrelsFilePath") ?
+            new QrelsEvaluator(params.get("qrelsFilePath")) : null;
+    QrelsEvaluator.Summary summary = new QrelsEvaluator.Summary();
 
-    if (READER == null) {
-      fatalError(usage);
+    // evaluate and create the trec_eval output
+    // take different ranking source according to feedback parameters
+    BufferedWriter rankWriter = null, queryWriter = null;
+    if (params.containsKey("fb") && params.get("fb").equalsIgnoreCase("true") &&
+            params.containsKey("fbExpansionQueryFile")) {
+      queryWriter = new BufferedWriter(
+              new FileWriter(new File(params.get("fbExpansionQueryFile"))));
     }
 
-    // define the retrieval model from parameter file
-    RetrievalModel model = null;
     try {
-      model = (RetrievalModel) Class.forName(
-              "RetrievalModel" + params.get("retrievalAlgorithm")).newInstance();
+      if (params.containsKey("trecEvalOutputPath")) {
+        rankWriter = new BufferedWriter(
+                new FileWriter(new File(params.get("trecEvalOutputPath"))));
+      }
+
+      // queries are evaluated concurrently, results are written in input order;
+      // with batchSize set, each batch reads the inverted lists of its terms once
+      List<Map.Entry<Integer, String>> entries =
+              new ArrayList<Map.Entry<Integer, String>>(queryStrings.entrySet());
+      int batch = batchSize > 0 ? batchSize : Math.max(entries.size(), 1);
+
+      double sumTau = 0;
+      int numTau = 0;
+      for (int from = 0; from < entries.size(); from += batch) {
+        List<Map.Entry<Integer, String>> batchEntries =
+                entries.subList(from, Math.min(from + batch, entries.size()));
+
+        SharedPostings batchPostings = null;
+        if (batchSize > 0) {
+          List<String> batchQueries = new ArrayList<String>(batchEntries.size());
+          for (Map.Entry<Integer, String> entry : batchEntries) {
+            batchQueries.add(entry.getValue());
+          }
+          batchPostings = context.prefetch(batchQueries);
+        }
+        final SharedPostings postings = batchPostings;
+
+        List<Future<QryEvalContext.Output>> futures =
+                new ArrayList<Future<QryEvalContext.Output>>(batchEntries.size());
+        for (final Map.Entry<Integer, String> entry : batchEntries) {
+          futures.add(executor.submit(new Callable<QryEvalContext.Output>() {
+            @Override
+            public QryEvalContext.Output call() throws Exception {
+              QryEvalContext.Output output =
+                      context.evaluate(entry.getKey(), entry.getValue(), postings);
+              if (qrels != null) {
+                output.measures = qrels.evaluate(output.queryId, output.externalIds);
+              }
+              return output;
+            }
+          }));
+        }
+
+        for (Future<QryEvalContext.Output> future : futures) {
+          QryEvalContext.Output output = future.get();
+
+          // write expanded query if needed
+          if (queryWriter != null && output.expandedQuery != null) {
+            queryWriter.write(output.queryId + ": " + output.expandedQuery + "\n");
+          }
+
+          if (!Double.isNaN(output.kendallTau)) {
+            System.out.println("Kendall's tau of query " + output.queryId + ": " + output.kendallTau);
+            sumTau += output.kendallTau;
+            numTau++;
+          }
+
+          if (output.measures != null) {
+            System.out.print(QrelsEvaluator.format(String.valueOf(output.queryId),
+                    output.measures));
+            summary.add(output.measures);
+          }
+
+          // write to evaluation file
+          if (rankWriter != null) {
+            rankWriter.write(output.rankLines);
+          }
+        }
+      }
+
+      if (numTau > 0) {
+        System.out.println("Mean Kendall's tau: " + sumTau / numTau);
+      }
+      if (qrels != null) {
+        System.out.print(summary.report());
+      }
+      if (ResultCache.isEnabled()) {
+        System.out.println(ResultCache.report());
+      }
+      if (DiskCache.isEnabled()) {
+        System.out.println(DiskCache.report());
+      }
+      if (SubtreeCache.isEnabled()) {
+        System.out.println(SubtreeCache.report());
+      }
+      if (QryCompiler.isUsed()) {
+        System.out.println(QryCompiler.report());
+      }
     } catch (Exception e) {
-      fatalError("Error: Failed to load specified retrieval model.");
+      e.printStackTrace();
+      fatalError("Error: Evaluation failed.");
+    } finally {
+      executor.shutdown();
+      if (rankWriter != null) {
+        rankWriter.close();
+      }
+      if (queryWriter != null) {
+        queryWriter.close();
+      }
     }
 
-    // open query input file and read queries
+    // print evaluation time
+    final long endTime = System.currentTimeMillis();
+    System.out.println("Total evaluation time: " + (endTime - startTime) / 1000.0 + " seconds");
+    printMemoryUsage(false);
+  }
+
+  /**
+   * Read the query file; one query per line in format of
+   * queryId:queryString, up to the first empty line.
+   *
+   * @param path Path to the query file.
+   * @return The queries by id, in file order.
+   * @throws IOException
+   */
+  static Map<Integer, String> readQueries(String path) throws IOException {
+    String line;
     Map<Integer, String> queryStrings = new LinkedHashMap<Integer, String>();
     BufferedReader queryFileReader = null;
     try {
-      queryFileReader = new BufferedReader(new FileReader(params.get("queryFilePath")));
+      queryFileReader = new BufferedReader(new FileReader(path));
 
       while ((line = queryFileReader.readLine()) != null) {
         line = line.trim();
@@ -252,150 +397,258 @@ public class QryEval {
       assert queryFileReader != null;
       queryFileReader.close();
     }
+    return queryStrings;
+  }
 
-    // evaluate and create the trec_eval output
-    // take different ranking source according to feedback parameters
-    BufferedWriter rankWriter = null, queryWriter = null;
-    Map<Integer, QryResult> initRankResult = null;
-    boolean needFeedBack = params.containsKey("fb") && (params.get("fb").equalsIgnoreCase("true"));
-    if (needFeedBack) {
-      if (params.containsKey("fbExpansionQueryFile")) {
-        queryWriter = new BufferedWriter(
-                new FileWriter(new File(params.get("fbExpansionQueryFile"))));
+  /**
+   * Read in the parameter file; one parameter per line in format of
+   * key=value.
+   *
+   * @param path Path to the parameter file.
+   * @return The parameters.
+   * @throws IOException
+   */
+  static Map<String, String> readParameters(String path) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    Scanner scan = new Scanner(new File(path));
+    String line;
+    do {
+      line = scan.nextLine();
+      String[] pair = line.split("=");
+      params.put(pair[0].trim(), pair[1].trim());
+    } while (scan.hasNext());
+    scan.close();
+    return params;
+  }
+
+  /**
+   * Open the index and LENGTH_STORE.  They are shared by all threads,
+   * so this must be done before any query is evaluated.
+   *
+   * @param params The parameters read from the parameter file.
+   * @throws IOException
+   */
+  static void openIndex(Map<String, String> params) throws IOException {
+    // parameters required for this example to run
+    if (!params.containsKey("indexPath")) {
+      fatalError("Error: Parameter 'indexPath' was missing.");
+    }
+
+    READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+    try {
+      LENGTH_STORE = new DocLengthStore(QryEval.READER);
+    } catch (IOException e) {
+      fatalError("Error: DocLengthStore initialization error");
+    }
+
+    if (READER == null) {
+      fatalError(usage);
+    }
+  }
+
+  /**
+   * Set up the parallel evaluation of single queries.
+   * <p/>
+   * Parameter intraQueryThreads is the size of the fork-join pool that
+   * evaluates independent query arguments (0, the default, evaluates
+   * sequentially), and forkJoinMinCost is the number of postings an
+   * argument must read to be evaluated on another thread.
+   * <p/>
+   * Parameter partitions is the number of docid ranges that a query is
+   * split into (1, the default, evaluates queries whole), and
+   * partitionMinCost is the number of postings a query must read to be
+   * split.
+   *
+   * @param params The parameters read from the parameter file.
+   */
+  static void configureIntraQuery(Map<String, String> params) {
+    int intraQueryThreads = 0, partitions = 1;
+    long forkJoinMinCost = 10000, partitionMinCost = 100000;
+    try {
+      if (params.containsKey("intraQueryThreads")) {
+        intraQueryThreads = Integer.parseInt(params.get("intraQueryThreads"));
       }
-      if (params.containsKey("fbInitialRankingFile"))
-        initRankResult = getRankResults(queryStrings.keySet(), params.get("fbInitialRankingFile"));
+      if (params.containsKey("forkJoinMinCost")) {
+        forkJoinMinCost = Long.parseLong(params.get("forkJoinMinCost"));
+      }
+      if (params.containsKey("partitions")) {
+        partitions = Integer.parseInt(params.get("partitions"));
+      }
+      if (params.containsKey("partitionMinCost")) {
+        partitionMinCost = Long.parseLong(params.get("partitionMinCost"));
+      }
+    } catch (NumberFormatException e) {
+      fatalError("Error: Parsing intra-query parallelism parameters error!");
     }
+    ParallelEvaluator.configure(intraQueryThreads, forkJoinMinCost);
+    PartitionedEvaluator.configure(partitions, partitionMinCost);
+  }
 
+  /**
+   * Set up the caches.  Parameter resultCacheSize is the number of query
+   * results kept in memory (0, the default, disables the cache), and
+   * cacheDirectory is where results and expansion terms are kept across
+   * runs (no directory, the default, disables the cache).  Parameter
+   * subtreeCacheSize is the number of postings of #NEAR, #WINDOW and
+   * #SYN results kept in memory (0, the default, disables the cache).
+   * The index must be open.
+   *
+   * @param params The parameters read from the parameter file.
+   * @throws IOException
+   */
+  static void configureCaches(Map<String, String> params) throws IOException {
+    int resultCacheSize = 0;
+    long subtreeCacheSize = 0;
     try {
-      rankWriter = new BufferedWriter(new FileWriter(new File(params.get("trecEvalOutputPath"))));
-      // add default query operator depending on retrieval model
-      // and set parameters accordingly
-      Qryop defaultQryop;
-
-      QryResult result;
-
-      if (model instanceof RetrievalModelBM25) {
-        model.setParameter("k_1", params.get("BM25:k_1"));
-        model.setParameter("k_3", params.get("BM25:k_3"));
-        model.setParameter("b", params.get("BM25:b"));
-        defaultQryop = new QryopSlSum();
-      } else if (model instanceof RetrievalModelIndri) {
-        model.setParameter("mu", params.get("Indri:mu"));
-        model.setParameter("lambda", params.get("Indri:lambda"));
-        defaultQryop = new QryopSlAnd();
-      } else {
-        // no parameter to read
-        defaultQryop = new QryopSlOr();
+      if (params.containsKey("resultCacheSize")) {
+        resultCacheSize = Integer.parseInt(params.get("resultCacheSize"));
       }
+      if (params.containsKey("subtreeCacheSize")) {
+        subtreeCacheSize = Long.parseLong(params.get("subtreeCacheSize"));
+      }
+    } catch (NumberFormatException e) {
+      fatalError("Error: Parsing cache parameters error!");
+    }
+    ResultCache.configure(resultCacheSize);
+    SubtreeCache.configure(subtreeCacheSize);
+    DiskCache.configure(params.get("cacheDirectory"));
+  }
 
-      for (Map.Entry<Integer, String> entry : queryStrings.entrySet()) {
-        int queryId = entry.getKey();
-        defaultQryop.clear();
-        // parse the query, then evaluate
-        Qryop parsedQuery = parseQuery(entry.getValue(), defaultQryop);
-
-        /**
-         * If relevance feedback is specified, re-evaluate the query
-         */
-        if (needFeedBack) {
-          Qryop expandedQuery;
-          int fbDocs = 0;
-          int fbTerms = 0;
-          int fbMu = 0;
-          double fbOrigWeight = 0;
-          try {
-            fbDocs = Integer.parseInt(params.get("fbDocs"));
-            fbTerms = Integer.parseInt(params.get("fbTerms"));
-            fbMu = Integer.parseInt(params.get("fbMu"));
-            fbOrigWeight = Double.parseDouble(params.get("fbOrigWeight"));
-          } catch (Exception e) {
-            e.printStackTrace();
-            fatalError("ERROR: Parsing FB parameters error!");
-          }
-          if (initRankResult == null) {
-            // expand by my result
-            result = parsedQuery.evaluate(model);
-            result.docScores.sortAndTruncate();
-            expandedQuery = expandQuery(result, fbDocs, fbTerms, fbMu);
-          } else {
-            // expand by init rank file
-            result = initRankResult.get(queryId);
-            expandedQuery = expandQuery(result, fbDocs, fbTerms, fbMu);
-          }
+  /**
+   * Create the pool that queries are evaluated on.  Virtual threads need
+   * Java 21; on older runtimes platform threads are used instead.
+   *
+   * @param threadType Either "platform" or "virtual".
+   * @param threads    Number of platform threads; ignored for virtual
+   *                   threads, which are created per query.
+   * @return The executor.
+   */
+  static ExecutorService createExecutor(String threadType, int threads) {
+    if (threads < 1) {
+      fatalError("Error: Parameter 'threads' must be positive.");
+    }
 
-          // write expanded query if needed
-          if (queryWriter != null) {
-            queryWriter.write(queryId + ": " + expandedQuery + "\n");
-          }
+    if (threadType.equalsIgnoreCase("virtual")) {
+      try {
+        // looked up reflectively so that the code still runs on older JVMs
+        return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+        System.err.println("Warning: Virtual threads are not available, using platform threads.");
+      }
+    } else if (!threadType.equalsIgnoreCase("platform")) {
+      fatalError("Error: Unknown threadType '" + threadType + "'.");
+    }
+    return Executors.newFixedThreadPool(threads);
+  }
 
-          QryopSlWeightedAnd combinedQuery = new QryopSlWeightedAnd();
-          combinedQuery.add(fbOrigWeight);
-          combinedQuery.add(parsedQuery);
-          combinedQuery.add(1 - fbOrigWeight);
-          combinedQuery.add(expandedQuery);
-          result = combinedQuery.evaluate(model);
-        } else {
-          // one simple run of evaluation
-          result = parsedQuery.evaluate(model);
-        }
+  /**
+   * Create the retrieval model named by the parameter file and set its
+   * parameters.
+   *
+   * @param params The parameters read from the parameter file.
+   * @return The configured retrieval model.
+   */
+  static RetrievalModel createModel(Map<String, String> params) {
+    RetrievalModel model = null;
+    try {
+      model = (RetrievalModel) Class.forName(
+              "RetrievalModel" + params.get("retrievalAlgorithm")).newInstance();
+    } catch (Exception e) {
+      fatalError("Error: Failed to load specified retrieval model.");
+    }
 
-        result.docScores.sortAndTruncate();
-        // write to evaluation file
-        if (result.docScores.scores.size() < 1) {
-          rankWriter.write(queryId + " Q0 dummy 1 0 run-1\n");
-        } else {
-          for (int j = 0; j < result.docScores.scores.size(); ++j) {
-            String s = String.format("%d Q0 %s %d %.10f run-1\n",
-                    queryId,                                        // query id
-                    getExternalDocid(result.docScores.getDocid(j)), // external id
-                    j + 1,                                          // rank
-                    result.docScores.getDocidScore(j));
-            rankWriter.write(s);
-          }
-        }
+    if (model instanceof RetrievalModelBM25) {
+      model.setParameter("k_1", params.get("BM25:k_1"));
+      model.setParameter("k_3", params.get("BM25:k_3"));
+      model.setParameter("b", params.get("BM25:b"));
+      if (params.containsKey("scoringKernel")) {
+        model.setParameter("kernel", params.get("scoringKernel"));
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-      fatalError("Error: Evaluation failed.");
-    } finally {
-      if (rankWriter != null) {
-        rankWriter.close();
+    } else if (model instanceof RetrievalModelIndri) {
+      model.setParameter("mu", params.get("Indri:mu"));
+      model.setParameter("lambda", params.get("Indri:lambda"));
+      if (params.containsKey("scoringKernel")) {
+        model.setParameter("kernel", params.get("scoringKernel"));
       }
-      if (queryWriter != null) {
-        queryWriter.close();
+      if (params.containsKey("Indri:evaluation")) {
+        model.setParameter("evaluation", params.get("Indri:evaluation"));
+      }
+      if (params.containsKey("approximateMath")) {
+        model.setParameter("approximateMath", params.get("approximateMath"));
       }
     }
+    // other models have no parameter to read
+    return model;
+  }
 
-    // print evaluation time
-    final long endTime = System.currentTimeMillis();
-    System.out.println("Total evaluation time: " + (endTime - startTime) / 1000.0 + " seconds");
-    printMemoryUsage(false);
+  /**
+   * Create the query operator that unstructured queries default to
+   * under the specified retrieval model.
+   *
+   * @param model The retrieval model.
+   * @return A new, empty default query operator.
+   */
+  static Qryop createDefaultQryop(RetrievalModel model) {
+    if (model instanceof RetrievalModelBM25) {
+      return new QryopSlSum();
+    } else if (model instanceof RetrievalModelIndri) {
+      return new QryopSlAnd();
+    } else {
+      return new QryopSlOr();
+    }
   }
 
+  /**
+   * Whether {@link #fatalError} exits.  The query server must survive a
+   * bad request, so it turns this off.
+   */
+  static volatile boolean exitOnFatalError = true;
+
   /**
    * Write an error message and exit.  This can be done in other
    * ways, but I wanted something that takes just one statement so
    * that it is easy to insert checks without cluttering the code.
+   * If {@link #exitOnFatalError} is off, a {@link FatalError} is thrown
+   * instead, which aborts the current request.
    *
    * @param message The error message to write before exiting.
    * @return void
    */
   static void fatalError(String message) {
+    if (!exitOnFatalError) {
+      throw new FatalError(message);
+    }
     System.err.println(message);
     System.exit(1);
   }
 
+  /**
+   * An error that would have ended the program if it were not serving
+   * requests.
+   */
+  static class FatalError extends RuntimeException {
+
+    FatalError(String message) {
+      super(message);
+    }
+  }
+
   /**
    * Get the external document id for a document specified by an
    * internal document id. If the internal id doesn't exists, returns null.
+   * Only the externalId field is read, from the segment that holds the
+   * document.
    *
    * @param iid The internal document id of the document.
    * @throws IOException
    */
   static String getExternalDocid(int iid) throws IOException {
-    Document d = QryEval.READER.document(iid);
-    return d.get("externalId");
+    List<AtomicReaderContext> leaves = QryEval.READER.leaves();
+    AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(iid, leaves));
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("externalId");
+    leaf.reader().document(iid - leaf.docBase, visitor);
+    return visitor.getDocument().get("externalId");
   }
 
   /**
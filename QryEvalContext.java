@@ -0,0 +1,566 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything needed to evaluate queries under one parameter file: the
+ * retrieval model, the feedback settings and the initial rankings.
+ * A context is immutable once constructed, and every evaluation builds
+ * its own query tree, so one context can evaluate many queries on
+ * different threads at the same time.
+ *
+ * @author junjiah
+ */
+public class QryEvalContext {
+
+  private final RetrievalModel model;
+
+  /**
+   * Exact copy of an approximate model, to report rank correlations.
+   * Null unless approximateMathReport is set.
+   */
+  private final RetrievalModel exactModel;
+
+  private final boolean needFeedBack;
+
+  private final boolean approximateMath;
+
+  private final int fbDocs;
+
+  private final int fbTerms;
+
+  private final int fbMu;
+
+  private final double fbOrigWeight;
+
+  /**
+   * Whether parsed queries are simplified by {@link QryRewriter}.
+   */
+  private final boolean rewriteQueries;
+
+  /**
+   * Whether the query tree that is evaluated is printed.
+   */
+  private final boolean logRewrittenQuery;
+
+  /**
+   * Whether query trees are planned by {@link QryPlanner}.
+   */
+  private final boolean planQueries;
+
+  /**
+   * Whether the plan of every query is printed after evaluation.
+   */
+  private final boolean explain;
+
+  /**
+   * Whether queries are evaluated one document at a time through
+   * operator iterators, without intermediate lists.
+   */
+  private final boolean streamQueries;
+
+  /**
+   * Whether flat queries are evaluated by scorers compiled for their
+   * shape, see {@link QryCompiler}.
+   */
+  private final boolean compileQueries;
+
+  /**
+   * Initial rankings to expand queries from, or null to expand from
+   * the results of the queries themselves.
+   */
+  private final Map<Integer, QryResult> initRankResult;
+
+  /**
+   * Settings other than the model that change results, for the keys of
+   * {@link ResultCache} and {@link DiskCache}.
+   */
+  private final String settings;
+
+  /**
+   * Settings that change the expansion terms of a query.
+   */
+  private final String expansionSettings;
+
+  /**
+   * Settings of the initial ranking that queries are expanded from.
+   */
+  private final String initialSettings;
+
+  /**
+   * Whether results may be cached.  Not with initial rankings, which
+   * depend on the query id, nor with rank correlation reports, which
+   * need the evaluation.
+   */
+  private final boolean cacheable;
+
+  /**
+   * Read the evaluation settings from the parameters.
+   *
+   * @param params   The parameters read from the parameter file.
+   * @param queryIds Ids of the queries that will be evaluated.
+   * @throws Exception
+   */
+  public QryEvalContext(Map<String, String> params, Collection<Integer> queryIds)
+          throws Exception {
+    this.model = QryEval.createModel(params);
+
+    if (params.containsKey("approximateMathReport") &&
+            params.get("approximateMathReport").equalsIgnoreCase("true")) {
+      Map<String, String> exactParams = new HashMap<String, String>(params);
+      exactParams.put("approximateMath", "false");
+      this.exactModel = QryEval.createModel(exactParams);
+    } else {
+      this.exactModel = null;
+    }
+
+    this.needFeedBack = params.containsKey("fb") && (params.get("fb").equalsIgnoreCase("true"));
+    this.approximateMath = params.containsKey("approximateMath") &&
+            params.get("approximateMath").equalsIgnoreCase("true");
+
+    this.rewriteQueries = !params.containsKey("rewriteQueries") ||
+            params.get("rewriteQueries").equalsIgnoreCase("true");
+    this.logRewrittenQuery = params.containsKey("logRewrittenQuery") &&
+            params.get("logRewrittenQuery").equalsIgnoreCase("true");
+    this.planQueries = !params.containsKey("planQueries") ||
+            params.get("planQueries").equalsIgnoreCase("true");
+    this.explain = params.containsKey("explain") &&
+            params.get("explain").equalsIgnoreCase("true");
+    this.streamQueries = params.containsKey("streamQueries") &&
+            params.get("streamQueries").equalsIgnoreCase("true");
+    this.compileQueries = !params.containsKey("compileQueries") ||
+            params.get("compileQueries").equalsIgnoreCase("true");
+
+    int docs = 0, terms = 0, mu = 0;
+    double origWeight = 0;
+    Map<Integer, QryResult> initRank = null;
+    if (needFeedBack) {
+      try {
+        docs = Integer.parseInt(params.get("fbDocs"));
+        terms = Integer.parseInt(params.get("fbTerms"));
+        mu = Integer.parseInt(params.get("fbMu"));
+        origWeight = Double.parseDouble(params.get("fbOrigWeight"));
+      } catch (Exception e) {
+        QryEval.fatalError("ERROR: Parsing FB parameters error!");
+      }
+      if (params.containsKey("fbInitialRankingFile")) {
+        initRank = QryEval.getRankResults(queryIds, params.get("fbInitialRankingFile"));
+      }
+    }
+    this.fbDocs = docs;
+    this.fbTerms = terms;
+    this.fbMu = mu;
+    this.fbOrigWeight = origWeight;
+    this.initRankResult = initRank;
+
+    // planned, compiled and streamed evaluation may round scores
+    // differently, so their results are not shared
+    String evaluation = "eval(plan=" + planQueries + ",compile=" + compileQueries +
+            ",stream=" + streamQueries + ")";
+    this.initialSettings = "nofb," + evaluation;
+    this.settings = needFeedBack ?
+            "fb(docs=" + fbDocs + ",terms=" + fbTerms + ",mu=" + fbMu +
+                    ",origWeight=" + fbOrigWeight + ",approximateMath=" + approximateMath + ")," +
+                    evaluation :
+            initialSettings;
+    this.expansionSettings = "expansion(docs=" + fbDocs + ",terms=" + fbTerms + ",mu=" + fbMu +
+            ",approximateMath=" + approximateMath + ")," + evaluation;
+    this.cacheable = initRankResult == null && exactModel == null;
+  }
+
+  /**
+   * @return The retrieval model queries are evaluated with.
+   */
+  public RetrievalModel getModel() {
+    return model;
+  }
+
+  /**
+   * Fetch the inverted lists of all terms of a batch of queries once.
+   * Queries whose results are already cached are left out, since they
+   * are not evaluated again.
+   *
+   * @param queryStrings The queries of the batch.
+   * @return The shared inverted lists.
+   * @throws IOException
+   */
+  public SharedPostings prefetch(Collection<String> queryStrings) throws IOException {
+    List<Qryop> queries = new ArrayList<Qryop>(queryStrings.size());
+    for (String queryString : queryStrings) {
+      Qryop query = parse(queryString, null);
+      if (query == null) {
+        continue;
+      }
+      if (cacheable && (ResultCache.isEnabled() || DiskCache.isEnabled()) &&
+              lookup(ResultCache.key(model, settings, ResultCache.canonicalQuery(query))) != null) {
+        continue;
+      }
+      queries.add(query);
+    }
+    return new SharedPostings(queries);
+  }
+
+  /**
+   * Evaluate one query, including relevance feedback if it is enabled.
+   *
+   * @param queryId     The query id.
+   * @param queryString The query.
+   * @return The ranked results and the by-products of the evaluation.
+   * @throws Exception
+   */
+  public Output evaluate(int queryId, String queryString) throws Exception {
+    return evaluate(queryId, queryString, null);
+  }
+
+  /**
+   * Evaluate one query of a batch, including relevance feedback if it is
+   * enabled.
+   *
+   * @param queryId     The query id.
+   * @param queryString The query.
+   * @param postings    Inverted lists shared by the batch, see
+   *                    {@link #prefetch(Collection)}, or null.
+   * @return The ranked results and the by-products of the evaluation.
+   * @throws Exception
+   */
+  public Output evaluate(final int queryId, final String queryString,
+          final SharedPostings postings) throws Exception {
+    if (logRewrittenQuery) {
+      System.out.println("Query " + queryId + ": " + parse(queryString, null));
+    }
+
+    // canonical form of the query, if results may be cached
+    String canonical = null;
+    if (cacheable && (ResultCache.isEnabled() || DiskCache.isEnabled())) {
+      Qryop parsedQuery = parse(queryString, null);
+      if (parsedQuery != null) {
+        canonical = ResultCache.canonicalQuery(parsedQuery);
+      }
+    }
+    String cacheKey = canonical == null ? null : ResultCache.key(model, settings, canonical);
+    ResultCache.Entry cached = lookup(cacheKey);
+    if (cached != null) {
+      return cachedOutput(queryId, cached);
+    }
+
+    Output output = new Output(queryId);
+
+    // parse the query into a tree of its own, then evaluate; streamed
+    // queries are evaluated through the iterators of their operators
+    PartitionedEvaluator.QueryBuilder query = new PartitionedEvaluator.QueryBuilder() {
+      @Override
+      public Qryop build() throws IOException {
+        Qryop tree = parse(queryString, postings);
+        return compileQueries && !streamQueries ? QryCompiler.compile(tree, model) : tree;
+      }
+    };
+    PartitionedEvaluator.QueryBuilder finalQuery;
+
+    /**
+     * If relevance feedback is specified, re-evaluate the query
+     */
+    if (needFeedBack) {
+      final List<Map.Entry<String, Double>> expansionTerms = expand(queryId, query, canonical);
+      output.expandedQuery = QryEval.buildExpandedQuery(expansionTerms).toString();
+
+      finalQuery = new PartitionedEvaluator.QueryBuilder() {
+        @Override
+        public Qryop build() throws IOException {
+          QryopSlWeightedAnd combinedQuery = new QryopSlWeightedAnd();
+          combinedQuery.add(fbOrigWeight);
+          combinedQuery.add(parse(queryString, null));
+          combinedQuery.add(1 - fbOrigWeight);
+          combinedQuery.add(QryEval.buildExpandedQuery(expansionTerms));
+          if (planQueries) {
+            QryPlanner.plan(combinedQuery, model);
+          }
+          if (postings != null) {
+            postings.bind(combinedQuery);
+          }
+          return combinedQuery;
+        }
+      };
+    } else {
+      // one simple run of evaluation
+      finalQuery = query;
+    }
+
+    // keep the trees to explain, one per partition
+    final List<Qryop> trees = new ArrayList<Qryop>();
+    if (explain) {
+      final PartitionedEvaluator.QueryBuilder explained = finalQuery;
+      finalQuery = new PartitionedEvaluator.QueryBuilder() {
+        @Override
+        public Qryop build() throws IOException {
+          Qryop tree = explained.build();
+          if (tree != null) {
+            trees.add(tree);
+          }
+          return tree;
+        }
+      };
+    }
+    QryResult result = PartitionedEvaluator.evaluate(finalQuery, model, streamQueries);
+    if (!trees.isEmpty()) {
+      System.out.print("Plan of query " + queryId + ":\n" + QryPlanner.explain(trees));
+    }
+
+    result.docScores.sortAndTruncate();
+    output.docScores = result.docScores;
+
+    if (exactModel != null) {
+      QryResult exactResult = QryEval.parseQuery(queryString,
+              QryEval.createDefaultQryop(exactModel)).evaluate(exactModel);
+      QryResult approxResult = QryEval.parseQuery(queryString,
+              QryEval.createDefaultQryop(model)).evaluate(model);
+      exactResult.docScores.sortAndTruncate();
+      approxResult.docScores.sortAndTruncate();
+      output.kendallTau = RankCorrelation.kendallTau(exactResult.docScores,
+              approxResult.docScores);
+    }
+
+    // look up external ids here rather than in the thread writing the results
+    ResultCache.Entry entry = toEntry(result.docScores, output.expandedQuery);
+    output.externalIds = entry.externalIds;
+    output.rankLines = formatRankLines(queryId, entry.externalIds, entry.scores);
+    store(cacheKey, entry);
+    return output;
+  }
+
+  /**
+   * Select the expansion terms of a query.
+   *
+   * @param queryId   The query id.
+   * @param query     Builds the original query.
+   * @param canonical Canonical form of the query, or null if it may not
+   *                  be cached.
+   * @return The expansion terms and their weights.
+   * @throws IOException
+   */
+  private List<Map.Entry<String, Double>> expand(int queryId,
+          PartitionedEvaluator.QueryBuilder query, String canonical) throws IOException {
+    if (initRankResult != null) {
+      // expand by init rank file
+      return QryEval.expansionTerms(initRankResult.get(queryId), fbDocs, fbTerms, fbMu,
+              approximateMath);
+    }
+
+    // expand by my result; the expansion does not depend on fbOrigWeight,
+    // and the initial ranking is that of a run without feedback, so both
+    // are cached under their own keys
+    String expansionKey = null, initialKey = null;
+    if (canonical != null) {
+      expansionKey = ResultCache.key(model, expansionSettings, canonical);
+      initialKey = ResultCache.key(model, initialSettings, canonical);
+    }
+    if (expansionKey != null && DiskCache.isEnabled()) {
+      List<Map.Entry<String, Double>> cached = DiskCache.getExpansion(expansionKey);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    QryResult initial = new QryResult();
+    ResultCache.Entry cached = lookup(initialKey);
+    if (cached != null) {
+      for (int j = 0; j < cached.docids.length; ++j) {
+        initial.docScores.add(cached.docids[j], cached.scores[j]);
+      }
+    } else {
+      initial = PartitionedEvaluator.evaluate(query, model, streamQueries);
+      initial.docScores.sortAndTruncate();
+      if (initialKey != null) {
+        store(initialKey, toEntry(initial.docScores, null));
+      }
+    }
+
+    List<Map.Entry<String, Double>> expansionTerms =
+            QryEval.expansionTerms(initial, fbDocs, fbTerms, fbMu, approximateMath);
+    if (expansionKey != null && DiskCache.isEnabled()) {
+      try {
+        DiskCache.putExpansion(expansionKey, expansionTerms);
+      } catch (IOException e) {
+        System.err.println("Warning: Writing the disk cache failed: " + e.getMessage());
+      }
+    }
+    return expansionTerms;
+  }
+
+  /**
+   * Look up a result in memory, then on disk.
+   *
+   * @param key The cache key, or null if the result may not be cached.
+   * @return The cached result, or null.
+   */
+  private static ResultCache.Entry lookup(String key) {
+    if (key == null) {
+      return null;
+    }
+    ResultCache.Entry entry = ResultCache.get(key);
+    if (entry == null && DiskCache.isEnabled()) {
+      entry = DiskCache.getResult(key);
+      if (entry != null) {
+        ResultCache.put(key, entry);
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Cache a result in memory and on disk.
+   *
+   * @param key   The cache key, or null if the result may not be cached.
+   * @param entry The result.
+   */
+  private static void store(String key, ResultCache.Entry entry) {
+    if (key == null) {
+      return;
+    }
+    ResultCache.put(key, entry);
+    if (DiskCache.isEnabled()) {
+      try {
+        DiskCache.putResult(key, entry);
+      } catch (IOException e) {
+        // a result that is not cached is only evaluated again
+        System.err.println("Warning: Writing the disk cache failed: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Copy a sorted and truncated score list, with the external ids of its
+   * documents.
+   *
+   * @param docScores     The score list.
+   * @param expandedQuery The expansion query, or null.
+   * @return The copy.
+   * @throws IOException
+   */
+  private static ResultCache.Entry toEntry(ScoreList docScores, String expandedQuery)
+          throws IOException {
+    int size = docScores.scores.size();
+    int[] docids = new int[size];
+    double[] scores = new double[size];
+    String[] externalIds = new String[size];
+    for (int j = 0; j < size; ++j) {
+      docids[j] = docScores.getDocid(j);
+      scores[j] = docScores.getDocidScore(j);
+      externalIds[j] = QryEval.getExternalDocid(docids[j]);
+    }
+    return new ResultCache.Entry(docids, scores, externalIds, expandedQuery);
+  }
+
+  /**
+   * Build the output of a query from its cached result.
+   *
+   * @param queryId The query id.
+   * @param entry   The cached result.
+   * @return The output.
+   */
+  private static Output cachedOutput(int queryId, ResultCache.Entry entry) {
+    Output output = new Output(queryId);
+    output.docScores = new ScoreList();
+    for (int j = 0; j < entry.docids.length; ++j) {
+      output.docScores.add(entry.docids[j], entry.scores[j]);
+    }
+    output.expandedQuery = entry.expandedQuery;
+    output.externalIds = entry.externalIds;
+    output.rankLines = formatRankLines(queryId, entry.externalIds, entry.scores);
+    return output;
+  }
+
+  /**
+   * Write a ranking in trec_eval format.
+   *
+   * @param queryId     The query id.
+   * @param externalIds External ids of the ranked documents.
+   * @param scores      Scores of the ranked documents.
+   * @return The ranking, one line per document.
+   */
+  static String formatRankLines(int queryId, String[] externalIds, double[] scores) {
+    StringBuilder rankLines = new StringBuilder();
+    if (externalIds.length < 1) {
+      rankLines.append(queryId).append(" Q0 dummy 1 0 run-1\n");
+    } else {
+      for (int j = 0; j < externalIds.length; ++j) {
+        rankLines.append(String.format("%d Q0 %s %d %.10f run-1\n",
+                queryId,        // query id
+                externalIds[j], // external id
+                j + 1,          // rank
+                scores[j]));
+      }
+    }
+    return rankLines.toString();
+  }
+
+  /**
+   * Parse a query into a new tree with the default operator of the model,
+   * and rewrite and plan it unless rewriteQueries and planQueries are
+   * false.
+   *
+   * @param queryString The query.
+   * @param postings    Inverted lists to bind the terms to, or null.
+   * @return The query tree.
+   * @throws IOException
+   */
+  private Qryop parse(String queryString, SharedPostings postings) throws IOException {
+    Qryop query = QryEval.parseQuery(queryString, QryEval.createDefaultQryop(model));
+    if (rewriteQueries) {
+      query = QryRewriter.rewrite(query, model);
+    }
+    if (planQueries) {
+      QryPlanner.plan(query, model);
+    }
+    if (postings != null && query != null) {
+      postings.bind(query);
+    }
+    return query;
+  }
+
+  /**
+   * The result of evaluating one query.
+   */
+  public static class Output {
+
+    public final int queryId;
+
+    /**
+     * The final ranking, sorted and truncated.
+     */
+    public ScoreList docScores;
+
+    /**
+     * External ids of the ranked documents.
+     */
+    public String[] externalIds;
+
+    /**
+     * The ranking in trec_eval format.
+     */
+    public String rankLines;
+
+    /**
+     * The expansion query, or null without relevance feedback.
+     */
+    public String expandedQuery;
+
+    /**
+     * Kendall's tau between exact and approximate scoring, or NaN if
+     * it is not reported.
+     */
+    public double kendallTau = Double.NaN;
+
+    /**
+     * Values of the measures of {@link QrelsEvaluator}, or null if the
+     * ranking is not evaluated or the query has no judgments.
+     */
+    public double[] measures;
+
+    private Output(int queryId) {
+      this.queryId = queryId;
+    }
+  }
+}
@@ -0,0 +1,323 @@
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a synthetic corpus, its index and a query file, so that
+ * performance work can be reproduced without the real index.  The
+ * index has the fields QryEval expects: body, title, url and inlink
+ * with positions and term vectors, lengths stored as norms by
+ * {@link DocLenStoreSimilarity}, and a stored externalId.  Text is
+ * analyzed by the analyzer of {@link QryEval}, so queries match the
+ * index as they would a real one.
+ * <p/>
+ * Usage:  java QryIndexGenerator paramFile
+ * <p/>
+ * Words are drawn from a Zipfian vocabulary, document lengths from a
+ * log-normal distribution, and a fraction of the text is made of
+ * recurring phrases, so that #NEAR and #WINDOW have matches.  Queries
+ * mix bags of words with #NEAR, #WINDOW, #SYN, #WAND and fields.  The
+ * same parameters and seed always generate the same corpus and queries.
+ * The parameters are indexPath and queryFilePath, where the index and
+ * the queries are written, and, all optional,
+ * <pre>
+ *   syntheticDocs               number of documents
+ *   syntheticVocabulary         number of distinct words
+ *   syntheticZipfExponent       exponent s of p(rank) ~ 1 / rank^s
+ *   syntheticMeanLength         mean length of the body
+ *   syntheticLengthSigma        sigma of the log of the body length
+ *   syntheticPhrases            number of distinct phrases
+ *   syntheticPhraseProbability  probability that a word starts a phrase
+ *   syntheticQueries            number of queries
+ *   syntheticSeed               seed of the random numbers
+ * </pre>
+ *
+ * @author junjiah
+ */
+public class QryIndexGenerator {
+
+  private static final String CONSONANTS = "bdfgklmnprtvz";
+
+  private static final String VOWELS = "aiou";
+
+  /**
+   * Queries do not sample the most frequent words, which behave like
+   * stopwords.
+   */
+  private static final int QUERY_MIN_RANK = 20;
+
+  private final Random random;
+
+  /**
+   * Cumulative probability of every word rank.
+   */
+  private final double[] cumulative;
+
+  private final String[] words;
+
+  /**
+   * Recurring phrases, as ranks of words; phrases are Zipfian too.
+   */
+  private final int[][] phrases;
+
+  private final double[] phraseCumulative;
+
+  private final double meanLength;
+
+  private final double lengthSigma;
+
+  private final double phraseProbability;
+
+  private QryIndexGenerator(Map<String, String> params) {
+    this.random = new Random(Long.parseLong(get(params, "syntheticSeed", "42")));
+    int vocabulary = Integer.parseInt(get(params, "syntheticVocabulary", "50000"));
+    double exponent = Double.parseDouble(get(params, "syntheticZipfExponent", "1.0"));
+    this.meanLength = Double.parseDouble(get(params, "syntheticMeanLength", "300"));
+    this.lengthSigma = Double.parseDouble(get(params, "syntheticLengthSigma", "0.5"));
+    this.phraseProbability =
+            Double.parseDouble(get(params, "syntheticPhraseProbability", "0.05"));
+    int numPhrases = Integer.parseInt(get(params, "syntheticPhrases", "1000"));
+
+    this.cumulative = zipf(vocabulary, exponent);
+    this.words = new String[vocabulary];
+    for (int rank = 0; rank < vocabulary; rank++) {
+      words[rank] = word(rank);
+    }
+
+    this.phrases = new int[numPhrases][];
+    for (int i = 0; i < numPhrases; i++) {
+      phrases[i] = new int[2 + random.nextInt(2)];
+      for (int j = 0; j < phrases[i].length; j++) {
+        phrases[i][j] = sampleRank(QUERY_MIN_RANK);
+      }
+    }
+    this.phraseCumulative = zipf(numPhrases, exponent);
+  }
+
+  /**
+   * @param args The only argument is the path to the parameter file.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final long startTime = System.currentTimeMillis();
+    if (args.length < 1) {
+      System.err.println("Usage:  java " + System.getProperty("sun.java.command")
+              + " paramFile\n\n");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+    if (!params.containsKey("indexPath")) {
+      QryEval.fatalError("Error: Parameter 'indexPath' was missing.");
+    }
+    if (!params.containsKey("queryFilePath")) {
+      QryEval.fatalError("Error: Parameter 'queryFilePath' was missing.");
+    }
+    int numDocs = Integer.parseInt(get(params, "syntheticDocs", "10000"));
+    int numQueries = Integer.parseInt(get(params, "syntheticQueries", "100"));
+
+    QryIndexGenerator generator = new QryIndexGenerator(params);
+    generator.writeIndex(params.get("indexPath"), numDocs);
+    generator.writeQueries(params.get("queryFilePath"), numQueries);
+
+    final long endTime = System.currentTimeMillis();
+    System.out.println(numDocs + " documents and " + numQueries + " queries generated in " +
+            (endTime - startTime) / 1000.0 + " seconds");
+  }
+
+  private static String get(Map<String, String> params, String name, String defaultValue) {
+    return params.containsKey(name) ? params.get(name) : defaultValue;
+  }
+
+  /**
+   * @return The cumulative distribution of p(rank) ~ 1 / (rank + 1)^s.
+   */
+  private static double[] zipf(int n, double exponent) {
+    double[] cumulative = new double[n];
+    double sum = 0;
+    for (int rank = 0; rank < n; rank++) {
+      sum += 1 / Math.pow(rank + 1, exponent);
+      cumulative[rank] = sum;
+    }
+    for (int rank = 0; rank < n; rank++) {
+      cumulative[rank] /= sum;
+    }
+    return cumulative;
+  }
+
+  /**
+   * Spell a word rank in syllables, at least two, so that no word is a
+   * stopword; vowels are chosen so that stemming leaves words as they
+   * are.
+   */
+  private static String word(int rank) {
+    int numSyllables = CONSONANTS.length() * VOWELS.length();
+    StringBuilder word = new StringBuilder();
+    int n = rank;
+    do {
+      int syllable = n % numSyllables;
+      word.append(CONSONANTS.charAt(syllable / VOWELS.length()))
+              .append(VOWELS.charAt(syllable % VOWELS.length()));
+      n /= numSyllables;
+    } while (n > 0 || word.length() < 4);
+    return word.toString();
+  }
+
+  private static int sample(double[] cumulative, double p) {
+    int index = Arrays.binarySearch(cumulative, p);
+    return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+  }
+
+  /**
+   * @param minRank The lowest rank that may be drawn.
+   * @return A Zipfian word rank.
+   */
+  private int sampleRank(int minRank) {
+    minRank = Math.min(minRank, cumulative.length - 1);
+    double low = minRank == 0 ? 0 : cumulative[minRank - 1];
+    return sample(cumulative, low + random.nextDouble() * (1 - low));
+  }
+
+  private int[] samplePhrase() {
+    return phrases[sample(phraseCumulative, random.nextDouble())];
+  }
+
+  /**
+   * Generate text of about the given length, with phrases.
+   */
+  private String text(int length) {
+    StringBuilder text = new StringBuilder();
+    int n = 0;
+    while (n < length) {
+      if (random.nextDouble() < phraseProbability) {
+        for (int rank : samplePhrase()) {
+          text.append(words[rank]).append(' ');
+          n++;
+        }
+      } else {
+        text.append(words[sampleRank(0)]).append(' ');
+        n++;
+      }
+    }
+    return text.toString();
+  }
+
+  private void writeIndex(String indexPath, int numDocs) throws Exception {
+    FieldType textType = new FieldType(TextField.TYPE_NOT_STORED);
+    textType.setStoreTermVectors(true);
+    textType.setStoreTermVectorPositions(true);
+    textType.freeze();
+
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, QryEval.analyzer)
+            .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+            .setSimilarity(new DocLenStoreSimilarity());
+    IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+    try {
+      double mu = Math.log(meanLength) - lengthSigma * lengthSigma / 2;
+      for (int d = 0; d < numDocs; d++) {
+        int length = (int) Math.max(1, Math.round(
+                Math.exp(mu + lengthSigma * random.nextGaussian())));
+
+        Document doc = new Document();
+        doc.add(new StringField("externalId", externalId(d), Field.Store.YES));
+        doc.add(new Field("body", text(length), textType));
+        doc.add(new Field("title", text(3 + random.nextInt(8)), textType));
+        doc.add(new Field("url", "http://www." + words[sampleRank(0)] + ".com/" +
+                text(1 + random.nextInt(3)).trim().replace(' ', '/'), textType));
+        doc.add(new Field("inlink", text(1 + random.nextInt(20)), textType));
+        writer.addDocument(doc);
+      }
+      writer.forceMerge(1);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String externalId(int d) {
+    return String.format(Locale.ROOT, "synthetic-%08d", d);
+  }
+
+  /**
+   * Write queries in the format of the query file, id:query.
+   */
+  private void writeQueries(String queryFilePath, int numQueries) throws Exception {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(new File(queryFilePath)));
+    try {
+      for (int q = 1; q <= numQueries; q++) {
+        writer.write(q + ":" + query() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private String query() {
+    StringBuilder query = new StringBuilder();
+    switch (random.nextInt(5)) {
+      case 0:
+        // bag of words, in the default operator of the model
+        query.append(terms(2 + random.nextInt(4)));
+        break;
+      case 1:
+        query.append("#AND(#NEAR/1(").append(phrase()).append(") ")
+                .append(terms(1 + random.nextInt(2))).append(")");
+        break;
+      case 2:
+        query.append("#AND(#WINDOW/8(").append(phrase()).append(") #SYN(")
+                .append(terms(2 + random.nextInt(2))).append("))");
+        break;
+      case 3:
+        query.append("#WAND(");
+        for (int i = 2 + random.nextInt(3); i > 0; i--) {
+          query.append(String.format(Locale.ROOT, "%.1f ", 0.1 + random.nextInt(9) / 10.0))
+                  .append(terms(1)).append(' ');
+        }
+        query.setLength(query.length() - 1);
+        query.append(")");
+        break;
+      default:
+        // fields
+        query.append(terms(1)).append(".title ")
+                .append(terms(1)).append(".inlink ")
+                .append(terms(1 + random.nextInt(2)));
+        break;
+    }
+    return query.toString();
+  }
+
+  /**
+   * @return The words of a recurring phrase, separated by spaces.
+   */
+  private String phrase() {
+    StringBuilder phrase = new StringBuilder();
+    for (int rank : samplePhrase()) {
+      phrase.append(words[rank]).append(' ');
+    }
+    return phrase.toString().trim();
+  }
+
+  /**
+   * @return Query words, separated by spaces.
+   */
+  private String terms(int n) {
+    StringBuilder terms = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      terms.append(words[sampleRank(QUERY_MIN_RANK)]).append(' ');
+    }
+    return terms.toString().trim();
+  }
+}
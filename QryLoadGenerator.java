@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator.  Replays the query file at a target rate, either
+ * against an evaluator in this process or against a {@link QryServer},
+ * and reports latency percentiles and throughput.
+ * <p/>
+ * Usage:  java QryLoadGenerator paramFile
+ * <p/>
+ * The schedule is open loop: query i is due at a fixed time, whether or
+ * not earlier queries are done, as queries arrive at a real server.
+ * Queries are sent in turn, from the start again when the file runs
+ * out.  Response time is measured from the time a query was due, so
+ * that time spent waiting behind slow queries is counted, and not
+ * omitted as by a client that waits for each answer before sending the
+ * next query; service time, from the time its evaluation started, is
+ * reported too.  Queries due during the warmup are not recorded.
+ * <p/>
+ * The parameter file is the same as for {@link QryEval}, or, against a
+ * server, needs only queryFilePath.  The other parameters are
+ * <pre>
+ *   loadMode      inprocess (default) or server
+ *   serverUrl     default http://127.0.0.1:serverPort/search
+ *   loadQps       target queries per second, default 10
+ *   loadArrival   uniform (default) or poisson interarrival times
+ *   loadDuration  seconds of recorded load, default 30
+ *   loadWarmup    seconds of load before, default 5
+ *   threads       concurrent queries, default twice the processors
+ *                 in process and 64 against a server
+ *   threadType    platform (default) or virtual
+ * </pre>
+ *
+ * @author junjiah
+ */
+public class QryLoadGenerator {
+
+  /**
+   * Latencies are recorded in microseconds, up to an hour.
+   */
+  private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toMicros(1);
+
+  private static final double[] PERCENTILES = {50, 95, 99, 99.9};
+
+  private QryLoadGenerator() {
+  }
+
+  /**
+   * @param args The only argument is the path to the parameter file.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage:  java " + System.getProperty("sun.java.command")
+              + " paramFile\n\n");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+    if (!params.containsKey("queryFilePath")) {
+      QryEval.fatalError("Error: Parameter 'queryFilePath' was missing.");
+    }
+    List<Map.Entry<Integer, String>> queries = new ArrayList<Map.Entry<Integer, String>>(
+            QryEval.readQueries(params.get("queryFilePath")).entrySet());
+    if (queries.isEmpty()) {
+      QryEval.fatalError("Error: The query file has no queries.");
+    }
+
+    String mode = get(params, "loadMode", "inprocess");
+    double qps = 0;
+    long duration = 0, warmup = 0;
+    int threads = 0;
+    try {
+      qps = Double.parseDouble(get(params, "loadQps", "10"));
+      duration = TimeUnit.SECONDS.toNanos(Long.parseLong(get(params, "loadDuration", "30")));
+      warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(get(params, "loadWarmup", "5")));
+      threads = Integer.parseInt(get(params, "threads", mode.equalsIgnoreCase("server") ?
+              "64" : String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+    } catch (NumberFormatException e) {
+      QryEval.fatalError("Error: Parsing load parameters error!");
+    }
+    if (qps <= 0) {
+      QryEval.fatalError("Error: Parameter 'loadQps' must be positive.");
+    }
+    boolean poisson = get(params, "loadArrival", "uniform").equalsIgnoreCase("poisson");
+
+    Target target = null;
+    if (mode.equalsIgnoreCase("inprocess")) {
+      target = inProcess(params, queries);
+    } else if (mode.equalsIgnoreCase("server")) {
+      target = server(get(params, "serverUrl",
+              "http://127.0.0.1:" + get(params, "serverPort", "8080") + "/search"));
+    } else {
+      QryEval.fatalError("Error: Unknown loadMode '" + mode + "'.");
+    }
+
+    ExecutorService executor =
+            QryEval.createExecutor(get(params, "threadType", "platform"), threads);
+    Load load = new Load();
+    try {
+      load.run(target, queries, executor, qps, poisson, warmup, duration);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    System.out.print(load.report(qps, duration));
+    if (mode.equalsIgnoreCase("inprocess")) {
+      QryEval.printMemoryUsage(false);
+    }
+  }
+
+  private static String get(Map<String, String> params, String name, String defaultValue) {
+    return params.containsKey(name) ? params.get(name) : defaultValue;
+  }
+
+  /**
+   * Evaluate queries in this process, as QryEval does.
+   */
+  private static Target inProcess(Map<String, String> params,
+                                  List<Map.Entry<Integer, String>> queries) throws Exception {
+    QryEval.openIndex(params);
+    QryEval.configureIntraQuery(params);
+    QryEval.configureCaches(params);
+    List<Integer> queryIds = new ArrayList<Integer>(queries.size());
+    for (Map.Entry<Integer, String> query : queries) {
+      queryIds.add(query.getKey());
+    }
+    final QryEvalContext context = new QryEvalContext(params, queryIds);
+    return new Target() {
+      @Override
+      public void evaluate(int queryId, String query) throws Exception {
+        context.evaluate(queryId, query);
+      }
+    };
+  }
+
+  /**
+   * Send queries to a query server and read the whole ranking.
+   */
+  private static Target server(final String serverUrl) {
+    return new Target() {
+      @Override
+      public void evaluate(int queryId, String query) throws Exception {
+        URL url = new URL(serverUrl + "?queryId=" + queryId + "&query=" +
+                URLEncoder.encode(query, "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+          connection.disconnect();
+          throw new IOException("HTTP status " + status);
+        }
+
+        // read to the end, so that the connection is kept alive
+        InputStream in = connection.getInputStream();
+        try {
+          byte[] buffer = new byte[8192];
+          while (in.read(buffer) >= 0) {
+            // discard
+          }
+        } finally {
+          in.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Where queries are evaluated.
+   */
+  private interface Target {
+
+    /**
+     * Evaluate one query and wait for its ranking.
+     *
+     * @throws Exception If the evaluation fails.
+     */
+    void evaluate(int queryId, String query) throws Exception;
+  }
+
+  /**
+   * One run of load, and its measurements.
+   */
+  private static class Load {
+
+    /**
+     * Latency from the time a query was due.
+     */
+    final LatencyHistogram responseTimes = new LatencyHistogram(HIGHEST_LATENCY);
+
+    /**
+     * Latency from the time the evaluation of a query started.
+     */
+    final LatencyHistogram serviceTimes = new LatencyHistogram(HIGHEST_LATENCY);
+
+    final AtomicLong errors = new AtomicLong();
+
+    long sent = 0;
+
+    /**
+     * Time from the start of the recorded load to the end of the last
+     * query, in ns.
+     */
+    long elapsed = 0;
+
+    /**
+     * Send queries on schedule until the duration is over, then wait for
+     * the queries in flight.
+     */
+    void run(final Target target, List<Map.Entry<Integer, String>> queries,
+             ExecutorService executor, double qps, boolean poisson, long warmup, long duration)
+            throws InterruptedException {
+      double interval = TimeUnit.SECONDS.toNanos(1) / qps;
+      Random random = new Random(42);
+
+      long start = System.nanoTime();
+      final long measureStart = start + warmup;
+      long end = measureStart + duration;
+      double due = start;
+      for (int i = 0; due < end; i++) {
+        long now;
+        while ((now = System.nanoTime()) < (long) due) {
+          LockSupport.parkNanos((long) due - now);
+        }
+
+        final Map.Entry<Integer, String> query = queries.get(i % queries.size());
+        final long scheduled = (long) due;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            long began = System.nanoTime();
+            try {
+              target.evaluate(query.getKey(), query.getValue());
+            } catch (Exception e) {
+              errors.incrementAndGet();
+              return;
+            }
+            long done = System.nanoTime();
+            if (scheduled >= measureStart) {
+              responseTimes.record(TimeUnit.NANOSECONDS.toMicros(done - scheduled));
+              serviceTimes.record(TimeUnit.NANOSECONDS.toMicros(done - began));
+            }
+          }
+        });
+        if (scheduled >= measureStart) {
+          sent++;
+        }
+        due += poisson ? -Math.log(1 - random.nextDouble()) * interval : interval;
+      }
+
+      executor.shutdown();
+      if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+        System.err.println("Warning: Queries were still running after an hour.");
+      }
+      elapsed = Math.max(System.nanoTime(), end) - measureStart;
+    }
+
+    String report(double qps, long duration) {
+      StringBuilder report = new StringBuilder();
+      double seconds = elapsed / 1e9;
+      report.append(String.format("Target: %.1f qps for %.1f seconds, %d queries sent, " +
+                      "%d completed, %d errors\n", qps, duration / 1e9, sent,
+              responseTimes.getCount(), errors.get()));
+      report.append(String.format("Throughput: %.1f qps\n",
+              seconds == 0 ? 0 : responseTimes.getCount() / seconds));
+      report.append(String.format("%-16s%10s", "latency (ms)", "mean"));
+      for (double percentile : PERCENTILES) {
+        report.append(String.format("%10s", "p" + (percentile == Math.rint(percentile) ?
+                String.valueOf((int) percentile) : String.valueOf(percentile).replace(".", ""))));
+      }
+      report.append(String.format("%10s\n", "max"));
+      report.append(line("response", responseTimes));
+      report.append(line("service", serviceTimes));
+      return report.toString();
+    }
+
+    private static String line(String name, LatencyHistogram histogram) {
+      StringBuilder line = new StringBuilder(String.format("%-16s%10.2f", name,
+              histogram.getMean() / 1000));
+      for (double percentile : PERCENTILES) {
+        line.append(String.format("%10.2f", histogram.getValueAtPercentile(percentile) / 1000.0));
+      }
+      line.append(String.format("%10.2f\n", histogram.getMax() / 1000.0));
+      return line.toString();
+    }
+  }
+}
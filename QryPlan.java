@@ -0,0 +1,80 @@
+/**
+ * How one query operator is evaluated, as chosen by {@link QryPlanner},
+ * with the statistics that EXPLAIN reports.  Operators without a plan
+ * use their default algorithm.
+ *
+ * @author junjiah
+ */
+public class QryPlan {
+
+  /**
+   * Evaluation algorithms.
+   */
+  public enum Strategy {
+    /**
+     * Read an inverted list from the index.
+     */
+    FETCH,
+    /**
+     * Score an inverted list.
+     */
+    SCORE,
+    /**
+     * Merge inverted lists.
+     */
+    UNION,
+    /**
+     * Intersect docid lists, driven by the shortest.
+     */
+    INTERSECT,
+    /**
+     * Score every candidate document against every argument in turn.
+     */
+    DAAT,
+    /**
+     * Score a shared background per candidate, then add the arguments
+     * one at a time.
+     */
+    TAAT,
+    /**
+     * Mark matching documents in a bitmap of the docid space.
+     */
+    BITMAP,
+    /**
+     * Match nothing, without evaluating the arguments.
+     */
+    EMPTY
+  }
+
+  public final Strategy strategy;
+
+  /**
+   * Whether the inverted list needs term positions.
+   */
+  public final boolean positions;
+
+  /**
+   * Whether the arguments are evaluated in parallel, see
+   * {@link ParallelEvaluator}.
+   */
+  public final boolean parallel;
+
+  /**
+   * Postings the operator is expected to read, see
+   * {@link Qryop#estimateCost()}.
+   */
+  public final long estimatedPostings;
+
+  /**
+   * Postings read from inverted lists; only counted by terms.
+   */
+  volatile long actualPostings = 0;
+
+  public QryPlan(Strategy strategy, boolean positions, boolean parallel,
+                 long estimatedPostings) {
+    this.strategy = strategy;
+    this.positions = positions;
+    this.parallel = parallel;
+    this.estimatedPostings = estimatedPostings;
+  }
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses how every operator of a query tree is evaluated, from the
+ * document frequencies of its terms, and attaches the choice to the
+ * operator as a {@link QryPlan}:
+ * <ul>
+ * <li>conjuncts of a boolean #AND are ordered cheapest first, and an
+ * #AND with a conjunct that has no postings is not evaluated;</li>
+ * <li>Indri #AND and #WAND are evaluated as Indri:evaluation says,
+ * document-at-a-time by default, or, if it is auto, document-at-a-time
+ * or term-at-a-time, whichever computes fewer default scores;</li>
+ * <li>an unranked boolean #OR is merged in a bitmap when its lists are
+ * dense enough;</li>
+ * <li>term positions are only read for terms under #NEAR and #WINDOW,
+ * directly or through #SYN.</li>
+ * </ul>
+ * Whether arguments run in parallel is decided by
+ * {@link ParallelEvaluator} and only recorded here.  {@link #explain}
+ * prints the plan with the estimated and the actual number of postings.
+ *
+ * @author junjiah
+ */
+public class QryPlanner {
+
+  /**
+   * Cost of computing a default score, a logarithm, relative to reading
+   * a posting.
+   */
+  private static final double DEFAULT_SCORE_COST = 4;
+
+  /**
+   * Cost of looking up a default score shared by documents of the same
+   * length, relative to reading a posting.
+   */
+  private static final double LOOKUP_COST = 2;
+
+  private QryPlanner() {
+  }
+
+  /**
+   * Plan a query tree.  Inverted list arguments of score list operators
+   * are wrapped in #SCORE, which evaluation would do anyway, so that the
+   * tree keeps its shape.
+   *
+   * @param query The query tree, not evaluated yet, or null.
+   * @param model The retrieval model the query will be evaluated with.
+   * @return The planned query.
+   * @throws IOException
+   */
+  public static Qryop plan(Qryop query, RetrievalModel model) throws IOException {
+    if (query != null) {
+      plan(query, model, false);
+    }
+    return query;
+  }
+
+  private static void plan(Qryop op, RetrievalModel model, boolean positions)
+          throws IOException {
+    if (op instanceof QryopSl && !(op instanceof QryopSlScore)) {
+      for (int i = 0; i < op.args.size(); i++) {
+        if (!(op.args.get(i) instanceof QryopSl)) {
+          op.args.set(i, new QryopSlScore(op.args.get(i)));
+        }
+      }
+    }
+
+    // the cheapest conjunct drives the intersection, and is evaluated first
+    if (isBooleanAnd(op, model)) {
+      final List<Long> costs = new ArrayList<Long>();
+      for (Qryop arg : op.args) {
+        costs.add(arg.estimateCost());
+      }
+      List<Integer> order = new ArrayList<Integer>();
+      for (int i = 0; i < op.args.size(); i++) {
+        order.add(i);
+      }
+      Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return costs.get(a).compareTo(costs.get(b));
+        }
+      });
+      List<Qryop> sorted = new ArrayList<Qryop>();
+      for (int i : order) {
+        sorted.add(op.args.get(i));
+      }
+      op.args.clear();
+      op.args.addAll(sorted);
+    }
+
+    // positions are needed by proximity operators, and passed through #SYN
+    boolean argPositions = op instanceof QryopIlNear || op instanceof QryopIlWindow ||
+            (op instanceof QryopIlSyn && positions);
+    for (Qryop arg : op.args) {
+      plan(arg, model, argPositions);
+    }
+
+    boolean parallel = !op.args.isEmpty() && ParallelEvaluator.isParallel(op.args);
+    op.plan = new QryPlan(chooseStrategy(op, model), positions, parallel, op.estimateCost());
+  }
+
+  private static boolean isBooleanAnd(Qryop op, RetrievalModel model) {
+    return op.getClass() == QryopSlAnd.class && (model instanceof RetrievalModelUnrankedBoolean ||
+            model instanceof RetrievalModelRankedBoolean);
+  }
+
+  private static QryPlan.Strategy chooseStrategy(Qryop op, RetrievalModel model)
+          throws IOException {
+    if (op instanceof QryopIlTerm) {
+      return QryPlan.Strategy.FETCH;
+    } else if (op instanceof QryopSlScore) {
+      return QryPlan.Strategy.SCORE;
+    } else if (op instanceof QryopIlSyn) {
+      return QryPlan.Strategy.UNION;
+    } else if (op instanceof QryopIlNear || op instanceof QryopIlWindow) {
+      return QryPlan.Strategy.INTERSECT;
+    }
+
+    // arguments are ordered cheapest first
+    if (isBooleanAnd(op, model)) {
+      return op.args.isEmpty() || op.args.get(0).estimateCost() == 0 ?
+              QryPlan.Strategy.EMPTY : QryPlan.Strategy.INTERSECT;
+    }
+
+    // total postings, and the candidate documents if the arguments
+    // match independently of each other
+    int n = op.args.size();
+    long postings = op.estimateCost();
+    int maxDoc = QryEval.READER.maxDoc();
+    double missProbability = 1;
+    for (Qryop arg : op.args) {
+      missProbability *= 1 - Math.min(1.0, (double) arg.estimateCost() / Math.max(maxDoc, 1));
+    }
+    double candidates = maxDoc * (1 - missProbability);
+
+    if (model instanceof RetrievalModelUnrankedBoolean && op.getClass() == QryopSlOr.class) {
+      // a merge looks at every list for every candidate; a bitmap sets
+      // a bit per posting and scans the docid space once
+      double mergeCost = candidates * n;
+      double bitmapCost = postings + maxDoc / 64.0 + candidates;
+      return bitmapCost < mergeCost ? QryPlan.Strategy.BITMAP : QryPlan.Strategy.DAAT;
+    }
+
+    if (model instanceof RetrievalModelIndri &&
+            (op.getClass() == QryopSlAnd.class || op.getClass() == QryopSlWeightedAnd.class)) {
+      // the strategy of the model is kept, unless it asks the cost
+      // model to choose
+      RetrievalModelIndri indri = (RetrievalModelIndri) model;
+      if (!indri.isAutoEvaluation()) {
+        return indri.isTermAtATime() ? QryPlan.Strategy.TAAT : QryPlan.Strategy.DAAT;
+      }
+      // DAAT computes a default score for every argument a candidate
+      // misses; TAAT looks it up among those shared by the same length
+      double misses = Math.max(0, candidates * n - postings);
+      double daatCost = postings + misses * DEFAULT_SCORE_COST;
+      double taatCost = postings + misses * LOOKUP_COST;
+      return taatCost < daatCost ? QryPlan.Strategy.TAAT : QryPlan.Strategy.DAAT;
+    }
+
+    if (op instanceof QryopSlWeightedSum) {
+      return QryPlan.Strategy.TAAT;
+    }
+    return QryPlan.Strategy.DAAT;
+  }
+
+  /**
+   * Describe the plan of an evaluated query, one operator per line, with
+   * the postings it was expected to read and those it did read.
+   *
+   * @param trees The trees the query was evaluated as: one, or one per
+   *              partition, all built alike.
+   * @return The description.
+   */
+  public static String explain(List<Qryop> trees) {
+    StringBuilder out = new StringBuilder();
+    explain(trees, "", out);
+    return out.toString();
+  }
+
+  /**
+   * @return The number of postings read by the operators.
+   */
+  private static long explain(List<Qryop> ops, String indent, StringBuilder out) {
+    Qryop op = ops.get(0);
+
+    // read by the terms, summed over partitions
+    long actual = 0;
+    StringBuilder args = new StringBuilder();
+    if (op instanceof QryopIlTerm) {
+      for (Qryop node : ops) {
+        actual += node.plan == null ? 0 : node.plan.actualPostings;
+      }
+    } else {
+      for (int i = 0; i < op.args.size(); i++) {
+        List<Qryop> nodes = new ArrayList<Qryop>(ops.size());
+        for (Qryop node : ops) {
+          nodes.add(node.args.get(i));
+        }
+        actual += explain(nodes, indent + "  ", args);
+      }
+    }
+
+    String name = op.toString();
+    if (!(op instanceof QryopIlTerm)) {
+      name = name.substring(0, name.indexOf('(')).trim();
+    }
+    out.append(indent).append(name);
+    if (op.plan == null) {
+      out.append("  (not planned)");
+    } else {
+      out.append("  ").append(op.plan.strategy);
+      if (op.plan.positions) {
+        out.append(" positions");
+      }
+      if (op.plan.parallel) {
+        out.append(" parallel");
+      }
+      out.append("  estimated=").append(op.plan.estimatedPostings);
+    }
+    out.append(" actual=").append(actual).append("\n");
+    out.append(args);
+    return actual;
+  }
+}
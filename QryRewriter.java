@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a parsed query tree before it is evaluated, so that it
+ * builds fewer intermediate score lists for the same ranking.
+ * <ul>
+ * <li>Nested operators of the same family are flattened into their
+ * parent: #AND and #OR under the boolean models, #SUM under BM25, #SYN,
+ * and under Indri #AND and #WAND into one #WAND, #WSUM into #WSUM, with
+ * the weights multiplied out.</li>
+ * <li>An operator with a single argument that scores like its argument
+ * is replaced by the argument.</li>
+ * <li>Duplicate arguments are merged: dropped under the boolean models,
+ * their weights added under Indri, and counted as the query term
+ * frequency of a BM25 #SUM.</li>
+ * <li>Terms that do not occur in the index are removed from #OR, #SUM
+ * and #SYN, where they cannot change any score.  Indri gives them a
+ * default score, so they are kept.</li>
+ * </ul>
+ * Apart from the query term frequency, which the literal tree ignores,
+ * rankings are the same up to floating point rounding.
+ *
+ * @author junjiah
+ */
+public class QryRewriter {
+
+  private QryRewriter() {
+  }
+
+  /**
+   * Rewrite a query tree.  The tree is rewritten in place where possible,
+   * so it must not be evaluated yet.
+   *
+   * @param query The parsed query, or null.
+   * @param model The retrieval model the query will be evaluated with.
+   * @return The rewritten query.
+   * @throws IOException
+   */
+  public static Qryop rewrite(Qryop query, RetrievalModel model) throws IOException {
+    if (query == null) {
+      return null;
+    }
+    Qryop result = simplify(query, model);
+    // the root must produce a score list
+    if (!(result instanceof QryopSl)) {
+      result = new QryopSlScore(result);
+    }
+    return result;
+  }
+
+  private static Qryop simplify(Qryop op, RetrievalModel model) throws IOException {
+    for (int i = 0; i < op.args.size(); i++) {
+      op.args.set(i, simplify(op.args.get(i), model));
+    }
+
+    // subclasses score differently, so operators are matched exactly
+    Class<?> type = op.getClass();
+    boolean booleanModel = model instanceof RetrievalModelUnrankedBoolean ||
+            model instanceof RetrievalModelRankedBoolean;
+    if (type == QryopIlSyn.class) {
+      return simplifySyn(op);
+    } else if (booleanModel && (type == QryopSlAnd.class || type == QryopSlOr.class)) {
+      return simplifyBoolean(op);
+    } else if (model instanceof RetrievalModelBM25 && type == QryopSlSum.class) {
+      return simplifySum((QryopSlSum) op);
+    } else if (model instanceof RetrievalModelIndri && (type == QryopSlAnd.class ||
+            type == QryopSlWeightedAnd.class || type == QryopSlWeightedSum.class)) {
+      return simplifyIndri(op, (RetrievalModelIndri) model);
+    }
+    return op;
+  }
+
+  /**
+   * #SYN is the union of its arguments' positions.
+   */
+  private static Qryop simplifySyn(Qryop op) throws IOException {
+    List<Qryop> args = new ArrayList<Qryop>();
+    boolean changed = false;
+    for (Qryop arg : op.args) {
+      if (arg.getClass() == QryopIlSyn.class) {
+        args.addAll(arg.args);
+        changed = true;
+      } else {
+        args.add(arg);
+      }
+    }
+    changed |= pruneMissingTerms(args);
+
+    if (args.size() == 1) {
+      return args.get(0);
+    } else if (!changed) {
+      return op;
+    }
+    return new QryopIlSyn(args.toArray(new Qryop[args.size()]));
+  }
+
+  /**
+   * Boolean #AND and #OR are associative and idempotent.
+   */
+  private static Qryop simplifyBoolean(Qryop op) throws IOException {
+    Map<String, Qryop> args = new LinkedHashMap<String, Qryop>();
+    boolean changed = false;
+    for (Qryop arg : op.args) {
+      if (arg.getClass() == op.getClass()) {
+        for (Qryop nested : arg.args) {
+          args.put(ResultCache.canonicalQuery(nested), nested);
+        }
+        changed = true;
+      } else {
+        changed |= args.put(ResultCache.canonicalQuery(arg), arg) != null;
+      }
+    }
+    List<Qryop> unique = new ArrayList<Qryop>(args.values());
+    // a missing term empties #AND, but cannot add to #OR
+    if (op instanceof QryopSlOr) {
+      changed |= pruneMissingTerms(unique);
+    }
+
+    if (unique.size() == 1) {
+      return unique.get(0);
+    } else if (!changed) {
+      return op;
+    }
+    Qryop result = op instanceof QryopSlOr ? new QryopSlOr() : new QryopSlAnd();
+    result.args.addAll(unique);
+    return result;
+  }
+
+  /**
+   * BM25 #SUM adds the scores of its arguments, weighted by their query
+   * term frequency.
+   */
+  private static Qryop simplifySum(QryopSlSum op) throws IOException {
+    Map<String, Qryop> args = new LinkedHashMap<String, Qryop>();
+    Map<String, Integer> qtfs = new LinkedHashMap<String, Integer>();
+    boolean changed = false;
+    for (int i = 0; i < op.args.size(); i++) {
+      Qryop arg = op.args.get(i);
+      if (arg.getClass() == QryopSlSum.class && op.getQtf(i) == 1) {
+        for (int j = 0; j < arg.args.size(); j++) {
+          addCount(args, qtfs, arg.args.get(j), ((QryopSlSum) arg).getQtf(j));
+        }
+        changed = true;
+      } else {
+        changed |= addCount(args, qtfs, arg, op.getQtf(i));
+      }
+    }
+    List<Qryop> unique = new ArrayList<Qryop>(args.values());
+    changed |= pruneMissingTerms(unique);
+
+    if (unique.size() == 1 && qtfs.get(ResultCache.canonicalQuery(unique.get(0))) == 1) {
+      return unique.get(0);
+    } else if (!changed) {
+      return op;
+    }
+    QryopSlSum result = new QryopSlSum();
+    for (Qryop arg : unique) {
+      result.add(arg, qtfs.get(ResultCache.canonicalQuery(arg)));
+    }
+    return result;
+  }
+
+  /**
+   * Indri #AND is #WAND with equal weights, and both average the scores
+   * of their arguments with normalized weights, so nested ones multiply
+   * out.  #WSUM does the same with probabilities instead of their
+   * logarithms.
+   */
+  private static Qryop simplifyIndri(Qryop op, RetrievalModelIndri model) {
+    boolean sum = op instanceof QryopSlWeightedSum;
+    List<Double> weights = normalizedWeights(op);
+    if (weights == null) {
+      return op;
+    }
+
+    Map<String, Qryop> args = new LinkedHashMap<String, Qryop>();
+    Map<String, Double> argWeights = new LinkedHashMap<String, Double>();
+    boolean changed = false;
+    for (int i = 0; i < op.args.size(); i++) {
+      Qryop arg = op.args.get(i);
+      List<Double> nestedWeights = sameIndriFamily(arg, sum) ? normalizedWeights(arg) : null;
+      if (nestedWeights != null) {
+        for (int j = 0; j < arg.args.size(); j++) {
+          addWeight(args, argWeights, arg.args.get(j), weights.get(i) * nestedWeights.get(j));
+        }
+        changed = true;
+      } else {
+        changed |= addWeight(args, argWeights, arg, weights.get(i));
+      }
+    }
+
+    // log(exp(s)) is only exact without approximation
+    if (args.size() == 1 && (!sum || !model.isApproximateMath())) {
+      return args.values().iterator().next();
+    } else if (!changed) {
+      return op;
+    }
+    QryopSlWeighted result = sum ? new QryopSlWeightedSum() : new QryopSlWeightedAnd();
+    for (Map.Entry<String, Qryop> arg : args.entrySet()) {
+      result.add(argWeights.get(arg.getKey()));
+      result.add(arg.getValue());
+    }
+    return result;
+  }
+
+  private static boolean sameIndriFamily(Qryop arg, boolean sum) {
+    Class<?> type = arg.getClass();
+    return sum ? type == QryopSlWeightedSum.class :
+            type == QryopSlAnd.class || type == QryopSlWeightedAnd.class;
+  }
+
+  /**
+   * @return The weights of an Indri operator divided by their total, or
+   * null if they cannot be normalized.
+   */
+  private static List<Double> normalizedWeights(Qryop op) {
+    int n = op.args.size();
+    List<Double> weights = new ArrayList<Double>(n);
+    if (op instanceof QryopSlWeighted) {
+      List<Double> raw = ((QryopSlWeighted) op).getWeights();
+      if (raw.size() != n) {
+        return null;
+      }
+      double total = 0;
+      for (double weight : raw) {
+        total += weight;
+      }
+      if (total == 0) {
+        // matches nothing, and has a default score of 0
+        return null;
+      }
+      for (double weight : raw) {
+        weights.add(weight / total);
+      }
+    } else {
+      if (n == 0) {
+        return null;
+      }
+      for (int i = 0; i < n; i++) {
+        weights.add(1.0 / n);
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Add an argument with a weight, adding to the weight of a duplicate.
+   *
+   * @return true if the argument was a duplicate.
+   */
+  private static boolean addWeight(Map<String, Qryop> args, Map<String, Double> weights,
+                                   Qryop arg, double weight) {
+    String key = ResultCache.canonicalQuery(arg);
+    Double old = weights.get(key);
+    weights.put(key, old == null ? weight : old + weight);
+    if (old == null) {
+      args.put(key, arg);
+    }
+    return old != null;
+  }
+
+  /**
+   * Add an argument with a count, adding to the count of a duplicate.
+   *
+   * @return true if the argument was a duplicate.
+   */
+  private static boolean addCount(Map<String, Qryop> args, Map<String, Integer> counts,
+                                  Qryop arg, int count) {
+    String key = ResultCache.canonicalQuery(arg);
+    Integer old = counts.get(key);
+    counts.put(key, old == null ? count : old + count);
+    if (old == null) {
+      args.put(key, arg);
+    }
+    return old != null;
+  }
+
+  /**
+   * Remove the terms that do not occur in the index, but keep at least
+   * one argument.
+   *
+   * @param args The arguments of an operator.
+   * @return true if any term was removed.
+   * @throws IOException
+   */
+  private static boolean pruneMissingTerms(List<Qryop> args) throws IOException {
+    List<Qryop> remaining = new ArrayList<Qryop>(args.size());
+    for (Qryop arg : args) {
+      if (!(arg instanceof QryopIlTerm) || arg.estimateCost() > 0) {
+        remaining.add(arg);
+      }
+    }
+    if (remaining.size() == args.size() || remaining.isEmpty()) {
+      return false;
+    }
+    args.clear();
+    args.addAll(remaining);
+    return true;
+  }
+}
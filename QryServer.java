@@ -0,0 +1,300 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Query server.  It opens the index once and then answers queries over
+ * HTTP on the loopback interface, so that every query does not pay for
+ * starting the JVM and reading the index.
+ * <p/>
+ * Usage:  java QryServer paramFile
+ * <p/>
+ * The parameter file is the same as for {@link QryEval}; serverPort
+ * (default 8080) is the port to listen on, and threadType (default
+ * virtual) and threads select the threads that serve requests.
+ * <p/>
+ * Requests are GET or POST (form encoded) to /search, e.g.
+ * <pre>
+ *   /search?query=%23AND(apple pie)&amp;queryId=1&amp;retrievalAlgorithm=BM25
+ * </pre>
+ * Parameter query is the query, in the syntax of the query file, and
+ * queryId (default 0) is the id printed in the results.  Alternatively,
+ * parameter queries holds a batch of queries, one queryId:query per
+ * line as in the query file, which share the inverted lists of their
+ * terms.  Any other
+ * request parameter overrides the parameter of the same name from the
+ * parameter file, except those that set up the index and the threads.
+ * The response is the ranking in trec_eval format.  GET /stats reports
+ * the hit rates of the result caches.
+ *
+ * @author junjiah
+ */
+public class QryServer {
+
+  /**
+   * Parameters that are read once at startup and cannot be overridden
+   * by requests.
+   */
+  private static final Set<String> STARTUP_PARAMETERS = new HashSet<String>(Arrays.asList(
+          "indexPath", "queryFilePath", "trecEvalOutputPath", "fbExpansionQueryFile",
+          "fbInitialRankingFile", "threads", "threadType", "intraQueryThreads",
+          "forkJoinMinCost", "partitions", "partitionMinCost", "serverPort", "resultCacheSize",
+          "cacheDirectory", "subtreeCacheSize"));
+
+  /**
+   * Evaluation contexts of recently used parameters.  Building a context
+   * is cheap, but its model builds the length tables of every field on
+   * first use, so requests with the same parameters share one.
+   */
+  private static final int MAX_CONTEXTS = 16;
+
+  private final Map<String, String> defaults;
+
+  private final Map<Map<String, String>, QryEvalContext> contexts =
+          new LinkedHashMap<Map<String, String>, QryEvalContext>(MAX_CONTEXTS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Map<String, String>, QryEvalContext> eldest) {
+              return size() > MAX_CONTEXTS;
+            }
+          };
+
+  /**
+   * @param defaults The parameters read from the parameter file.
+   */
+  public QryServer(Map<String, String> defaults) {
+    this.defaults = defaults;
+  }
+
+  /**
+   * @param args The only argument is the path to the parameter file.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage:  java " + System.getProperty("sun.java.command")
+              + " paramFile\n\n");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+    QryEval.openIndex(params);
+    QryEval.configureIntraQuery(params);
+    QryEval.configureCaches(params);
+    if (params.containsKey("fbInitialRankingFile")) {
+      QryEval.fatalError("Error: fbInitialRankingFile is not supported by the query server.");
+    }
+
+    int port = 8080;
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      if (params.containsKey("serverPort")) {
+        port = Integer.parseInt(params.get("serverPort"));
+      }
+      if (params.containsKey("threads")) {
+        threads = Integer.parseInt(params.get("threads"));
+      }
+    } catch (NumberFormatException e) {
+      QryEval.fatalError("Error: Parsing server parameters error!");
+    }
+    String threadType = params.containsKey("threadType") ? params.get("threadType") : "virtual";
+    ExecutorService executor = QryEval.createExecutor(threadType, threads);
+
+    // from now on a bad request must not stop the server
+    QryEval.exitOnFatalError = false;
+
+    final QryServer server = new QryServer(params);
+    HttpServer httpServer = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext("/search", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        server.handle(exchange);
+      }
+    });
+    httpServer.createContext("/stats", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        sendResponse(exchange, 200, ResultCache.report() + "\n" + DiskCache.report() + "\n" +
+                SubtreeCache.report() + "\n" + QryCompiler.report() + "\n");
+      }
+    });
+    httpServer.setExecutor(executor);
+    httpServer.start();
+    System.out.println("Listening on " + httpServer.getAddress());
+  }
+
+  /**
+   * Answer one search request.
+   *
+   * @param exchange The request and its response.
+   * @throws IOException
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    int status = 200;
+    String response;
+    try {
+      Map<String, String> request = parseRequest(exchange);
+      String query = request.remove("query");
+      String queries = request.remove("queries");
+      if (query == null && queries == null) {
+        throw new IllegalArgumentException("Error: Parameter 'query' was missing.");
+      }
+      String queryId = request.remove("queryId");
+
+      Map<String, String> params = new HashMap<String, String>(defaults);
+      for (Map.Entry<String, String> entry : request.entrySet()) {
+        if (STARTUP_PARAMETERS.contains(entry.getKey())) {
+          throw new IllegalArgumentException(
+                  "Error: Parameter '" + entry.getKey() + "' cannot be set per request.");
+        }
+        params.put(entry.getKey(), entry.getValue());
+      }
+
+      QryEvalContext context = getContext(params);
+      if (queries == null) {
+        response = context.evaluate(queryId == null ? 0 : Integer.parseInt(queryId), query).rankLines;
+      } else {
+        response = evaluateBatch(context, queries);
+      }
+    } catch (IllegalArgumentException e) {
+      // also covers malformed numbers
+      status = 400;
+      response = e.getMessage() + "\n";
+    } catch (QryEval.FatalError e) {
+      status = 400;
+      response = e.getMessage() + "\n";
+    } catch (Exception e) {
+      e.printStackTrace();
+      status = 500;
+      response = "Error: Evaluation failed.\n";
+    }
+
+    sendResponse(exchange, status, response);
+  }
+
+  /**
+   * Send a plain text response.
+   *
+   * @param exchange The request and its response.
+   * @param status   The HTTP status code.
+   * @param response The response body.
+   * @throws IOException
+   */
+  private static void sendResponse(HttpExchange exchange, int status, String response)
+          throws IOException {
+    byte[] body = response.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Evaluate a batch of queries, reading the inverted list of every
+   * distinct term once.
+   *
+   * @param context The evaluation context.
+   * @param queries One query per line, in the format of the query file.
+   * @return The rankings of all queries, in request order.
+   * @throws Exception
+   */
+  private static String evaluateBatch(QryEvalContext context, String queries) throws Exception {
+    Map<Integer, String> queryStrings = new LinkedHashMap<Integer, String>();
+    for (String line : queries.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] parts = line.split(":", 2);
+      if (parts.length < 2) {
+        throw new IllegalArgumentException("Error: Query lines must be queryId:query.");
+      }
+      queryStrings.put(Integer.parseInt(parts[0].trim()), parts[1]);
+    }
+
+    SharedPostings postings = context.prefetch(queryStrings.values());
+    StringBuilder response = new StringBuilder();
+    for (Map.Entry<Integer, String> entry : queryStrings.entrySet()) {
+      response.append(context.evaluate(entry.getKey(), entry.getValue(), postings).rankLines);
+    }
+    return response.toString();
+  }
+
+  /**
+   * Get the evaluation context of the specified parameters, creating it
+   * if it is not cached.
+   *
+   * @param params The parameter file's parameters with those of the
+   *               request.
+   * @return The evaluation context.
+   * @throws Exception
+   */
+  private synchronized QryEvalContext getContext(Map<String, String> params) throws Exception {
+    QryEvalContext context = contexts.get(params);
+    if (context == null) {
+      context = new QryEvalContext(params, Collections.<Integer>emptySet());
+      contexts.put(params, context);
+    }
+    return context;
+  }
+
+  /**
+   * Read the parameters of a request from its query string and, for
+   * POST requests, its form encoded body.
+   *
+   * @param exchange The request.
+   * @return The request parameters.
+   * @throws IOException
+   */
+  private static Map<String, String> parseRequest(HttpExchange exchange) throws IOException {
+    Map<String, String> request = new HashMap<String, String>();
+    parseForm(exchange.getRequestURI().getRawQuery(), request);
+
+    if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+      InputStream in = exchange.getRequestBody();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        body.write(buffer, 0, n);
+      }
+      in.close();
+      parseForm(body.toString("UTF-8"), request);
+    }
+    return request;
+  }
+
+  private static void parseForm(String form, Map<String, String> request) throws IOException {
+    if (form == null || form.isEmpty()) {
+      return;
+    }
+    for (String pair : form.split("&")) {
+      String[] parts = pair.split("=", 2);
+      if (parts.length == 2) {
+        request.put(URLDecoder.decode(parts[0], "UTF-8").trim(),
+                URLDecoder.decode(parts[1], "UTF-8").trim());
+      }
+    }
+  }
+}
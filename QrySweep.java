@@ -0,0 +1,544 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parameter sweep.  Evaluates every query under a grid of BM25 and
+ * Indri parameters, and writes one run file per configuration, so
+ * that tuning does not rerun QryEval, and re-read the same postings,
+ * once per setting.
+ * <p/>
+ * Usage:  java QrySweep paramFile
+ * <p/>
+ * The parameter file is the same as for {@link QryEval}, with the grid
+ * given as comma separated values, e.g.
+ * <pre>
+ *   sweep:BM25:k_1=0.8,1.2,1.6
+ *   sweep:BM25:b=0.5,0.75
+ *   sweep:Indri:mu=1000,2500
+ *   sweep:Indri:lambda=0.4,0.7
+ * </pre>
+ * A model is swept if any of its parameters is; a parameter that is not
+ * swept takes its usual value, e.g. BM25:b.  Both models may be swept
+ * at once.  The run of each configuration is written to
+ * trecEvalOutputPath followed by its name, e.g.
+ * run.txt.BM25-k_1=1.2-b=0.75.
+ * <p/>
+ * Queries that are a flat #SUM or #AND of terms under a model, which
+ * unstructured queries are, are evaluated in one pass for all the
+ * configurations of every model: the postings of every term are read
+ * once, and candidate documents are scored in blocks, with a vector of
+ * accumulators per configuration.  Scores are those of document-at-a-time
+ * evaluation.  Other queries, and all queries with relevance feedback,
+ * are evaluated once per configuration as QryEval would.
+ * <p/>
+ * With qrelsFilePath, the rankings of every configuration are also
+ * evaluated in memory by {@link QrelsEvaluator}, and the means of each
+ * configuration are reported; run files are then only written if
+ * trecEvalOutputPath is given.
+ *
+ * @author junjiah
+ */
+public class QrySweep {
+
+  /**
+   * Number of candidate documents scored together.
+   */
+  private static final int BLOCK_SIZE = 1024;
+
+  /**
+   * The parameters of each model that can be swept.
+   */
+  private static final String[][] SWEEP_PARAMETERS = {
+          {"BM25", "k_1", "b"},
+          {"Indri", "mu", "lambda"}
+  };
+
+  /**
+   * Relevance judgments to evaluate rankings with, or null.
+   */
+  private static QrelsEvaluator qrels;
+
+  private QrySweep() {
+  }
+
+  /**
+   * @param args The only argument is the path to the parameter file.
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    final long startTime = System.currentTimeMillis();
+    if (args.length < 1) {
+      System.err.println("Usage:  java " + System.getProperty("sun.java.command")
+              + " paramFile\n\n");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameters(args[0]);
+    if (!params.containsKey("trecEvalOutputPath") && !params.containsKey("qrelsFilePath")) {
+      QryEval.fatalError("Error: Parameter 'trecEvalOutputPath' was missing.");
+    }
+    if (params.containsKey("qrelsFilePath")) {
+      qrels = new QrelsEvaluator(params.get("qrelsFilePath"));
+    }
+    QryEval.openIndex(params);
+    Map<Integer, String> queryStrings = QryEval.readQueries(params.get("queryFilePath"));
+
+    List<Configuration> bm25 = grid(params, SWEEP_PARAMETERS[0]);
+    List<Configuration> indri = grid(params, SWEEP_PARAMETERS[1]);
+    if (bm25.isEmpty() && indri.isEmpty()) {
+      QryEval.fatalError("Error: No parameter is swept, e.g. sweep:BM25:k_1=0.8,1.2.");
+    }
+    boolean feedback = params.containsKey("fb") && params.get("fb").equalsIgnoreCase("true");
+
+    List<Configuration> configurations = new ArrayList<Configuration>(bm25);
+    configurations.addAll(indri);
+    int onePass = 0;
+    try {
+      for (Configuration configuration : configurations) {
+        if (params.containsKey("trecEvalOutputPath")) {
+          configuration.writer = new BufferedWriter(new FileWriter(
+                  new File(params.get("trecEvalOutputPath") + "." + configuration.name)));
+        }
+      }
+
+      for (Map.Entry<Integer, String> entry : queryStrings.entrySet()) {
+        int queryId = entry.getKey();
+        String queryString = entry.getValue();
+
+        // a model whose query is not flat is evaluated per configuration
+        FlatQuery bm25Query = feedback ? null : FlatQuery.parse(queryString, bm25);
+        FlatQuery indriQuery = feedback ? null : FlatQuery.parse(queryString, indri);
+        if (bm25Query != null || indriQuery != null) {
+          sweep(queryId, bm25Query, bm25, indriQuery, indri);
+          onePass++;
+        }
+        if (bm25Query == null) {
+          evaluate(queryId, queryString, bm25, params, queryStrings);
+        }
+        if (indriQuery == null) {
+          evaluate(queryId, queryString, indri, params, queryStrings);
+        }
+      }
+    } finally {
+      for (Configuration configuration : configurations) {
+        if (configuration.writer != null) {
+          configuration.writer.close();
+        }
+      }
+    }
+
+    System.out.println(configurations.size() + " configurations, " + onePass + " of " +
+            queryStrings.size() + " queries evaluated in one pass");
+    if (qrels != null) {
+      Configuration best = null;
+      for (Configuration configuration : configurations) {
+        System.out.print(configuration.name + "\n" + configuration.summary.report());
+        if (best == null || configuration.summary.mean()[0] > best.summary.mean()[0]) {
+          best = configuration;
+        }
+      }
+      System.out.println("Best map: " + best.name);
+    }
+    final long endTime = System.currentTimeMillis();
+    System.out.println("Total evaluation time: " + (endTime - startTime) / 1000.0 + " seconds");
+  }
+
+  /**
+   * Build the configurations of a model from the parameter grid.
+   *
+   * @param params The parameters read from the parameter file.
+   * @param model  The model name followed by the names of its parameters
+   *               that can be swept.
+   * @return The configurations, empty if the model is not swept.
+   */
+  private static List<Configuration> grid(Map<String, String> params, String[] model) {
+    List<Configuration> configurations = new ArrayList<Configuration>();
+    boolean swept = false;
+    for (int i = 1; i < model.length; i++) {
+      swept |= params.containsKey("sweep:" + model[0] + ":" + model[i]);
+    }
+    if (!swept) {
+      return configurations;
+    }
+
+    Map<String, String> base = new HashMap<String, String>(params);
+    base.put("retrievalAlgorithm", model[0]);
+    configurations.add(new Configuration(model[0], base));
+
+    // the cartesian product, one parameter at a time
+    for (int i = 1; i < model.length; i++) {
+      String name = model[0] + ":" + model[i];
+      String values = params.get("sweep:" + name);
+      if (values == null) {
+        values = params.get(name);
+      }
+      if (values == null) {
+        QryEval.fatalError("Error: Parameter '" + name + "' was missing.");
+      }
+
+      List<Configuration> product = new ArrayList<Configuration>();
+      for (Configuration configuration : configurations) {
+        for (String value : values.split(",")) {
+          Map<String, String> configParams = new HashMap<String, String>(configuration.params);
+          configParams.put(name, value.trim());
+          product.add(new Configuration(
+                  configuration.name + "-" + model[i] + "=" + value.trim(), configParams));
+        }
+      }
+      configurations = product;
+    }
+
+    for (Configuration configuration : configurations) {
+      configuration.model = QryEval.createModel(configuration.params);
+    }
+    return configurations;
+  }
+
+  /**
+   * Evaluate a query once per configuration.
+   */
+  private static void evaluate(int queryId, String queryString,
+                               List<Configuration> configurations, Map<String, String> params,
+                               Map<Integer, String> queryStrings) throws Exception {
+    for (Configuration configuration : configurations) {
+      if (configuration.context == null) {
+        configuration.context = new QryEvalContext(configuration.params, queryStrings.keySet());
+      }
+      QryEvalContext.Output output = configuration.context.evaluate(queryId, queryString);
+      configuration.record(queryId, output.externalIds, output.rankLines);
+    }
+  }
+
+  /**
+   * Evaluate a query under every configuration of both models in one
+   * pass over the postings of its terms.
+   *
+   * @param queryId     The query id.
+   * @param bm25Query   The query under BM25, or null.
+   * @param bm25        The BM25 configurations.
+   * @param indriQuery  The query under Indri, or null.
+   * @param indri       The Indri configurations.
+   * @throws IOException
+   */
+  private static void sweep(int queryId, FlatQuery bm25Query, List<Configuration> bm25,
+                            FlatQuery indriQuery, List<Configuration> indri) throws IOException {
+
+    // read the inverted list of every distinct term once
+    List<InvList> lists = new ArrayList<InvList>();
+    Map<String, Integer> slotOf = new HashMap<String, Integer>();
+    for (FlatQuery query : Arrays.asList(bm25Query, indriQuery)) {
+      if (query != null) {
+        query.bind(lists, slotOf);
+      }
+    }
+    int numLists = lists.size();
+    InvList[] invLists = lists.toArray(new InvList[numLists]);
+    int[][] docids = new int[numLists][];
+    int[][] tfs = new int[numLists][];
+    DocLengthStore.FieldLengths[] lengths = new DocLengthStore.FieldLengths[numLists];
+    for (int t = 0; t < numLists; t++) {
+      docids[t] = invLists[t].getDocidArray();
+      tfs[t] = invLists[t].getTfArray();
+      lengths[t] = QryEval.LENGTH_STORE.getFieldLengths(invLists[t].field);
+    }
+    int[] candidates = DocidSetOps.union(docids);
+
+    ScoreList[] bm25Scores = newScoreLists(bm25Query == null ? 0 : bm25.size());
+    ScoreList[] indriScores = newScoreLists(indriQuery == null ? 0 : indri.size());
+    double[][] bm25Accumulators = new double[bm25Scores.length][BLOCK_SIZE];
+    double[][] indriAccumulators = new double[indriScores.length][BLOCK_SIZE];
+
+    // term frequency and document length of every list in the block
+    int[][] blockTfs = new int[numLists][BLOCK_SIZE];
+    int[][] blockLengths = new int[numLists][BLOCK_SIZE];
+    int[] next = new int[numLists];
+
+    for (int start = 0; start < candidates.length; start += BLOCK_SIZE) {
+      int blockSize = Math.min(BLOCK_SIZE, candidates.length - start);
+      for (int t = 0; t < numLists; t++) {
+        for (int k = 0; k < blockSize; k++) {
+          int docid = candidates[start + k];
+          if (next[t] < docids[t].length && docids[t][next[t]] == docid) {
+            blockTfs[t][k] = tfs[t][next[t]++];
+          } else {
+            blockTfs[t][k] = 0;
+          }
+          blockLengths[t][k] = lengths[t].get(docid);
+        }
+      }
+
+      for (int c = 0; c < bm25Scores.length; c++) {
+        double[] acc = bm25Accumulators[c];
+        Arrays.fill(acc, 0, blockSize, 0.0);
+        bm25Query.scoreBm25((RetrievalModelBM25) bm25.get(c).model, blockTfs, blockLengths,
+                blockSize, acc);
+        bm25Query.collect(candidates, start, blockSize, blockTfs, acc, 1.0, bm25Scores[c]);
+      }
+      for (int c = 0; c < indriScores.length; c++) {
+        double[] acc = indriAccumulators[c];
+        Arrays.fill(acc, 0, blockSize, 0.0);
+        indriQuery.scoreIndri((RetrievalModelIndri) indri.get(c).model, blockTfs, blockLengths,
+                blockSize, acc);
+        indriQuery.collect(candidates, start, blockSize, blockTfs, acc, indriQuery.totalWeight,
+                indriScores[c]);
+      }
+    }
+
+    // documents are ranked by every configuration, but looked up once
+    Map<Integer, String> externalIds = new HashMap<Integer, String>();
+    for (int c = 0; c < bm25Scores.length; c++) {
+      write(queryId, bm25Scores[c], externalIds, bm25.get(c));
+    }
+    for (int c = 0; c < indriScores.length; c++) {
+      write(queryId, indriScores[c], externalIds, indri.get(c));
+    }
+  }
+
+  private static ScoreList[] newScoreLists(int n) {
+    ScoreList[] scoreLists = new ScoreList[n];
+    for (int i = 0; i < n; i++) {
+      scoreLists[i] = new ScoreList();
+    }
+    return scoreLists;
+  }
+
+  private static void write(int queryId, ScoreList docScores, Map<Integer, String> externalIds,
+                            Configuration configuration) throws IOException {
+    docScores.sortAndTruncate();
+    int size = docScores.scores.size();
+    String[] ids = new String[size];
+    double[] scores = new double[size];
+    for (int j = 0; j < size; j++) {
+      int docid = docScores.getDocid(j);
+      String externalId = externalIds.get(docid);
+      if (externalId == null) {
+        externalId = QryEval.getExternalDocid(docid);
+        externalIds.put(docid, externalId);
+      }
+      ids[j] = externalId;
+      scores[j] = docScores.getDocidScore(j);
+    }
+    configuration.record(queryId, ids, QryEvalContext.formatRankLines(queryId, ids, scores));
+  }
+
+  /**
+   * One point of the parameter grid.
+   */
+  private static class Configuration {
+
+    /**
+     * The model and parameter values, e.g. BM25-k_1=1.2-b=0.75.
+     */
+    final String name;
+
+    final Map<String, String> params;
+
+    RetrievalModel model;
+
+    /**
+     * Evaluates the queries that are not swept in one pass; created on
+     * first use.
+     */
+    QryEvalContext context;
+
+    /**
+     * The run file, or null if runs are only evaluated.
+     */
+    BufferedWriter writer;
+
+    final QrelsEvaluator.Summary summary = new QrelsEvaluator.Summary();
+
+    Configuration(String name, Map<String, String> params) {
+      this.name = name;
+      this.params = params;
+    }
+
+    /**
+     * Write the ranking of a query, and evaluate it if there are
+     * relevance judgments.
+     */
+    void record(int queryId, String[] externalIds, String rankLines) throws IOException {
+      if (qrels != null) {
+        summary.add(qrels.evaluate(queryId, externalIds));
+      }
+      if (writer != null) {
+        writer.write(rankLines);
+      }
+    }
+  }
+
+  /**
+   * A query that is one BM25 #SUM or Indri #AND or #WAND of terms, with
+   * the weight of every term: its qtf under BM25, its weight under Indri.
+   */
+  private static class FlatQuery {
+
+    final List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+
+    final List<Double> weights = new ArrayList<Double>();
+
+    double totalWeight = 0;
+
+    /**
+     * Index of every term's list in the lists of the sweep.
+     */
+    int[] slots;
+
+    double[] collectionProbabilities;
+
+    double[] idfs;
+
+    double[] averageLengths;
+
+    /**
+     * Parse and rewrite a query as the configurations of a model would.
+     *
+     * @return The flat query, or null if the model is not swept or the
+     * query is not flat.
+     */
+    static FlatQuery parse(String queryString, List<Configuration> configurations)
+            throws IOException {
+      if (configurations.isEmpty()) {
+        return null;
+      }
+      RetrievalModel model = configurations.get(0).model;
+      Qryop query = QryRewriter.rewrite(
+              QryEval.parseQuery(queryString, QryEval.createDefaultQryop(model)), model);
+      if (query == null) {
+        return null;
+      }
+
+      FlatQuery flat = new FlatQuery();
+      Class<?> type = query.getClass();
+      int expected = query.args.size();
+      if (type == QryopSlScore.class) {
+        // a single term scores like a #SUM or #AND of it
+        flat.add(query, 1.0);
+        expected = 1;
+      } else if (model instanceof RetrievalModelBM25 && type == QryopSlSum.class) {
+        for (int i = 0; i < query.args.size(); i++) {
+          flat.add(query.args.get(i), ((QryopSlSum) query).getQtf(i));
+        }
+      } else if (model instanceof RetrievalModelIndri && type == QryopSlAnd.class) {
+        for (Qryop arg : query.args) {
+          flat.add(arg, 1.0);
+        }
+      } else if (model instanceof RetrievalModelIndri && type == QryopSlWeightedAnd.class &&
+              ((QryopSlWeighted) query).getWeights().size() == query.args.size()) {
+        for (int i = 0; i < query.args.size(); i++) {
+          flat.add(query.args.get(i), ((QryopSlWeighted) query).getWeights().get(i));
+        }
+      } else {
+        return null;
+      }
+      return flat.terms.size() == expected ? flat : null;
+    }
+
+    private void add(Qryop arg, double weight) {
+      if (arg instanceof QryopSlScore) {
+        arg = arg.args.get(0);
+      }
+      if (arg instanceof QryopIlTerm) {
+        terms.add((QryopIlTerm) arg);
+        weights.add(weight);
+        totalWeight += weight;
+      }
+    }
+
+    /**
+     * Read the inverted lists of the terms that are not read yet, and the
+     * collection statistics of every term.
+     */
+    void bind(List<InvList> lists, Map<String, Integer> slotOf) throws IOException {
+      int n = terms.size();
+      slots = new int[n];
+      collectionProbabilities = new double[n];
+      idfs = new double[n];
+      averageLengths = new double[n];
+      for (int i = 0; i < n; i++) {
+        QryopIlTerm term = terms.get(i);
+        Integer slot = slotOf.get(term.toString());
+        if (slot == null) {
+          slot = lists.size();
+          slotOf.put(term.toString(), slot);
+          lists.add(new InvList(term.getTerm(), term.getField(), false));
+        }
+        slots[i] = slot;
+        InvList list = lists.get(slot);
+
+        String field = term.getField();
+        collectionProbabilities[i] =
+                ((double) list.ctf) / QryEval.READER.getSumTotalTermFreq(field);
+        idfs[i] = Math.log((QryEval.READER.getDocCount(field) - list.df + 0.5) / (list.df + 0.5));
+        averageLengths[i] = RetrievalModelBM25.getAverageLength(field);
+      }
+    }
+
+    /**
+     * Add the BM25 score of every term to the accumulators of a block,
+     * in argument order.
+     */
+    void scoreBm25(RetrievalModelBM25 model, int[][] blockTfs, int[][] blockLengths,
+                   int blockSize, double[] acc) {
+      double k_3 = model.getK_3();
+      for (int i = 0; i < slots.length; i++) {
+        double qtf = weights.get(i);
+        double userWeight = (k_3 + 1) * qtf / (k_3 + qtf);
+        int[] tf = blockTfs[slots[i]];
+        int[] length = blockLengths[slots[i]];
+        for (int k = 0; k < blockSize; k++) {
+          if (tf[k] > 0) {
+            double norm = model.getLengthNorm(length[k], averageLengths[i]);
+            acc[k] += idfs[i] * (tf[k] / (tf[k] + norm)) * userWeight;
+          }
+        }
+      }
+    }
+
+    /**
+     * Add the weighted Indri score of every term, or its default score,
+     * to the accumulators of a block, in argument order.
+     */
+    void scoreIndri(RetrievalModelIndri model, int[][] blockTfs, int[][] blockLengths,
+                    int blockSize, double[] acc) {
+      int mu = model.getMu();
+      double lambda = model.getLambda();
+      for (int i = 0; i < slots.length; i++) {
+        double weight = weights.get(i);
+        double ctfParam1 = mu * collectionProbabilities[i];
+        double ctfParam2 = (1 - lambda) * collectionProbabilities[i];
+        int[] tf = blockTfs[slots[i]];
+        int[] length = blockLengths[slots[i]];
+        for (int k = 0; k < blockSize; k++) {
+          double smoothedLength = length[k] + mu;
+          double p = tf[k] > 0 ?
+                  lambda * (tf[k] + ctfParam1) / smoothedLength + ctfParam2 :
+                  lambda * ctfParam1 / smoothedLength + ctfParam2;
+          acc[k] += model.log(p) * weight;
+        }
+      }
+    }
+
+    /**
+     * Add the documents of a block that match any term to a score list.
+     */
+    void collect(int[] candidates, int start, int blockSize, int[][] blockTfs, double[] acc,
+                 double normalizer, ScoreList docScores) {
+      for (int k = 0; k < blockSize; k++) {
+        for (int slot : slots) {
+          if (blockTfs[slot][k] > 0) {
+            docScores.add(candidates[start + k], acc[k] / normalizer);
+            break;
+          }
+        }
+      }
+    }
+  }
+}
@@ -27,6 +27,11 @@ public abstract class Qryop {
 
   protected List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
 
+  //  How the operator is evaluated, chosen by QryPlanner; null if the
+  //  query was not planned.
+
+  protected QryPlan plan;
+
   /**
    * Appends an argument to the list of query operator arguments.  This
    * simplifies the design of some query parsing architectures.
@@ -64,6 +69,33 @@ public abstract class Qryop {
    */
   public abstract QryResult evaluate(RetrievalModel r) throws IOException;
 
+  /**
+   * Create an iterator over the documents this operator matches, which
+   * evaluates the operator and its arguments one document at a time.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  public abstract DocIterator iterator(RetrievalModel r) throws IOException;
+
+  /**
+   * Estimate the cost of evaluating this operator, i.e. the number of
+   * postings it reads.  Used to decide whether evaluating it on another
+   * thread is worthwhile.
+   *
+   * @return The estimated cost; by default the sum of the costs of the
+   * arguments.
+   * @throws IOException
+   */
+  public long estimateCost() throws IOException {
+    long cost = 0;
+    for (Qryop arg : this.args) {
+      cost += arg.estimateCost();
+    }
+    return cost;
+  }
+
   /**
    * Free this operator's DaaT pointers.
    *
@@ -10,6 +10,7 @@
  */
 
 import java.io.IOException;
+import java.util.List;
 
 public abstract class QryopIl extends Qryop {
 
@@ -23,9 +24,10 @@ public abstract class QryopIl extends Qryop {
    */
   public void allocDaaTPtrs(RetrievalModel r) throws IOException {
 
-    for (Qryop arg : this.args) {
+    QryResult[] results = ParallelEvaluator.evaluate(this.args, r);
+    for (QryResult result : results) {
       DaaTPtr ptri = new DaaTPtr();
-      ptri.invList = arg.evaluate(r).invertedList;
+      ptri.invList = result.invertedList;
       ptri.scoreList = null;
       ptri.nextDoc = 0;
 
@@ -33,4 +35,93 @@ public abstract class QryopIl extends Qryop {
     }
   }
 
+  /**
+   * Create an iterator over the postings of this operator.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  @Override
+  public abstract PostingIterator iterator(RetrievalModel r) throws IOException;
+
+  /**
+   * Create the iterators of the arguments, which must all be inverted
+   * lists of the same field.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterators, in argument order.
+   * @throws IOException
+   */
+  protected PostingIterator[] argIterators(RetrievalModel r) throws IOException {
+    PostingIterator[] iterators = new PostingIterator[this.args.size()];
+    for (int i = 0; i < iterators.length; i++) {
+      if (!(this.args.get(i) instanceof QryopIl)) {
+        QryEval.fatalError("Error:  Invalid argument in " +
+                this.toString());
+      }
+      iterators[i] = ((QryopIl) this.args.get(i)).iterator(r);
+      if ((i > 0) && (!iterators[i].getField().equals(iterators[0].getField()))) {
+        QryEval.fatalError("Error:  Arguments must be in the same field:  " +
+                this.toString());
+      }
+    }
+    return iterators;
+  }
+
+
+  /**
+   * Iterates the documents that contain all arguments at matching
+   * positions, for #NEAR and #WINDOW.  The term frequency is the number
+   * of matches.
+   */
+  protected abstract static class ProximityIterator extends PostingIterator {
+
+    private final PostingIterator[] args;
+
+    /**
+     * Positions of the matches in the current document.
+     */
+    private List<Integer> matches;
+
+    protected ProximityIterator(PostingIterator[] args) {
+      this.args = args;
+      this.field = args[0].getField();
+    }
+
+    /**
+     * Find the matches in the current document, which contains all
+     * arguments.
+     *
+     * @return The positions of the matches, in increasing order.
+     * @throws IOException
+     */
+    protected abstract List<Integer> match() throws IOException;
+
+    @Override
+    public int advance(int target) throws IOException {
+      for (docid = advanceAll(args, target); docid != NO_MORE_DOCS;
+           docid = advanceAll(args, docid + 1)) {
+        matches = match();
+        if (!matches.isEmpty()) {
+          break;
+        }
+      }
+      return docid;
+    }
+
+    @Override
+    public int tf() {
+      return matches.size();
+    }
+
+    @Override
+    public int[] positions() {
+      int[] positions = new int[matches.size()];
+      for (int i = 0; i < positions.length; i++) {
+        positions[i] = matches.get(i);
+      }
+      return positions;
+    }
+  }
 }
@@ -1,7 +1,6 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
 
 public class QryopIlNear extends QryopIl {
 
@@ -15,6 +14,13 @@ public class QryopIlNear extends QryopIl {
     this.distance = distance;
   }
 
+  /**
+   * @return the maximum distance between adjacent arguments
+   */
+  public int getDistance() {
+    return distance;
+  }
+
   /**
    * Appends an argument to the list of query operator arguments.
    *
@@ -36,79 +42,115 @@ public class QryopIlNear extends QryopIl {
    */
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
+    // the same subtree may have been evaluated already
+    String cacheKey = SubtreeCache.key(this);
+    QryResult cached = SubtreeCache.get(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+
     allocDaaTPtrs(r);
     syntaxCheckArgResults(this.daatPtrs);
 
     QryResult result = new QryResult();
     result.invertedList.field = this.daatPtrs.get(0).invList.field;
-    DaaTPtr ptr0 = this.daatPtrs.get(0);
-
-    ITERATE_DOCS:
-    for (; ptr0.nextDoc < ptr0.invList.postings.size(); ptr0.nextDoc++) {
-      int ptr0Docid = ptr0.invList.getDocid(ptr0.nextDoc);
-
-      for (int j = 1; j < this.daatPtrs.size(); ++j) {
-        DaaTPtr ptrj = this.daatPtrs.get(j);
-
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.invList.postings.size()) {
-            break ITERATE_DOCS;     // No more docs can match
-          } else if (ptrj.invList.getDocid(ptrj.nextDoc) > ptr0Docid) {
-            continue ITERATE_DOCS;  // This ptr0docid can't match.
-          } else if (ptrj.invList.getDocid(ptrj.nextDoc) < ptr0Docid) {
-            ptrj.nextDoc++;         // Not yet at the right doc.
-          } else {
-            break;                  // ptrj matches ptr0Docid
-          }
+
+    //  Only the documents that contain all arguments can match, so
+    //  find them first, with the position of each in every argument.
+
+    int[][] docids = new int[this.daatPtrs.size()][];
+    int[] sizes = new int[docids.length];
+    for (int j = 0; j < docids.length; ++j) {
+      docids[j] = this.daatPtrs.get(j).invList.getDocidArray();
+      sizes[j] = docids[j].length;
+    }
+    DocidSetOps.Intersection common = DocidSetOps.intersect(docids, sizes);
+
+    for (int k = 0; k < common.size; k++) {
+      int[][] positions = new int[this.daatPtrs.size()][];
+      for (int j = 0; j < positions.length; ++j) {
+        positions[j] = this.daatPtrs.get(j).invList.getPositionArray(common.positions[j][k]);
+      }
+      List<Integer> matches = matchPositions(positions, distance);
+      if (!matches.isEmpty()) {
+        result.invertedList.appendPosting(common.docids[k], matches);
+      }
+    }
+    freeDaaTPtrs();
+    SubtreeCache.put(cacheKey, result.invertedList);
+    return result;
+  }
+
+  /**
+   * Create an iterator over the documents where the arguments occur in
+   * order, each within distance of the previous one.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  @Override
+  public PostingIterator iterator(RetrievalModel r) throws IOException {
+    QryResult cached = SubtreeCache.get(SubtreeCache.key(this));
+    if (cached != null) {
+      return PostingIterator.over(cached.invertedList);
+    }
+    final PostingIterator[] args = argIterators(r);
+    return new ProximityIterator(args) {
+      @Override
+      protected List<Integer> match() throws IOException {
+        int[][] positions = new int[args.length][];
+        for (int j = 0; j < args.length; ++j) {
+          positions[j] = args[j].positions();
         }
+        return matchPositions(positions, distance);
       }
+    };
+  }
 
-      List<Integer> positions = new ArrayList<Integer>();
-      // record current position when iterating the same doc for other daat pointers
-      int[] daatPtrPos = new int[this.daatPtrs.size()];
-      int prevPos;
-      ITERATE_POSTING:
-      for (int ptr0Pos : ptr0.invList.postings.get(ptr0.nextDoc).positions) {
-        prevPos = ptr0Pos;
-
-        ITERATE_DAAT_PTR:
-        for (int j = 1; j < this.daatPtrs.size(); ++j) {
-          DaaTPtr ptrj = this.daatPtrs.get(j);
-          Vector<Integer> ptrjPostings = ptrj.invList.postings.get(ptrj.nextDoc).positions;
-          int ptrjPostingSize = ptrjPostings.size();
-
-          for (; daatPtrPos[j] < ptrjPostingSize; ++daatPtrPos[j]) {
-            int ptrjPos = ptrjPostings.get(daatPtrPos[j]);
-            if (ptrjPos > prevPos) {
-              if (ptrjPos - prevPos <= distance) {
-                prevPos = ptrjPos;               // find good position in this
-                continue ITERATE_DAAT_PTR;       // doc, process next daatPtr.
-              } else {                           // otherwise check next ptr0Pos,
-                continue ITERATE_POSTING;        // since this one is impossible
-              }
-            } else // try ptrjPos until greater than ptr0Pos
-            {
-              continue;
+  /**
+   * Find the matches of #NEAR in a document that contains all arguments.
+   *
+   * @param positions The positions of every argument in the document.
+   * @param distance  The maximum distance between adjacent arguments.
+   * @return The positions of the first argument in every match.
+   */
+  static List<Integer> matchPositions(int[][] positions, int distance) {
+    List<Integer> matches = new ArrayList<Integer>();
+    // record current position when iterating the same doc for other arguments
+    int[] argPos = new int[positions.length];
+    int prevPos;
+    ITERATE_POSTING:
+    for (int pos0 : positions[0]) {
+      prevPos = pos0;
+
+      ITERATE_ARG:
+      for (int j = 1; j < positions.length; ++j) {
+        for (; argPos[j] < positions[j].length; ++argPos[j]) {
+          int posj = positions[j][argPos[j]];
+          if (posj > prevPos) {
+            if (posj - prevPos <= distance) {
+              prevPos = posj;                // find good position in this
+              continue ITERATE_ARG;          // doc, process next argument.
+            } else {                         // otherwise check next pos0,
+              continue ITERATE_POSTING;      // since this one is impossible
             }
           }
-          // if all positions of ptrj are smaller than ptr0Pos,
-          // this doc cannot satisfy NEAR's requirements,
-          // therefore stop iterating posting and record current result
-          break ITERATE_POSTING;
-        }
-        // all docIds have positions matching the requirement, record the pos
-        positions.add(ptr0Pos);
-        // advance position pointers in other daat ptr
-        for (int j = 1; j < daatPtrPos.length; ++j) {
-          ++daatPtrPos[j];
+          // try posj until greater than pos0
         }
+        // if all positions of argument j are smaller than pos0,
+        // this doc cannot satisfy NEAR's requirements,
+        // therefore stop iterating posting and record current result
+        break ITERATE_POSTING;
       }
-      if (!positions.isEmpty()) {
-        result.invertedList.appendPosting(ptr0Docid, positions);
+      // all arguments have positions matching the requirement, record the pos
+      matches.add(pos0);
+      // advance position pointers in other arguments
+      for (int j = 1; j < argPos.length; ++j) {
+        ++argPos[j];
       }
     }
-    freeDaaTPtrs();
-    return result;
+    return matches;
   }
 
   /**
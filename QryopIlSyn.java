@@ -44,6 +44,13 @@ public class QryopIlSyn extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    // the same subtree may have been evaluated already
+    String cacheKey = SubtreeCache.key(this);
+    QryResult cached = SubtreeCache.get(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+
     //  Initialization
 
     allocDaaTPtrs(r);
@@ -52,6 +59,10 @@ public class QryopIlSyn extends QryopIl {
     QryResult result = new QryResult();
     result.invertedList.field = this.daatPtrs.get(0).invList.field;
 
+    //  Without positions, the term frequencies of the arguments add up.
+
+    boolean positionsNeeded = plan == null || plan.positions;
+
     //  Each pass of the loop adds 1 document to result until all of
     //  the inverted lists are depleted.  When a list is depleted, it
     //  is removed from daatPtrs, so this loop runs until daatPtrs is empty.
@@ -67,16 +78,22 @@ public class QryopIlSyn extends QryopIl {
       //  that match the nextDocid.
 
       List<Integer> positions = new ArrayList<Integer>();
+      int tf = 0;
 
       for (DaaTPtr ptri : this.daatPtrs) {
         if (ptri.invList.getDocid(ptri.nextDoc) == nextDocid) {
           positions.addAll(ptri.invList.postings.get(ptri.nextDoc).positions);
+          tf += ptri.invList.getTf(ptri.nextDoc);
           ptri.nextDoc++;
         }
       }
 
-      Collections.sort(positions);
-      result.invertedList.appendPosting(nextDocid, positions);
+      if (positionsNeeded) {
+        Collections.sort(positions);
+        result.invertedList.appendPosting(nextDocid, positions);
+      } else {
+        result.invertedList.appendPosting(nextDocid, tf);
+      }
 
       //  If a DaatPtr has reached the end of its list, remove it.
       //  The loop is backwards so that removing an arg does not
@@ -92,10 +109,26 @@ public class QryopIlSyn extends QryopIl {
     }
 
     freeDaaTPtrs();
+    SubtreeCache.put(cacheKey, result.invertedList);
 
     return result;
   }
 
+  /**
+   * Create an iterator over the union of the arguments' postings.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  public PostingIterator iterator(RetrievalModel r) throws IOException {
+    QryResult cached = SubtreeCache.get(SubtreeCache.key(this));
+    if (cached != null) {
+      return PostingIterator.over(cached.invertedList);
+    }
+    return new SynIterator(argIterators(r));
+  }
+
   /*
    *  Return a string version of this query operator.
    *  @return The string version of this query operator.
@@ -152,4 +185,52 @@ public class QryopIlSyn extends QryopIl {
 
     return true;
   }
+
+  /**
+   * Iterates the documents that match any argument; term frequencies
+   * add up and positions are merged.
+   */
+  private static class SynIterator extends PostingIterator {
+
+    private final PostingIterator[] args;
+
+    SynIterator(PostingIterator[] args) {
+      this.args = args;
+      this.field = args[0].getField();
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return docid = advanceAny(args, target);
+    }
+
+    @Override
+    public int tf() throws IOException {
+      int tf = 0;
+      for (PostingIterator arg : args) {
+        if (arg.docid() == docid) {
+          tf += arg.tf();
+        }
+      }
+      return tf;
+    }
+
+    @Override
+    public int[] positions() throws IOException {
+      List<Integer> positions = new ArrayList<Integer>();
+      for (PostingIterator arg : args) {
+        if (arg.docid() == docid) {
+          for (int position : arg.positions()) {
+            positions.add(position);
+          }
+        }
+      }
+      Collections.sort(positions);
+      int[] array = new int[positions.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = positions.get(i);
+      }
+      return array;
+    }
+  }
 }
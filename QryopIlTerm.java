@@ -8,7 +8,15 @@
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 public class QryopIlTerm extends QryopIl {
 
@@ -16,6 +24,17 @@ public class QryopIlTerm extends QryopIl {
 
   private String field;
 
+  /**
+   * Document frequency of the term, or -1 if not looked up yet.
+   */
+  private long df = -1;
+
+  /**
+   * Inverted list fetched once for a batch of queries, see
+   * {@link SharedPostings}, or null to read the index.
+   */
+  private InvList sharedList;
+
   /**
    * Constructor.  The term is assumed to match the body field.
    *
@@ -58,10 +77,74 @@ public class QryopIlTerm extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
     QryResult result = new QryResult();
-    result.invertedList = new InvList(this.term, this.field);
+    // a partition needs a list restricted to its docids
+    if (this.sharedList != null && PartitionedEvaluator.current() == null) {
+      result.invertedList = this.sharedList;
+    } else {
+      // positions are only read if the plan needs them
+      result.invertedList = new InvList(this.term, this.field, plan == null || plan.positions);
+    }
+    if (plan != null) {
+      plan.actualPostings = result.invertedList.df;
+    }
     return result;
   }
 
+  /**
+   * Create an iterator that reads the postings of the term from the
+   * index as they are consumed, segment by segment, within the current
+   * partition if any.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  @Override
+  public PostingIterator iterator(RetrievalModel r) throws IOException {
+    if (this.sharedList != null && PartitionedEvaluator.current() == null) {
+      return PostingIterator.over(this.sharedList);
+    }
+    return new TermIterator(this);
+  }
+
+  /**
+   * @return The term string.
+   */
+  public String getTerm() {
+    return term;
+  }
+
+  /**
+   * @return The field the term matches in.
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * Use an inverted list that was already fetched instead of reading the
+   * index.  The list must not be modified by the caller.
+   *
+   * @param sharedList The inverted list of this term.
+   */
+  public void setSharedList(InvList sharedList) {
+    this.sharedList = sharedList;
+  }
+
+  /**
+   * The cost of a term is its document frequency.
+   *
+   * @return The document frequency of the term.
+   * @throws IOException
+   */
+  @Override
+  public long estimateCost() throws IOException {
+    if (df < 0) {
+      df = QryEval.READER.docFreq(new Term(this.field, this.term));
+    }
+    return df;
+  }
+
   /*
    *  Return a string version of this query operator.  
    *  @return The string version of this query operator.
@@ -73,4 +156,127 @@ public class QryopIlTerm extends QryopIl {
       return (term + "." + field);
     }
   }
+
+  /**
+   * Iterates the postings of a term in the Lucene index.  Positions of a
+   * document are only decoded if they are asked for.
+   */
+  private static class TermIterator extends PostingIterator {
+
+    private final Term term;
+
+    private final boolean positions;
+
+    private final QryPlan plan;
+
+    private final List<AtomicReaderContext> leaves;
+
+    /**
+     * Docid range of the current partition, or of the whole index.
+     */
+    private final int start, end;
+
+    /**
+     * The segment being read, its docid range, and its postings or null.
+     */
+    private int leaf = -1, docBase = 0, leafEnd = 0;
+
+    private DocsEnum postings;
+
+    /**
+     * Positions of the current document, or null if not read yet.
+     */
+    private int[] docPositions;
+
+    TermIterator(QryopIlTerm op) throws IOException {
+      this.term = new Term(op.field, op.term);
+      this.field = op.field;
+      this.positions = op.plan == null || op.plan.positions;
+      this.plan = op.plan;
+      this.leaves = op.estimateCost() < 1 ?
+              Collections.<AtomicReaderContext>emptyList() : QryEval.READER.leaves();
+
+      PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+      this.start = partition == null ? 0 : partition.lo;
+      this.end = partition == null ? Integer.MAX_VALUE : partition.hi;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      if (postings == null) {
+        return docid == NO_MORE_DOCS ? NO_MORE_DOCS : seek(start);
+      }
+      return found(postings.nextDoc());
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      if (postings != null && target == docid + 1) {
+        return nextDoc();
+      } else if (postings != null && target < leafEnd) {
+        return found(postings.advance(target - docBase));
+      }
+      return seek(Math.max(target, start));
+    }
+
+    @Override
+    public int tf() throws IOException {
+      return postings.freq();
+    }
+
+    @Override
+    public int[] positions() throws IOException {
+      if (docPositions == null) {
+        docPositions = new int[positions ? postings.freq() : 0];
+        for (int i = 0; i < docPositions.length; i++) {
+          docPositions[i] = ((DocsAndPositionsEnum) postings).nextPosition();
+        }
+      }
+      return docPositions;
+    }
+
+    /**
+     * Take a document of the current segment, or go on to the next
+     * segment if there is none.
+     */
+    private int found(int leafDocid) throws IOException {
+      if (leafDocid != DocIdSetIterator.NO_MORE_DOCS && docBase + leafDocid < end) {
+        docid = docBase + leafDocid;
+        docPositions = null;
+        if (plan != null) {
+          plan.actualPostings++;
+        }
+        return docid;
+      }
+      return seek(leafEnd);
+    }
+
+    /**
+     * Move to the first document at or after a target in the segments
+     * after the current one.
+     */
+    private int seek(int target) throws IOException {
+      postings = null;
+      while (++leaf < leaves.size()) {
+        AtomicReaderContext context = leaves.get(leaf);
+        docBase = context.docBase;
+        leafEnd = docBase + context.reader().maxDoc();
+        if (docBase >= end) {
+          break;
+        } else if (leafEnd <= target) {
+          continue;
+        }
+
+        //  Deleted documents are skipped.
+
+        postings = positions ?
+                context.reader().termPositionsEnum(term) : context.reader().termDocsEnum(term);
+        if (postings != null) {
+          return found(target > docBase ? postings.advance(target - docBase) : postings.nextDoc());
+        }
+      }
+      leaf = leaves.size();
+      return docid = NO_MORE_DOCS;
+    }
+  }
 }
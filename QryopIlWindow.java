@@ -1,7 +1,6 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
 
 public class QryopIlWindow extends QryopIl {
 
@@ -14,6 +13,13 @@ public class QryopIlWindow extends QryopIl {
     this.distance = distance;
   }
 
+  /**
+   * @return the size of the window
+   */
+  public int getDistance() {
+    return distance;
+  }
+
   /**
    * Appends an argument to the list of query operator arguments.  This
    * simplifies the design of some query parsing architectures.
@@ -37,81 +43,118 @@ public class QryopIlWindow extends QryopIl {
    */
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
+    // the same subtree may have been evaluated already
+    String cacheKey = SubtreeCache.key(this);
+    QryResult cached = SubtreeCache.get(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+
     allocDaaTPtrs(r);
     syntaxCheckArgResults(this.daatPtrs);
 
     QryResult result = new QryResult();
     result.invertedList.field = this.daatPtrs.get(0).invList.field;
-    DaaTPtr ptr0 = this.daatPtrs.get(0);
-
-    ITERATE_DOCS:
-    for (; ptr0.nextDoc < ptr0.invList.postings.size(); ptr0.nextDoc++) {
-      int ptr0Docid = ptr0.invList.getDocid(ptr0.nextDoc);
-
-      for (int j = 1; j < this.daatPtrs.size(); ++j) {
-        DaaTPtr ptrj = this.daatPtrs.get(j);
-
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.invList.postings.size()) {
-            break ITERATE_DOCS;     // No more docs can match
-          } else if (ptrj.invList.getDocid(ptrj.nextDoc) > ptr0Docid) {
-            continue ITERATE_DOCS;  // This ptr0docid can't match.
-          } else if (ptrj.invList.getDocid(ptrj.nextDoc) < ptr0Docid) {
-            ptrj.nextDoc++;         // Not yet at the right doc.
-          } else {
-            break;                  // ptrj matches ptr0Docid
-          }
+
+    //  Only the documents that contain all arguments can match, so
+    //  find them first, with the position of each in every argument.
+
+    int[][] docids = new int[this.daatPtrs.size()][];
+    int[] sizes = new int[docids.length];
+    for (int j = 0; j < docids.length; ++j) {
+      docids[j] = this.daatPtrs.get(j).invList.getDocidArray();
+      sizes[j] = docids[j].length;
+    }
+    DocidSetOps.Intersection common = DocidSetOps.intersect(docids, sizes);
+
+    for (int k = 0; k < common.size; k++) {
+      int[][] positions = new int[this.daatPtrs.size()][];
+      for (int j = 0; j < positions.length; ++j) {
+        positions[j] = this.daatPtrs.get(j).invList.getPositionArray(common.positions[j][k]);
+      }
+      List<Integer> matches = matchPositions(positions, distance);
+      if (!matches.isEmpty()) {
+        result.invertedList.appendPosting(common.docids[k], matches);
+      }
+    }
+    freeDaaTPtrs();
+    SubtreeCache.put(cacheKey, result.invertedList);
+    return result;
+  }
+
+  /**
+   * Create an iterator over the documents where the arguments occur in
+   * any order within a window of the given size.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  @Override
+  public PostingIterator iterator(RetrievalModel r) throws IOException {
+    QryResult cached = SubtreeCache.get(SubtreeCache.key(this));
+    if (cached != null) {
+      return PostingIterator.over(cached.invertedList);
+    }
+    final PostingIterator[] args = argIterators(r);
+    return new ProximityIterator(args) {
+      @Override
+      protected List<Integer> match() throws IOException {
+        int[][] positions = new int[args.length][];
+        for (int j = 0; j < args.length; ++j) {
+          positions[j] = args[j].positions();
         }
+        return matchPositions(positions, distance);
       }
+    };
+  }
 
-      // iterate locations to find the suitable window
-      List<Integer> positions = new ArrayList<Integer>();
-      int[] daatPtrPos = new int[this.daatPtrs.size()];
-
-      LOOP_FOR_WINDOW:
-      while (true) {
-        int minLocDaaTIndex = 0;
-        int minLoc = Integer.MAX_VALUE, maxLoc = Integer.MIN_VALUE;
-
-        for (int i = 0; i < this.daatPtrs.size(); ++i) {
-          DaaTPtr dp = this.daatPtrs.get(i);
-          Vector<Integer> postings = dp.invList.postings.get(dp.nextDoc).positions;
-          // check if already iterated through this posting,
-          // if yes, this doc is done, break
-          if (daatPtrPos[i] >= postings.size()) {
-            break LOOP_FOR_WINDOW;
-          }
-          // otherwise, update min/max term location
-          int loc = postings.get(daatPtrPos[i]);
-          if (loc < minLoc) {
-            minLoc = loc;
-            minLocDaaTIndex = i;
-          }
-          if (loc > maxLoc) {
-            maxLoc = loc;
-          }
+  /**
+   * Find the matches of #WINDOW in a document that contains all
+   * arguments.
+   *
+   * @param positions The positions of every argument in the document.
+   * @param distance  The window size.
+   * @return The last position of every match.
+   */
+  static List<Integer> matchPositions(int[][] positions, int distance) {
+    List<Integer> matches = new ArrayList<Integer>();
+    int[] argPos = new int[positions.length];
+
+    while (true) {
+      int minLocIndex = 0;
+      int minLoc = Integer.MAX_VALUE, maxLoc = Integer.MIN_VALUE;
+
+      for (int i = 0; i < positions.length; ++i) {
+        // check if already iterated through this argument,
+        // if yes, this doc is done
+        if (argPos[i] >= positions[i].length) {
+          return matches;
+        }
+        // otherwise, update min/max term location
+        int loc = positions[i][argPos[i]];
+        if (loc < minLoc) {
+          minLoc = loc;
+          minLocIndex = i;
         }
-        // check window size
-        int windowSize = 1 + maxLoc - minLoc;
-        if (windowSize > distance) {
-          // not good, only advance loc pointer of smallest one
-          ++daatPtrPos[minLocDaaTIndex];
-        } else {
-          // record maxLoc
-          positions.add(maxLoc);
-          // advance location pointer for all
-          for (int j = 0; j < daatPtrPos.length; ++j) {
-            ++daatPtrPos[j];
-          }
+        if (loc > maxLoc) {
+          maxLoc = loc;
         }
       }
-
-      if (!positions.isEmpty()) {
-        result.invertedList.appendPosting(ptr0Docid, positions);
+      // check window size
+      int windowSize = 1 + maxLoc - minLoc;
+      if (windowSize > distance) {
+        // not good, only advance loc pointer of smallest one
+        ++argPos[minLocIndex];
+      } else {
+        // record maxLoc
+        matches.add(maxLoc);
+        // advance location pointer for all
+        for (int j = 0; j < argPos.length; ++j) {
+          ++argPos[j];
+        }
       }
     }
-    freeDaaTPtrs();
-    return result;
   }
 
   @Override
@@ -23,24 +23,75 @@ public abstract class QryopSl extends Qryop {
    */
   public void allocDaaTPtrs(RetrievalModel r) throws IOException {
 
-    for (int i = 0; i < this.args.size(); i++) {
-
-      //  If this argument doesn't return ScoreLists, wrap it
-      //  in a #SCORE operator.
+    //  If an argument doesn't return ScoreLists, wrap it in a #SCORE
+    //  operator.  This is done before evaluating any argument, since
+    //  the arguments may be evaluated in parallel.
 
+    for (int i = 0; i < this.args.size(); i++) {
       if (!QryopSl.class.isInstance(this.args.get(i))) {
         this.args.set(i, new QryopSlScore(this.args.get(i)));
       }
+    }
 
+    QryResult[] results = ParallelEvaluator.evaluate(this.args, r);
+    for (QryResult result : results) {
       DaaTPtr ptri = new DaaTPtr();
       ptri.invList = null;
-      ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+      ptri.scoreList = result.docScores;
       ptri.nextDoc = 0;
 
       this.daatPtrs.add(ptri);
     }
   }
 
+  /**
+   * Create an iterator over the scores of this operator.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  @Override
+  public abstract ScoreIterator iterator(RetrievalModel r) throws IOException;
+
+  /**
+   * Create the iterators of the arguments, wrapping any argument that
+   * doesn't return scores in a #SCORE operator.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterators, in argument order.
+   * @throws IOException
+   */
+  protected ScoreIterator[] argIterators(RetrievalModel r) throws IOException {
+    ScoreIterator[] iterators = new ScoreIterator[this.args.size()];
+    for (int i = 0; i < iterators.length; i++) {
+      if (!QryopSl.class.isInstance(this.args.get(i))) {
+        this.args.set(i, new QryopSlScore(this.args.get(i)));
+      }
+      iterators[i] = ((QryopSl) this.args.get(i)).iterator(r);
+    }
+    return iterators;
+  }
+
+  /**
+   * Evaluates the query operator through its iterator, one document at a
+   * time, so that only the score list of this operator is built.  The
+   * arguments are not evaluated in parallel.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  public QryResult stream(RetrievalModel r) throws IOException {
+    ScoreIterator iterator = iterator(r);
+    QryResult result = new QryResult();
+    for (int docid = iterator.nextDoc(); docid != DocIterator.NO_MORE_DOCS;
+         docid = iterator.nextDoc()) {
+      result.docScores.add(docid, iterator.score());
+    }
+    return result;
+  }
+
   /*
    *  Calculate the default score for the specified document if it
    *  does not match the query operator.  This score is 0 for many
@@ -51,4 +102,17 @@ public abstract class QryopSl extends Qryop {
    */
   public abstract double getDefaultScore(RetrievalModel r, long docid) throws IOException;
 
+  /**
+   * Return the field whose document length is the only thing the
+   * default score of this operator depends on, so that default scores
+   * can be shared by all documents of the same length.  Only valid
+   * after the operator has been evaluated.
+   *
+   * @return The field name, or null if the default score may depend
+   * on more than one field.
+   */
+  public String getDefaultScoreField() {
+    return null;
+  }
+
 }
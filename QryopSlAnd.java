@@ -5,8 +5,8 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.ListIterator;
 
 public class QryopSlAnd extends QryopSl {
 
@@ -40,17 +40,63 @@ public class QryopSlAnd extends QryopSl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    if (plan != null && plan.strategy == QryPlan.Strategy.EMPTY) {
+      // a conjunct matches nothing, so the others need not be evaluated
+      return new QryResult();
+    }
+
     if (r instanceof RetrievalModelUnrankedBoolean) {
       return evaluateBoolean(r);
     } else if (r instanceof RetrievalModelRankedBoolean) {
       return evaluateRankedBoolean(r);
     } else if (r instanceof RetrievalModelIndri) {
+      if (isTermAtATime((RetrievalModelIndri) r)) {
+        double[] weights = new double[this.args.size()];
+        Arrays.fill(weights, 1.0);
+        return evaluateIndriTaat(r, weights, this.args.size());
+      }
       return evaluateIndri(r);
     }
 
     return null;
   }
 
+  /**
+   * Create an iterator over the documents that match all arguments under
+   * the boolean models, or any argument under Indri.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  public ScoreIterator iterator(RetrievalModel r) throws IOException {
+
+    if (plan != null && plan.strategy == QryPlan.Strategy.EMPTY) {
+      return ScoreIterator.empty();
+    }
+
+    if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean) {
+      return new BooleanAndIterator(argIterators(r), r instanceof RetrievalModelRankedBoolean);
+    } else if (r instanceof RetrievalModelIndri) {
+      double[] weights = new double[this.args.size()];
+      Arrays.fill(weights, 1.0);
+      return new IndriAndIterator(argIterators(r), weights, this.args.size());
+    }
+
+    return null;
+  }
+
+  /**
+   * Indri operators are evaluated term-at-a-time if the plan says so,
+   * or without a plan if the model says so.
+   *
+   * @param r The Indri retrieval model.
+   * @return true to evaluate term-at-a-time.
+   */
+  protected boolean isTermAtATime(RetrievalModelIndri r) {
+    return plan == null ? r.isTermAtATime() : plan.strategy == QryPlan.Strategy.TAAT;
+  }
+
   /**
    * Calculate the default score for the specified document if it
    * does not match the query operator.  This score is 0 for many
@@ -75,6 +121,25 @@ public class QryopSlAnd extends QryopSl {
     return 0.0;
   }
 
+  /**
+   * The default score only depends on the document length if all the
+   * arguments depend on the length of the same field.
+   *
+   * @return The common field of the arguments, or null.
+   */
+  @Override
+  public String getDefaultScoreField() {
+    String field = null;
+    for (Qryop arg : args) {
+      String argField = ((QryopSl) arg).getDefaultScoreField();
+      if (argField == null || (field != null && !field.equals(argField))) {
+        return null;
+      }
+      field = argField;
+    }
+    return field;
+  }
+
   /**
    * Return a string version of this query operator.
    *
@@ -98,47 +163,11 @@ public class QryopSlAnd extends QryopSl {
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
 
-    // put daat-ptr with shortest score list in first place. O(n)
-    final ListIterator<DaaTPtr> itr = this.daatPtrs.listIterator();
-    DaaTPtr min = itr.next();
-    int minIndex = 0;
-    while (itr.hasNext()) {
-      final DaaTPtr curr = itr.next();
-      if (curr.scoreList.scores.size() < min.scoreList.scores.size()) {
-        min = curr;
-        minIndex = itr.previousIndex();
-      }
-    }
-    Collections.swap(this.daatPtrs, 0, minIndex);
-
-    DaaTPtr ptr0 = this.daatPtrs.get(0);
-
-    EVALUATEDOCUMENTS:
-    for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
-
-      int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
-      double docScore = 1.0;
+    //  Every document that matches all query arguments gets a score of 1.0.
 
-      //  Do the other query arguments have the ptr0Docid?
-
-      for (int j = 1; j < this.daatPtrs.size(); j++) {
-
-        DaaTPtr ptrj = this.daatPtrs.get(j);
-
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.scoreList.scores.size()) {
-            break EVALUATEDOCUMENTS;     // No more docs can match
-          } else if (ptrj.scoreList.getDocid(ptrj.nextDoc) > ptr0Docid) {
-            continue EVALUATEDOCUMENTS;  // The ptr0docid can't match.
-          } else if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid) {
-            ptrj.nextDoc++;              // Not yet at the right doc.
-          } else {
-            break;                       // ptrj matches ptr0Docid
-          }
-        }
-      }
-      //  The ptr0Docid matched all query arguments, so save it.
-      result.docScores.add(ptr0Docid, docScore);
+    DocidSetOps.Intersection common = intersectDaaTPtrs();
+    for (int k = 0; k < common.size; k++) {
+      result.docScores.add(common.docids[k], 1.0);
     }
     freeDaaTPtrs();
     return result;
@@ -148,53 +177,37 @@ public class QryopSlAnd extends QryopSl {
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
 
-    // put daat-ptr with shortest score list in first place. O(n)
-    final ListIterator<DaaTPtr> itr = this.daatPtrs.listIterator();
-    DaaTPtr min = itr.next();
-    int minIndex = 0;
-    while (itr.hasNext()) {
-      final DaaTPtr curr = itr.next();
-      if (curr.scoreList.scores.size() < min.scoreList.scores.size()) {
-        min = curr;
-        minIndex = itr.previousIndex();
-      }
-    }
-    Collections.swap(this.daatPtrs, 0, minIndex);
-
-    DaaTPtr ptr0 = this.daatPtrs.get(0);
-
-    // min the scores
-    TRAVERSE_DOC_IN_PTR0:
-    for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
-      int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
-      double currScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
-
-      for (int j = 1; j < this.daatPtrs.size(); ++j) {
-        DaaTPtr ptrj = this.daatPtrs.get(j);
-
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.scoreList.scores.size()) {
-            break TRAVERSE_DOC_IN_PTR0;     // No more docs can match
-          } else if (ptrj.scoreList.getDocid(ptrj.nextDoc) > ptr0Docid) {
-            continue TRAVERSE_DOC_IN_PTR0;  // The ptr0docid can't match.
-          } else if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid) {
-            ptrj.nextDoc++;                 // Not yet at the right doc.
-          } else {
-            break;                          // ptrj matches ptr0Docid
-          }
-        }
-
-        double ptrjScore = ptrj.scoreList.getDocidScore(ptrj.nextDoc);
+    // min the scores of the documents that match all query arguments
+    DocidSetOps.Intersection common = intersectDaaTPtrs();
+    for (int k = 0; k < common.size; k++) {
+      double currScore = Double.MAX_VALUE;
+      for (int j = 0; j < this.daatPtrs.size(); ++j) {
+        double ptrjScore = this.daatPtrs.get(j).scoreList.getDocidScore(common.positions[j][k]);
         if (ptrjScore < currScore) {
           currScore = ptrjScore;
         }
       }
-      result.docScores.add(ptr0Docid, currScore);
+      result.docScores.add(common.docids[k], currScore);
     }
     freeDaaTPtrs();
     return result;
   }
 
+  /**
+   * Intersect the score lists of the DaaTPtrs.
+   *
+   * @return The documents that match all query arguments.
+   */
+  private DocidSetOps.Intersection intersectDaaTPtrs() {
+    int[][] docids = new int[this.daatPtrs.size()][];
+    int[] sizes = new int[docids.length];
+    for (int j = 0; j < docids.length; ++j) {
+      docids[j] = this.daatPtrs.get(j).scoreList.getDocidArray();
+      sizes[j] = docids[j].length;
+    }
+    return DocidSetOps.intersect(docids, sizes);
+  }
+
   private QryResult evaluateIndri(RetrievalModel r) throws IOException {
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
@@ -225,6 +238,74 @@ public class QryopSlAnd extends QryopSl {
     return result;
   }
 
+  /**
+   * Evaluates an Indri #AND or #WAND term-at-a-time.  The scores of all
+   * candidates, the documents that match any argument, are accumulated
+   * one argument at a time: every candidate adds the weighted score of
+   * the argument if it matches, or its weighted default score, and the
+   * sum is divided by the total weight at the end.  The additions are
+   * made in argument order, as in the document-at-a-time evaluation, so
+   * the scores are identical to it.
+   * <p/>
+   * Default scores only depend on the document length, so they are
+   * computed once per distinct length instead of once per missing
+   * argument of every candidate.
+   *
+   * @param r            A retrieval model that controls how the operator behaves.
+   * @param weights      Weight of every argument.
+   * @param totalWeights Sum of the weights, not zero.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  protected QryResult evaluateIndriTaat(RetrievalModel r, double[] weights, double totalWeights)
+          throws IOException {
+    allocDaaTPtrs(r);
+    QryResult result = new QryResult();
+
+    int[] candidates = getCandidateDocids();
+    int numCandidates = candidates.length;
+    double[] docScores = new double[numCandidates];
+
+    // one argument at a time, over every candidate
+    for (int i = 0; i < this.daatPtrs.size(); ++i) {
+      ScoreList scoreList = this.daatPtrs.get(i).scoreList;
+      int[] docids = scoreList.getDocidArray();
+      DefaultScores argDefaults = new DefaultScores((QryopSl) this.args.get(i),
+              numCandidates - docids.length);
+      double weight = weights[i];
+      int j = 0;
+      for (int c = 0; c < numCandidates; ++c) {
+        int docid = candidates[c];
+        if (j < docids.length && docids[j] == docid) {
+          docScores[c] += scoreList.getDocidScore(j++) * weight;
+        } else {
+          docScores[c] += argDefaults.get(r, docid) * weight;
+        }
+      }
+    }
+
+    for (int c = 0; c < numCandidates; ++c) {
+      result.docScores.add(candidates[c], docScores[c] / totalWeights);
+    }
+    freeDaaTPtrs();
+
+    return result;
+  }
+
+  /**
+   * Return the sorted union of the docids in the score lists of the
+   * DaaTPtrs, i.e. every document that matches at least one argument.
+   *
+   * @return The candidate internal document ids in ascending order.
+   */
+  protected int[] getCandidateDocids() {
+    int[][] docids = new int[this.daatPtrs.size()][];
+    for (int i = 0; i < docids.length; i++) {
+      docids[i] = this.daatPtrs.get(i).scoreList.getDocidArray();
+    }
+    return DocidSetOps.union(docids);
+  }
+
   /**
    * Return the smallest unexamined docid from the DaaTPtrs or
    * Integer.MAX_VALUE
@@ -250,4 +331,140 @@ public class QryopSlAnd extends QryopSl {
 
     return nextDocid;
   }
-}
\ No newline at end of file
+
+  /**
+   * Iterates the documents that match all arguments.  The score is 1.0,
+   * or the smallest score of the arguments if ranked.
+   */
+  private static class BooleanAndIterator extends ScoreIterator {
+
+    private final ScoreIterator[] args;
+
+    private final boolean ranked;
+
+    BooleanAndIterator(ScoreIterator[] args, boolean ranked) {
+      this.args = args;
+      this.ranked = ranked;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return docid = advanceAll(args, target);
+    }
+
+    @Override
+    public double score() throws IOException {
+      if (!ranked) {
+        return 1.0;
+      }
+      double score = Double.MAX_VALUE;
+      for (ScoreIterator arg : args) {
+        score = Math.min(score, arg.score());
+      }
+      return score;
+    }
+
+    @Override
+    public double defaultScore(int docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   * Iterates the documents that match any argument, for Indri #AND and
+   * #WAND.  The score is the weighted mean of the scores of the
+   * arguments, taking the default score of those that do not match.
+   */
+  protected static class IndriAndIterator extends ScoreIterator {
+
+    private final ScoreIterator[] args;
+
+    private final double[] weights;
+
+    private final double totalWeights;
+
+    /**
+     * @param args         The iterators of the arguments.
+     * @param weights      The weight of every argument.
+     * @param totalWeights The sum of the weights, not zero.
+     */
+    protected IndriAndIterator(ScoreIterator[] args, double[] weights, double totalWeights) {
+      this.args = args;
+      this.weights = weights;
+      this.totalWeights = totalWeights;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return docid = advanceAny(args, target);
+    }
+
+    @Override
+    public double score() throws IOException {
+      double docScore = 0;
+      for (int i = 0; i < args.length; ++i) {
+        ScoreIterator arg = args[i];
+        docScore += (arg.docid() == docid ? arg.score() : arg.defaultScore(docid)) * weights[i];
+      }
+      return docScore / totalWeights;
+    }
+
+    @Override
+    public double defaultScore(int docid) throws IOException {
+      double defaultScore = 0;
+      for (int i = 0; i < args.length; ++i) {
+        defaultScore += args[i].defaultScore(docid) * weights[i];
+      }
+      return defaultScore / totalWeights;
+    }
+  }
+
+  /**
+   * Default scores of an evaluated operator, shared by all documents
+   * of the same length when the operator depends on a single field.
+   * Scores are kept in an array indexed by document length, NaN until
+   * computed; when there are fewer lookups than lengths, filling the
+   * array costs more than it saves, and scores are computed directly.
+   */
+  protected static class DefaultScores {
+
+    private final QryopSl op;
+
+    private final DocLengthStore.FieldLengths docLengths;
+
+    private final double[] byLength;
+
+    /**
+     * @param op      The operator whose default scores are needed.
+     * @param lookups About how many default scores will be asked for.
+     * @throws IOException
+     */
+    DefaultScores(QryopSl op, int lookups) throws IOException {
+      this.op = op;
+      String field = op.getDefaultScoreField();
+      DocLengthStore.FieldLengths lengths =
+              field == null ? null : QryEval.LENGTH_STORE.getFieldLengths(field);
+      if (lengths != null && lookups > lengths.getMaxLength()) {
+        this.docLengths = lengths;
+        this.byLength = new double[lengths.getMaxLength() + 1];
+        Arrays.fill(this.byLength, Double.NaN);
+      } else {
+        this.docLengths = null;
+        this.byLength = null;
+      }
+    }
+
+    double get(RetrievalModel r, int docid) throws IOException {
+      if (docLengths == null) {
+        return op.getDefaultScore(r, docid);
+      }
+      int doclen = docLengths.get(docid);
+      double score = byLength[doclen];
+      if (Double.isNaN(score)) {
+        score = op.getDefaultScore(r, docid);
+        byLength[doclen] = score;
+      }
+      return score;
+    }
+  }
+}
@@ -54,6 +54,50 @@ public class QryopSlOr extends QryopSl {
     return null;
   }
 
+  /**
+   * Create an iterator over the documents that match any argument.  The
+   * score is 1.0, or the largest score of the matching arguments if
+   * ranked.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  @Override
+  public ScoreIterator iterator(RetrievalModel r) throws IOException {
+    if (!(r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)) {
+      return null;
+    }
+
+    final ScoreIterator[] args = argIterators(r);
+    final boolean ranked = r instanceof RetrievalModelRankedBoolean;
+    return new ScoreIterator() {
+      @Override
+      public int advance(int target) throws IOException {
+        return docid = advanceAny(args, target);
+      }
+
+      @Override
+      public double score() throws IOException {
+        if (!ranked) {
+          return 1.0;
+        }
+        double maxScore = Double.NEGATIVE_INFINITY;
+        for (ScoreIterator arg : args) {
+          if (arg.docid() == docid) {
+            maxScore = Math.max(maxScore, arg.score());
+          }
+        }
+        return maxScore;
+      }
+
+      @Override
+      public double defaultScore(int docid) {
+        return 0.0;
+      }
+    };
+  }
+
   /**
    * Return a string version of this query operator.
    *
@@ -82,6 +126,18 @@ public class QryopSlOr extends QryopSl {
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
 
+    if (plan != null && plan.strategy == QryPlan.Strategy.BITMAP) {
+      int[][] docids = new int[this.daatPtrs.size()][];
+      for (int i = 0; i < docids.length; i++) {
+        docids[i] = this.daatPtrs.get(i).scoreList.getDocidArray();
+      }
+      for (int docid : DocidSetOps.unionBitmap(docids)) {
+        result.docScores.add(docid, 1.0);
+      }
+      freeDaaTPtrs();
+      return result;
+    }
+
     // iterate all daat ptrs and find the smallest docid,
     // and record scores accordingly
     while (this.daatPtrs.size() > 0) {
@@ -8,6 +8,8 @@
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.Term;
+
 import java.io.IOException;
 
 public class QryopSlScore extends QryopSl {
@@ -25,6 +27,12 @@ public class QryopSlScore extends QryopSl {
    */
   private String field;
 
+  /**
+   * Document lengths of the recorded field, kept for the default
+   * score calculation.
+   */
+  private DocLengthStore.FieldLengths docLengths;
+
   /**
    * Construct a new SCORE operator.  The SCORE operator accepts just
    * one argument.
@@ -59,19 +67,29 @@ public class QryopSlScore extends QryopSl {
       if (ctfProb == -1) {
         QryEval.fatalError("Error: default score parameters not set up.");
       }
-      DocLengthStore docLengthStore = QryEval.LENGTH_STORE;
       int mu = ((RetrievalModelIndri) r).getMu();
       double lambda = ((RetrievalModelIndri) r).getLambda();
-      long doclen = docLengthStore.getDocLength(field, (int) docid);
       double ctfParam1 = mu * ctfProb;
       double ctfParam2 = (1 - lambda) * ctfProb;
 
-      return Math.log(lambda * ctfParam1 / (doclen + mu) + ctfParam2);
+      return ((RetrievalModelIndri) r).log(
+              lambda * ctfParam1 / (docLengths.get((int) docid) + mu) + ctfParam2);
     }
 
     return 0.0;
   }
 
+  /**
+   * Return the field of the scored inverted list, which is recorded
+   * during Indri evaluation.
+   *
+   * @return The field name, or null if not evaluated yet.
+   */
+  @Override
+  public String getDefaultScoreField() {
+    return field;
+  }
+
   /**
    * Evaluate the query operator.
    *
@@ -94,6 +112,96 @@ public class QryopSlScore extends QryopSl {
     return null;
   }
 
+  /**
+   * Create an iterator that scores the postings of the argument as they
+   * are read.  BM25 and Indri need the document and collection term
+   * frequencies of the argument before its first posting is scored:
+   * those of the index for a term if no document was deleted.
+   * Otherwise, and for #NEAR, #WINDOW and #SYN, the argument is
+   * evaluated once, through the {@link SubtreeCache}, and its list is
+   * both counted and streamed.  The statistics stay with the iterator,
+   * so that the operator itself can still be evaluated.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws IOException
+   */
+  public ScoreIterator iterator(RetrievalModel r) throws IOException {
+    if (args.get(0) instanceof QryopSl) {
+      return ((QryopSl) args.get(0)).iterator(r);
+    }
+    QryopIl arg = (QryopIl) args.get(0);
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return new PostingScorer(arg.iterator(r)) {
+        @Override
+        public double score() {
+          return 1.0;
+        }
+      };
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      final PostingIterator postings = arg.iterator(r);
+      return new PostingScorer(postings) {
+        @Override
+        public double score() throws IOException {
+          return postings.tf();
+        }
+      };
+    } else if (!(r instanceof RetrievalModelBM25) && !(r instanceof RetrievalModelIndri)) {
+      return null;
+    }
+
+    final PostingIterator postings;
+    long[] statistics;
+    if (arg instanceof QryopIlTerm && QryEval.READER.numDocs() == QryEval.READER.maxDoc()) {
+      postings = arg.iterator(r);
+      Term term = new Term(((QryopIlTerm) arg).getField(), ((QryopIlTerm) arg).getTerm());
+      statistics = new long[]{arg.estimateCost(), QryEval.READER.totalTermFreq(term)};
+    } else {
+      InvList list = arg.evaluate(r).invertedList;
+      postings = PostingIterator.over(list);
+      statistics = new long[]{list.df, list.ctf};
+      PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+      if (partition != null) {
+        statistics = partition.globalStatistics(toString(), list.df, list.ctf);
+      }
+    }
+    String field = postings.getField();
+
+    if (r instanceof RetrievalModelBM25) {
+      final double[] lengthNorms = ((RetrievalModelBM25) r).getLengthNorms(field);
+      long df = statistics[0];
+      final double idf = Math.log((QryEval.READER.getDocCount(field) - df + 0.5) / (df + 0.5));
+      return new PostingScorer(postings) {
+        @Override
+        public double score() throws IOException {
+          int tf = postings.tf();
+          return idf * (tf / (tf + lengthNorms[docid]));
+        }
+      };
+    }
+
+    final RetrievalModelIndri indri = (RetrievalModelIndri) r;
+    final double lambda = indri.getLambda();
+    final int mu = indri.getMu();
+    final DocLengthStore.FieldLengths docLengths = QryEval.LENGTH_STORE.getFieldLengths(field);
+    double ctfProb = ((double) statistics[1]) / QryEval.READER.getSumTotalTermFreq(field);
+    final double ctfParam1 = mu * ctfProb;
+    final double ctfParam2 = (1 - lambda) * ctfProb;
+    return new PostingScorer(postings) {
+      @Override
+      public double score() throws IOException {
+        return indri.log(lambda * (postings.tf() + ctfParam1) /
+                (docLengths.get(docid) + mu) + ctfParam2);
+      }
+
+      @Override
+      public double defaultScore(int docid) throws IOException {
+        return indri.log(lambda * ctfParam1 / (docLengths.get(docid) + mu) + ctfParam2);
+      }
+    };
+  }
+
   /**
    * Return a string version of this query operator.
    *
@@ -162,25 +270,35 @@ public class QryopSlScore extends QryopSl {
   private QryResult evaluateBM25(RetrievalModel r) throws IOException {
     QryResult result = args.get(0).evaluate(r);
 
-    // necessary info to calculate BM 25 scores
-    double k_1 = ((RetrievalModelBM25) r).getK_1(),
-            b = ((RetrievalModelBM25) r).getB();
-    DocLengthStore docLengthStore = QryEval.LENGTH_STORE;
+    // necessary info to calculate BM 25 scores; the length
+    // normalization of every document is precomputed by the model
     String field = result.invertedList.field;
-    double avgDocLen = QryEval.READER.getSumTotalTermFreq(field) /
-            (float) QryEval.READER.getDocCount(field);
+    double[] lengthNorms = ((RetrievalModelBM25) r).getLengthNorms(field);
 
-    // idf
+    // idf, from the df of the whole collection if this is a partition
     int df = result.invertedList.df;
-    double idf = Math.log((QryEval.READER.getDocCount(field) - df + 0.5) / (df + 0.5));
-
-    for (int i = 0; i < df; ++i) {
-      int docid = result.invertedList.postings.get(i).docid;
-      long doclen = docLengthStore.getDocLength(field, docid);
-      int tf = result.invertedList.getTf(i);
-      double normTf = tf / (tf + k_1 * (1 - b + b * doclen / avgDocLen));
-      // store the score! (without user weight)
-      result.docScores.add(docid, idf * normTf);
+    long globalDf = df;
+    PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+    if (partition != null) {
+      globalDf = partition.globalStatistics(toString(), df, result.invertedList.ctf)[0];
+    }
+    double idf = Math.log((QryEval.READER.getDocCount(field) - globalDf + 0.5) / (globalDf + 0.5));
+
+    if (((RetrievalModelBM25) r).isBlockScoring()) {
+      int[] docids = result.invertedList.getDocidArray();
+      double[] scores = new double[df];
+      ScoringKernels.bm25(docids, result.invertedList.getTfArray(), df, lengthNorms, idf, scores);
+      for (int i = 0; i < df; ++i) {
+        result.docScores.add(docids[i], scores[i]);
+      }
+    } else {
+      for (int i = 0; i < df; ++i) {
+        int docid = result.invertedList.postings.get(i).docid;
+        int tf = result.invertedList.getTf(i);
+        double normTf = tf / (tf + lengthNorms[docid]);
+        // store the score! (without user weight)
+        result.docScores.add(docid, idf * normTf);
+      }
     }
 
     if (result.invertedList.df > 0) {
@@ -195,23 +313,40 @@ public class QryopSlScore extends QryopSl {
     QryResult result = args.get(0).evaluate(r);
 
     // necessary info to calculate query likelihood
-    int mu = ((RetrievalModelIndri) r).getMu();
-    double lambda = ((RetrievalModelIndri) r).getLambda();
-    DocLengthStore docLengthStore = QryEval.LENGTH_STORE;
+    RetrievalModelIndri indri = (RetrievalModelIndri) r;
+    int mu = indri.getMu();
+    double lambda = indri.getLambda();
     int df = result.invertedList.df;
     field = result.invertedList.field;
-    // calculate the 2 parameters in query likelihood calculation
-    ctfProb = ((double) result.invertedList.ctf) / QryEval.READER.getSumTotalTermFreq(field);
+    docLengths = QryEval.LENGTH_STORE.getFieldLengths(field);
+    // calculate the 2 parameters in query likelihood calculation, from
+    // the ctf of the whole collection if this is a partition
+    long ctf = result.invertedList.ctf;
+    PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+    if (partition != null) {
+      ctf = partition.globalStatistics(toString(), df, ctf)[1];
+    }
+    ctfProb = ((double) ctf) / QryEval.READER.getSumTotalTermFreq(field);
     double ctfParam1 = mu * ctfProb;
     double ctfParam2 = (1 - lambda) * ctfProb;
 
-    for (int i = 0; i < df; ++i) {
-      int docid = result.invertedList.postings.get(i).docid;
-      long doclen = docLengthStore.getDocLength(field, docid);
-      int tf = result.invertedList.getTf(i);
-      double logScaleScore = Math.log(lambda * (tf + ctfParam1) / (doclen + mu) + ctfParam2);
-      // store the scores!
-      result.docScores.add(docid, logScaleScore);
+    if (indri.isBlockScoring()) {
+      int[] docids = result.invertedList.getDocidArray();
+      double[] scores = new double[df];
+      ScoringKernels.indri(docids, result.invertedList.getTfArray(), df, docLengths, mu,
+              lambda, ctfParam1, ctfParam2, indri.isApproximateMath(), scores);
+      for (int i = 0; i < df; ++i) {
+        result.docScores.add(docids[i], scores[i]);
+      }
+    } else {
+      for (int i = 0; i < df; ++i) {
+        int docid = result.invertedList.postings.get(i).docid;
+        int tf = result.invertedList.getTf(i);
+        double logScaleScore =
+                indri.log(lambda * (tf + ctfParam1) / (docLengths.get(docid) + mu) + ctfParam2);
+        // store the scores!
+        result.docScores.add(docid, logScaleScore);
+      }
     }
 
     if (result.invertedList.df > 0) {
@@ -219,4 +354,32 @@ public class QryopSlScore extends QryopSl {
     }
     return result;
   }
+
+  /**
+   * Scores the documents of an inverted list iterator.  Subclasses
+   * implement the score of the retrieval model.
+   */
+  private abstract static class PostingScorer extends ScoreIterator {
+
+    private final PostingIterator postings;
+
+    PostingScorer(PostingIterator postings) {
+      this.postings = postings;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      return docid = postings.advance(target);
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      return docid = postings.nextDoc();
+    }
+
+    @Override
+    public double defaultScore(int docid) throws IOException {
+      return 0.0;
+    }
+  }
 }
@@ -1,22 +1,30 @@
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 
 /**
- * #SUM operator for BM25 retrieval model.
+ * #SUM operator for BM25 retrieval model.  Every argument has a query
+ * term frequency (qtf), so that a term repeated in the query is
+ * evaluated once; see {@link QryRewriter}.
  *
  * @author junjiah
  */
 public class QryopSlSum extends QryopSl {
+
+  /**
+   * Query term frequency of every argument, in argument order.
+   */
+  private final List<Integer> qtfs = new ArrayList<Integer>();
+
   /**
    * Constructs QryopSlSum with specified query operators
    *
    * @param q Child query operators under this one.
    */
   public QryopSlSum(Qryop... q) {
-    Collections.addAll(this.args, q);
+    for (Qryop arg : q) {
+      add(arg, 1);
+    }
   }
 
   @Override
@@ -32,7 +40,48 @@ public class QryopSlSum extends QryopSl {
    */
   @Override
   public void add(Qryop q) throws IOException {
+    add(q, 1);
+  }
+
+  /**
+   * Appends an argument that appears several times in the query.
+   *
+   * @param q   The query argument (query operator) to append.
+   * @param qtf The number of times it appears.
+   */
+  public void add(Qryop q, int qtf) {
     args.add(q);
+    qtfs.add(qtf);
+  }
+
+  /**
+   * Removes an argument and its query term frequency.
+   *
+   * @param i The index of the query operator to remove.
+   */
+  @Override
+  public void remove(int i) {
+    super.remove(i);
+    qtfs.remove(i);
+  }
+
+  /**
+   * Clear the arguments and their query term frequencies.
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    qtfs.clear();
+  }
+
+  /**
+   * Get the query term frequency of an argument.
+   *
+   * @param i The index of the argument.
+   * @return The number of times the argument appears in the query.
+   */
+  public int getQtf(int i) {
+    return qtfs.get(i);
   }
 
   /**
@@ -51,28 +100,22 @@ public class QryopSlSum extends QryopSl {
 
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
-    double k_3 = ((RetrievalModelBM25) r).getK_3();
+    double[] userWeights = getUserWeights((RetrievalModelBM25) r);
 
     // iterate all daat ptrs and find the smallest docid,
     // and record scores accordingly
-    while (this.daatPtrs.size() > 0) {
+    while (true) {
       // record daat ptrs with min docid; advance their nextdoc later
       List<DaaTPtr> minDaatPtr = new ArrayList<DaaTPtr>();
       int minDocId = Integer.MAX_VALUE;
       double termScore = 0;
 
-      Iterator<DaaTPtr> iter = this.daatPtrs.iterator();
-      while (iter.hasNext()) {
-        DaaTPtr dp = iter.next();
-
-        // remove this daat ptr if all docs have been traversed
+      for (int i = 0; i < this.daatPtrs.size(); ++i) {
+        DaaTPtr dp = this.daatPtrs.get(i);
+        // skip this daat ptr if all docs have been traversed
         if (dp.nextDoc >= dp.scoreList.scores.size()) {
-          iter.remove();
           continue;
         }
-        // qtf is 1
-        double qtf = 1;
-        double userWeight = (k_3 + 1) * qtf / (k_3 + qtf);
 
         // compare doc id and do records
         int currDocId = dp.scoreList.getDocid(dp.nextDoc);
@@ -80,16 +123,19 @@ public class QryopSlSum extends QryopSl {
           minDocId = currDocId;
           minDaatPtr.clear();
           minDaatPtr.add(dp);
-          termScore = dp.scoreList.getDocidScore(dp.nextDoc) * userWeight;
+          termScore = dp.scoreList.getDocidScore(dp.nextDoc) * userWeights[i];
         } else if (currDocId == minDocId) {
           minDaatPtr.add(dp);
-          termScore += dp.scoreList.getDocidScore(dp.nextDoc) * userWeight;
+          termScore += dp.scoreList.getDocidScore(dp.nextDoc) * userWeights[i];
         }
       }
-      // ignore if no more daatPtr
-      if (minDocId != Integer.MAX_VALUE) {
-        result.docScores.add(minDocId, termScore);
+
+      // stop if no more daatPtr
+      if (minDocId == Integer.MAX_VALUE) {
+        break;
       }
+      result.docScores.add(minDocId, termScore);
+
       // advance minDaatPtr's nextdoc since their doc have been processed
       for (DaaTPtr dp : minDaatPtr) {
         dp.nextDoc++;
@@ -99,6 +145,61 @@ public class QryopSlSum extends QryopSl {
     return result;
   }
 
+  /**
+   * Create an iterator over the documents that match any argument.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws java.io.IOException
+   */
+  @Override
+  public ScoreIterator iterator(RetrievalModel r) throws IOException {
+    if (!(r instanceof RetrievalModelBM25)) {
+      QryEval.fatalError("Error: #SUM only supports BM25 model");
+    }
+
+    final ScoreIterator[] args = argIterators(r);
+    final double[] userWeights = getUserWeights((RetrievalModelBM25) r);
+    return new ScoreIterator() {
+      @Override
+      public int advance(int target) throws IOException {
+        return docid = advanceAny(args, target);
+      }
+
+      @Override
+      public double score() throws IOException {
+        double termScore = 0;
+        for (int i = 0; i < args.length; ++i) {
+          if (args[i].docid() == docid) {
+            termScore += args[i].score() * userWeights[i];
+          }
+        }
+        return termScore;
+      }
+
+      @Override
+      public double defaultScore(int docid) {
+        return 0.0;
+      }
+    };
+  }
+
+  /**
+   * Compute the user weight of every argument from its qtf.
+   *
+   * @param r The BM25 model.
+   * @return The user weights, in argument order.
+   */
+  private double[] getUserWeights(RetrievalModelBM25 r) {
+    double k_3 = r.getK_3();
+    double[] userWeights = new double[this.args.size()];
+    for (int i = 0; i < userWeights.length; ++i) {
+      double qtf = qtfs.get(i);
+      userWeights[i] = (k_3 + 1) * qtf / (k_3 + qtf);
+    }
+    return userWeights;
+  }
+
   /**
    * Return a string version of this query operator.
    *
@@ -107,8 +208,11 @@ public class QryopSlSum extends QryopSl {
   @Override
   public String toString() {
     String result = "";
-    for (Qryop arg : this.args) {
-      result += arg.toString() + " ";
+    // an argument is repeated qtf times, as it was written
+    for (int i = 0; i < this.args.size(); ++i) {
+      for (int j = 0; j < qtfs.get(i); ++j) {
+        result += this.args.get(i).toString() + " ";
+      }
     }
     return ("#SUM( " + result + ")");
   }
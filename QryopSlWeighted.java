@@ -52,6 +52,15 @@ public class QryopSlWeighted extends QryopSlAnd {
     return acceptWeight;
   }
 
+  /**
+   * Get the weights of the query arguments, in argument order.
+   *
+   * @return The weights; must not be modified.
+   */
+  public List<Double> getWeights() {
+    return weights;
+  }
+
   /**
    * Discard last recorded weight.
    */
@@ -53,13 +53,27 @@ public class QryopSlWeightedAnd extends QryopSlWeighted {
    */
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
-    allocDaaTPtrs(r);
-    QryResult result = new QryResult();
-
     if (!(r instanceof RetrievalModelIndri)) {
       QryEval.fatalError("Error: WAND Only supports Indri.");
     }
 
+    if (isTermAtATime((RetrievalModelIndri) r)) {
+      // no document can be scored if the weights sum to zero
+      double[] argWeights = new double[weights.size()];
+      double totalWeights = 0;
+      for (int i = 0; i < argWeights.length; ++i) {
+        argWeights[i] = weights.get(i);
+        totalWeights += argWeights[i];
+      }
+      if (totalWeights == 0) {
+        return new QryResult();
+      }
+      return evaluateIndriTaat(r, argWeights, totalWeights);
+    }
+
+    allocDaaTPtrs(r);
+    QryResult result = new QryResult();
+
     int minDocId;
     // iterate all daat ptrs and find the smallest doc ID,
     // and record scores accordingly
@@ -93,6 +107,32 @@ public class QryopSlWeightedAnd extends QryopSlWeighted {
     return result;
   }
 
+  /**
+   * Create an iterator over the documents that match any argument.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws java.io.IOException
+   */
+  @Override
+  public ScoreIterator iterator(RetrievalModel r) throws IOException {
+    if (!(r instanceof RetrievalModelIndri)) {
+      QryEval.fatalError("Error: WAND Only supports Indri.");
+    }
+
+    // no document can be scored if the weights sum to zero
+    double[] argWeights = new double[weights.size()];
+    double totalWeights = 0;
+    for (int i = 0; i < argWeights.length; ++i) {
+      argWeights[i] = weights.get(i);
+      totalWeights += argWeights[i];
+    }
+    if (totalWeights == 0) {
+      return ScoreIterator.empty();
+    }
+    return new IndriAndIterator(argIterators(r), argWeights, totalWeights);
+  }
+
   @Override
   public String toString() {
     String result = "";
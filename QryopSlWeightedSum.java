@@ -1,11 +1,45 @@
 import java.io.IOException;
+import java.util.Arrays;
 
 public class QryopSlWeightedSum extends QryopSlWeighted {
 
+  /**
+   * Number of candidate documents scored together in one block.
+   */
+  private static final int BLOCK_SIZE = 256;
+
+  /**
+   * Terms that are this much smaller (in log space) than the largest
+   * term of a sum are below double precision relative to it, so they
+   * are clamped to this ratio instead of branching around their exponent.
+   */
+  private static final double NEGLIGIBLE_LOG_RATIO = -40;
+
+  /**
+   * Normalized log weights, computed once at the start of evaluate or
+   * iterator and reused by the default score calculation.
+   */
+  private double[] logWeights;
+
   public QryopSlWeightedSum() {
     super();
   }
 
+  /**
+   * Appends the weight to weight list.  The weights of #WSUM are
+   * probabilities of a mixture, and their logarithms are taken, so a
+   * negative weight is a query error.
+   *
+   * @param weight The weight of the query argument.
+   */
+  @Override
+  public void add(double weight) {
+    if (weight < 0) {
+      QryEval.fatalError("Error: Negative weight " + weight + " in #WSUM.");
+    }
+    super.add(weight);
+  }
+
   /**
    * Calculate the default score for the specified document if it
    * does not match the query operator.  This score is 0 for many
@@ -18,24 +52,17 @@ public class QryopSlWeightedSum extends QryopSlWeighted {
   @Override
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
     if (r instanceof RetrievalModelIndri) {
-      double defaultScore = 0;
-      for (int i = 0; i < this.args.size(); ++i) {
-        Qryop arg = this.args.get(i);
-        // they must be QryopSl, so downcast.
-        // since they are in log scale, sum them up with corresponding weights
-        defaultScore += Math.exp(((QryopSl) arg).getDefaultScore(r, docid)) * weights.get(i);
+      double[] logWeights = this.logWeights != null ? this.logWeights : getLogWeights();
+      if (logWeights == null) {
+        return 0;
       }
 
-      // normalize score with total weights
-      double totalWeights = 0;
-      for (double w : weights) {
-        totalWeights += w;
-      }
-      if (totalWeights != 0) {
-        return Math.log(defaultScore / totalWeights);
-      } else {
-        return 0;
+      double[] logScores = new double[this.args.size()];
+      for (int i = 0; i < logScores.length; ++i) {
+        // they must be QryopSl, so downcast.
+        logScores[i] = ((QryopSl) this.args.get(i)).getDefaultScore(r, docid) + logWeights[i];
       }
+      return logSumExp((RetrievalModelIndri) r, logScores);
     }
 
     System.err.println("Warning: WSUM only supports Indri.");
@@ -45,6 +72,13 @@ public class QryopSlWeightedSum extends QryopSlWeighted {
   /**
    * Evaluates the query operator, including any child operators and
    * returns the result.
+   * <p/>
+   * The score of a document is log(sum_i w_i / W * exp(s_i)), which is
+   * computed as m + log(sum_i exp(s_i + log(w_i / W) - m)) with m the
+   * largest weighted log score, so that long queries whose argument
+   * probabilities are all tiny do not underflow.  Candidates are scored
+   * in blocks, one argument at a time, to keep the inner loops simple:
+   * the exponent loop has no data-dependent branch.
    *
    * @param r A retrieval model that controls how the operator behaves.
    * @return The result of evaluating the query.
@@ -52,42 +86,73 @@ public class QryopSlWeightedSum extends QryopSlWeighted {
    */
   @Override
   public QryResult evaluate(RetrievalModel r) throws IOException {
+    if (!(r instanceof RetrievalModelIndri)) {
+      QryEval.fatalError("Error: WSUM Only supports Indri.");
+    }
+
+    // skip if total weight is zero
+    logWeights = getLogWeights();
+    if (logWeights == null) {
+      return new QryResult();
+    }
+
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
+    RetrievalModelIndri indri = (RetrievalModelIndri) r;
+    boolean approximate = indri.isApproximateMath();
 
-    if (!(r instanceof RetrievalModelIndri)) {
-      QryEval.fatalError("Error: WSUM Only supports Indri.");
+    int[] candidates = getCandidateDocids();
+    int numArgs = this.daatPtrs.size();
+    DefaultScores[] argDefaults = new DefaultScores[numArgs];
+    for (int i = 0; i < numArgs; ++i) {
+      argDefaults[i] = new DefaultScores((QryopSl) this.args.get(i), candidates.length);
     }
 
-    int minDocId;
-    // iterate all daat ptrs and find the smallest doc ID,
-    // and record scores accordingly
-    while ((minDocId = getSmallestCurrentDocid()) != Integer.MAX_VALUE) {
-      double docScore = 0;
-
-      for (int i = 0; i < daatPtrs.size(); ++i) {
-        DaaTPtr dp = daatPtrs.get(i);
-
-        // compare doc id and add scores with corresponding weights,
-        // first exp then sum, and finally log
-        int currDocId = dp.nextDoc >= dp.scoreList.scores.size() ?
-                0 : dp.scoreList.getDocid(dp.nextDoc);
-        if (currDocId != minDocId) {
-          docScore +=
-                  Math.exp(((QryopSl) args.get(i)).getDefaultScore(r, minDocId)) * weights.get(i);
-        } else {
-          docScore += Math.exp(dp.scoreList.getDocidScore(dp.nextDoc++)) * weights.get(i);
+    double[][] logScores = new double[numArgs][BLOCK_SIZE];
+    double[] maxLogScores = new double[BLOCK_SIZE];
+    double[] sums = new double[BLOCK_SIZE];
+
+    for (int start = 0; start < candidates.length; start += BLOCK_SIZE) {
+      int blockSize = Math.min(BLOCK_SIZE, candidates.length - start);
+
+      // weighted log score of every argument for every document in the block
+      for (int i = 0; i < numArgs; ++i) {
+        DaaTPtr dp = this.daatPtrs.get(i);
+        double[] argLogScores = logScores[i];
+        for (int c = 0; c < blockSize; ++c) {
+          int docid = candidates[start + c];
+          double score;
+          if (dp.nextDoc < dp.scoreList.scores.size() &&
+                  dp.scoreList.getDocid(dp.nextDoc) == docid) {
+            score = dp.scoreList.getDocidScore(dp.nextDoc++);
+          } else {
+            score = argDefaults[i].get(r, docid);
+          }
+          argLogScores[c] = score + logWeights[i];
         }
       }
-      // normalize docScore with total weights
-      double totalWeights = 0;
-      for (double w : weights) {
-        totalWeights += w;
+
+      // largest term of every sum
+      Arrays.fill(maxLogScores, 0, blockSize, Double.NEGATIVE_INFINITY);
+      for (int i = 0; i < numArgs; ++i) {
+        double[] argLogScores = logScores[i];
+        for (int c = 0; c < blockSize; ++c) {
+          maxLogScores[c] = Math.max(maxLogScores[c], argLogScores[c]);
+        }
+      }
+
+      // sum relative to the largest term, then back to logarithm
+      Arrays.fill(sums, 0, blockSize, 0.0);
+      for (int i = 0; i < numArgs; ++i) {
+        double[] argLogScores = logScores[i];
+        for (int c = 0; c < blockSize; ++c) {
+          sums[c] += relativeExp(argLogScores[c] - maxLogScores[c], approximate);
+        }
       }
-      // skip if total weight is zero
-      if (totalWeights != 0) {
-        // back to logarithm
-        result.docScores.add(minDocId, Math.log(docScore / totalWeights));
+      for (int c = 0; c < blockSize; ++c) {
+        double docScore = maxLogScores[c] == Double.NEGATIVE_INFINITY ?
+                Double.NEGATIVE_INFINITY : maxLogScores[c] + indri.log(sums[c]);
+        result.docScores.add(candidates[start + c], docScore);
       }
     }
     freeDaaTPtrs();
@@ -95,6 +160,57 @@ public class QryopSlWeightedSum extends QryopSlWeighted {
     return result;
   }
 
+  /**
+   * Create an iterator over the documents that match any argument, with
+   * the same score as {@link #evaluate(RetrievalModel)}.
+   *
+   * @param r A retrieval model that controls how the operator behaves.
+   * @return The iterator, positioned before the first document.
+   * @throws java.io.IOException
+   */
+  @Override
+  public ScoreIterator iterator(RetrievalModel r) throws IOException {
+    if (!(r instanceof RetrievalModelIndri)) {
+      QryEval.fatalError("Error: WSUM Only supports Indri.");
+    }
+
+    // skip if total weight is zero
+    logWeights = getLogWeights();
+    if (logWeights == null) {
+      return ScoreIterator.empty();
+    }
+
+    final ScoreIterator[] args = argIterators(r);
+    final RetrievalModelIndri indri = (RetrievalModelIndri) r;
+    final double[] argLogWeights = logWeights;
+    return new ScoreIterator() {
+      private final double[] logScores = new double[args.length];
+
+      @Override
+      public int advance(int target) throws IOException {
+        return docid = advanceAny(args, target);
+      }
+
+      @Override
+      public double score() throws IOException {
+        for (int i = 0; i < args.length; ++i) {
+          ScoreIterator arg = args[i];
+          logScores[i] = (arg.docid() == docid ? arg.score() : arg.defaultScore(docid)) +
+                  argLogWeights[i];
+        }
+        return logSumExp(indri, logScores);
+      }
+
+      @Override
+      public double defaultScore(int docid) throws IOException {
+        for (int i = 0; i < args.length; ++i) {
+          logScores[i] = args[i].defaultScore(docid) + argLogWeights[i];
+        }
+        return logSumExp(indri, logScores);
+      }
+    };
+  }
+
   @Override
   public String toString() {
     String result = "";
@@ -103,4 +219,68 @@ public class QryopSlWeightedSum extends QryopSlWeighted {
     }
     return ("#WSUM( " + result + ")");
   }
+
+  /**
+   * Return log(w_i / W) for every argument, W being the total weight.
+   * Weights are not negative, see {@link #add(double)}; a zero weight
+   * has the log weight -Infinity, and its term adds nothing more than a
+   * negligible one.
+   *
+   * @return The normalized log weights, or null if the total weight is zero.
+   */
+  private double[] getLogWeights() {
+    double totalWeights = 0;
+    for (double w : weights) {
+      totalWeights += w;
+    }
+    if (totalWeights == 0) {
+      return null;
+    }
+
+    double[] normalized = new double[weights.size()];
+    for (int i = 0; i < normalized.length; ++i) {
+      normalized[i] = Math.log(weights.get(i) / totalWeights);
+    }
+    return normalized;
+  }
+
+  /**
+   * The term of a sum relative to its largest term, exp of the log
+   * ratio clamped to NEGLIGIBLE_LOG_RATIO.  Every sum of #WSUM adds its
+   * terms with this, so that evaluate, the iterator and the default
+   * score agree.  The clamp has no branch, and approximate is the same
+   * for a whole loop, which the JIT can hoist.
+   *
+   * @param logRatio    log(term / largest term), at most 0.
+   * @param approximate Whether to use {@link FastMath#exp(double)}.
+   * @return The relative term.
+   */
+  private static double relativeExp(double logRatio, boolean approximate) {
+    double x = Math.max(logRatio, NEGLIGIBLE_LOG_RATIO);
+    return approximate ? FastMath.exp(x) : Math.exp(x);
+  }
+
+  /**
+   * Compute log(sum_i exp(x_i)) without overflow or underflow.
+   *
+   * @param r The model, which decides whether log and exp are approximated.
+   * @param x Values in log space.
+   * @return The logarithm of the sum of their exponents.
+   */
+  private static double logSumExp(RetrievalModelIndri r, double[] x) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (double v : x) {
+      max = Math.max(max, v);
+    }
+    if (max == Double.NEGATIVE_INFINITY) {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    boolean approximate = r.isApproximateMath();
+    double sum = 0;
+    for (double v : x) {
+      sum += relativeExp(v - max, approximate);
+    }
+    return max + r.log(sum);
+  }
 }
@@ -0,0 +1,62 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kendall's tau between two rankings of the same query, used to judge
+ * whether an approximate scoring mode ranks documents like the exact
+ * one.
+ *
+ * @author junjiah
+ */
+public class RankCorrelation {
+
+  private RankCorrelation() {
+  }
+
+  /**
+   * Compute Kendall's tau-b over the documents of the reference ranking.
+   * Documents missing from the other ranking are considered to be ranked
+   * below all of its documents.  Both lists must be sorted, e.g. by
+   * {@link ScoreList#sortAndTruncate()}.
+   *
+   * @param reference The reference ranking, e.g. from exact scoring.
+   * @param other     The ranking to compare.
+   * @return tau in [-1, 1]; 1 if there are fewer than two documents.
+   */
+  public static double kendallTau(ScoreList reference, ScoreList other) {
+    int n = reference.scores.size();
+    if (n < 2) {
+      return 1;
+    }
+
+    Map<Integer, Integer> otherRanks = new HashMap<Integer, Integer>();
+    for (int i = 0; i < other.scores.size(); ++i) {
+      otherRanks.put(other.getDocid(i), i);
+    }
+    int[] ranks = new int[n];
+    for (int i = 0; i < n; ++i) {
+      Integer rank = otherRanks.get(reference.getDocid(i));
+      ranks[i] = rank == null ? Integer.MAX_VALUE : rank;
+    }
+
+    // reference ranks are distinct, ties only happen among missing documents
+    long concordant = 0, discordant = 0, ties = 0;
+    for (int i = 0; i < n; ++i) {
+      for (int j = i + 1; j < n; ++j) {
+        if (ranks[i] < ranks[j]) {
+          concordant++;
+        } else if (ranks[i] > ranks[j]) {
+          discordant++;
+        } else {
+          ties++;
+        }
+      }
+    }
+
+    long pairs = concordant + discordant + ties;
+    if (pairs == ties) {
+      return 0;
+    }
+    return (concordant - discordant) / Math.sqrt((double) pairs * (pairs - ties));
+  }
+}
@@ -0,0 +1,206 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of final query results, shared by all threads and, in the query
+ * server, by all clients.  Results are keyed by the retrieval model with
+ * its parameters, the evaluation settings and a canonical form of the
+ * query tree, see {@link #canonicalQuery(Qryop)}, so that queries that
+ * only differ in spelling share an entry.  Only the truncated ranking is
+ * kept, and the least recently used entries are evicted once the cache
+ * holds the configured number of queries.
+ * <p/>
+ * Disabled until {@link #configure(int)} is called with a positive size.
+ *
+ * @author junjiah
+ */
+public class ResultCache {
+
+  /**
+   * The cached results, or null if caching is disabled.
+   */
+  private static Map<String, Entry> entries;
+
+  private static long lookups = 0;
+
+  private static long hits = 0;
+
+  private ResultCache() {
+  }
+
+  /**
+   * Set up the cache, dropping all cached results.
+   *
+   * @param capacity Maximum number of cached queries, 0 to disable caching.
+   */
+  public static synchronized void configure(final int capacity) {
+    entries = capacity <= 0 ? null :
+            new LinkedHashMap<String, Entry>(Math.min(capacity, 1024), 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, ResultCache.Entry> eldest) {
+                return size() > capacity;
+              }
+            };
+    lookups = 0;
+    hits = 0;
+  }
+
+  /**
+   * @return true if results are cached.
+   */
+  public static synchronized boolean isEnabled() {
+    return entries != null;
+  }
+
+  /**
+   * Look up the result of a query.
+   *
+   * @param key The key of the query, see {@link #key}.
+   * @return The cached result, or null.
+   */
+  public static synchronized Entry get(String key) {
+    if (entries == null) {
+      return null;
+    }
+    lookups++;
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      hits++;
+    }
+    return entry;
+  }
+
+  /**
+   * Cache the result of a query.
+   *
+   * @param key   The key of the query, see {@link #key}.
+   * @param entry The result.
+   */
+  public static synchronized void put(String key, Entry entry) {
+    if (entries != null) {
+      entries.put(key, entry);
+    }
+  }
+
+  /**
+   * @return The number of lookups, hits and the hit rate, for reporting.
+   */
+  public static synchronized String report() {
+    return String.format("Result cache: %d hits of %d lookups (hit rate %.4f), %d entries",
+            hits, lookups, lookups == 0 ? 0.0 : (double) hits / lookups,
+            entries == null ? 0 : entries.size());
+  }
+
+  /**
+   * Build the cache key of a query.
+   *
+   * @param model    The retrieval model, with its parameters.
+   * @param settings Other settings that change results, e.g. relevance
+   *                 feedback parameters.
+   * @param query    Canonical form of the query, see {@link #canonicalQuery}.
+   * @return The key.
+   */
+  public static String key(RetrievalModel model, String settings, String query) {
+    return model + "|" + settings + "|" + query;
+  }
+
+  /**
+   * Write a query tree in a canonical form.  Operators are written in
+   * lower case, single-argument #AND, #OR, #SUM, #WAND, #WSUM and #SYN
+   * are replaced by their argument, weights are normalized to sum to 1,
+   * terms always name their field, #SCORE wrappers are dropped, and
+   * the query term frequency of a #SUM argument is written as arg^qtf.
+   * The order of arguments is kept, since it can change the rounding
+   * of scores.
+   *
+   * @param op The query tree.
+   * @return The canonical form.
+   */
+  public static String canonicalQuery(Qryop op) {
+    if (op instanceof QryopIlTerm) {
+      QryopIlTerm term = (QryopIlTerm) op;
+      return term.getTerm() + "." + term.getField();
+    } else if (op instanceof QryopSlScore) {
+      return canonicalQuery(op.args.get(0));
+    }
+
+    // single-argument operators that score exactly like their argument
+    boolean transparent = op instanceof QryopIlSyn || op instanceof QryopSlOr ||
+            op instanceof QryopSlAnd;
+    if (op instanceof QryopSlSum && op.args.size() == 1) {
+      // a repeated argument gets a larger user weight
+      transparent = ((QryopSlSum) op).getQtf(0) == 1;
+    }
+    if (op instanceof QryopSlWeighted && op.args.size() == 1) {
+      // a zero total weight matches nothing
+      transparent = ((QryopSlWeighted) op).getWeights().get(0) != 0;
+    }
+    if (transparent && op.args.size() == 1) {
+      return canonicalQuery(op.args.get(0));
+    }
+
+    StringBuilder result = new StringBuilder();
+    if (op instanceof QryopSlWeighted) {
+      List<Double> weights = ((QryopSlWeighted) op).getWeights();
+      double total = 0;
+      for (double weight : weights) {
+        total += weight;
+      }
+      if (total == 0) {
+        total = 1;
+      }
+      result.append(op instanceof QryopSlWeightedSum ? "#wsum(" : "#wand(");
+      for (int i = 0; i < op.args.size(); i++) {
+        result.append(i == 0 ? "" : " ").append(weights.get(i) / total)
+                .append(" ").append(canonicalQuery(op.args.get(i)));
+      }
+      return result.append(")").toString();
+    }
+
+    if (op instanceof QryopIlNear) {
+      result.append("#near/").append(((QryopIlNear) op).getDistance()).append("(");
+    } else if (op instanceof QryopIlWindow) {
+      result.append("#window/").append(((QryopIlWindow) op).getDistance()).append("(");
+    } else if (op instanceof QryopIlSyn) {
+      result.append("#syn(");
+    } else if (op instanceof QryopSlOr) {
+      result.append("#or(");
+    } else if (op instanceof QryopSlSum) {
+      result.append("#sum(");
+    } else if (op instanceof QryopSlAnd) {
+      result.append("#and(");
+    } else {
+      return op.toString();
+    }
+    for (int i = 0; i < op.args.size(); i++) {
+      result.append(i == 0 ? "" : " ").append(canonicalQuery(op.args.get(i)));
+      if (op instanceof QryopSlSum && ((QryopSlSum) op).getQtf(i) > 1) {
+        result.append("^").append(((QryopSlSum) op).getQtf(i));
+      }
+    }
+    return result.append(")").toString();
+  }
+
+  /**
+   * A cached result: the truncated ranking and, with relevance feedback,
+   * the expansion query.
+   */
+  public static class Entry {
+
+    final int[] docids;
+
+    final double[] scores;
+
+    final String[] externalIds;
+
+    final String expandedQuery;
+
+    Entry(int[] docids, double[] scores, String[] externalIds, String expandedQuery) {
+      this.docids = docids;
+      this.scores = scores;
+      this.externalIds = externalIds;
+      this.expandedQuery = expandedQuery;
+    }
+  }
+}
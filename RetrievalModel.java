@@ -27,4 +27,15 @@ public abstract class RetrievalModel {
    * @return true if the parameter is set successfully, false otherwise.
    */
   public abstract boolean setParameter(String parameterName, String value);
+
+  /**
+   * Describe the model together with every parameter that affects
+   * scores, so that results of equal models can be shared.
+   *
+   * @return The description; models without parameters are described
+   * by their name.
+   */
+  public String toString() {
+    return getClass().getSimpleName();
+  }
 }
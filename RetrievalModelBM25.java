@@ -1,6 +1,8 @@
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -25,6 +27,19 @@ public class RetrievalModelBM25 extends RetrievalModel {
    */
   private double b;
 
+  /**
+   * Per-field tables of the length normalization k_1 * (1 - b + b * dl / avgdl),
+   * indexed by internal docid. Built on first use and dropped whenever a
+   * parameter changes.
+   */
+  private Map<String, double[]> lengthNorms = new HashMap<String, double[]>();
+
+  /**
+   * Whether #SCORE uses the block scoring kernels of {@link ScoringKernels}
+   * instead of scoring one posting at a time.
+   */
+  private boolean blockScoring = false;
+
   /**
    * Set a retrieval model parameter.
    *
@@ -33,13 +48,16 @@ public class RetrievalModelBM25 extends RetrievalModel {
    * @return true if the parameter is set successfully, false otherwise.
    */
   @Override
-  public boolean setParameter(String parameterName, double value) {
+  public synchronized boolean setParameter(String parameterName, double value) {
     if (parameterName.equals("k_1")) {
       k_1 = value;
+      // tables depend on k_1 and b, rebuild them on next use
+      lengthNorms.clear();
     } else if (parameterName.equals("k_3")) {
       k_3 = value;
     } else if (parameterName.equals(("b"))) {
       b = value;
+      lengthNorms.clear();
     } else {
       QryEval.fatalError("Error: Unknown parameter name for retrieval model " +
               "BM25: " +
@@ -57,13 +75,26 @@ public class RetrievalModelBM25 extends RetrievalModel {
    * @return true if the parameter is set successfully, false otherwise.
    */
   @Override
-  public boolean setParameter(String parameterName, String value) {
+  public synchronized boolean setParameter(String parameterName, String value) {
     if (parameterName.equals("k_1")) {
       k_1 = Double.parseDouble(value);
+      // tables depend on k_1 and b, rebuild them on next use
+      lengthNorms.clear();
     } else if (parameterName.equals("k_3")) {
       k_3 = Double.parseDouble(value);
     } else if (parameterName.equals(("b"))) {
       b = Double.parseDouble(value);
+      lengthNorms.clear();
+    } else if (parameterName.equals("kernel")) {
+      if (value.equalsIgnoreCase("block")) {
+        blockScoring = true;
+      } else if (value.equalsIgnoreCase("scalar")) {
+        blockScoring = false;
+      } else {
+        QryEval.fatalError("Error: Unknown scoring kernel for retrieval model " +
+                "BM25: " +
+                value);
+      }
     } else {
       QryEval.fatalError("Error: Unknown parameter name for retrieval model " +
               "BM25: " +
@@ -94,6 +125,69 @@ public class RetrievalModelBM25 extends RetrievalModel {
     return b;
   }
 
+  /**
+   * @return true if postings are scored with the block kernels
+   */
+  public boolean isBlockScoring() {
+    return blockScoring;
+  }
+
+  /**
+   * Returns the average document length of a field.
+   *
+   * @param field The field name.
+   * @return The average length.
+   * @throws IOException
+   */
+  static double getAverageLength(String field) throws IOException {
+    return QryEval.READER.getSumTotalTermFreq(field) / (float) QryEval.READER.getDocCount(field);
+  }
+
+  /**
+   * Returns the length normalization k_1 * (1 - b + b * dl / avgdl) of
+   * one document.
+   *
+   * @param docLength The length of the document.
+   * @param avgDocLen The average length, see {@link #getAverageLength(String)}.
+   * @return The length normalization.
+   */
+  public double getLengthNorm(int docLength, double avgDocLen) {
+    return k_1 * (1 - b + b * docLength / avgDocLen);
+  }
+
+  /**
+   * Returns the length normalization k_1 * (1 - b + b * dl / avgdl) of
+   * every document in the specified field, indexed by internal docid.
+   * The normalized tf of a posting is then tf / (tf + norms[docid]).
+   *
+   * @param field The field whose document lengths are normalized.
+   * @return The normalization table of the field.
+   * @throws IOException
+   */
+  public synchronized double[] getLengthNorms(String field) throws IOException {
+    double[] norms = lengthNorms.get(field);
+    if (norms == null) {
+      DocLengthStore.FieldLengths docLengths = QryEval.LENGTH_STORE.getFieldLengths(field);
+      double avgDocLen = getAverageLength(field);
+
+      norms = new double[QryEval.READER.maxDoc()];
+      for (int docid = 0; docid < norms.length; ++docid) {
+        norms[docid] = getLengthNorm(docLengths.get(docid), avgDocLen);
+      }
+      lengthNorms.put(field, norms);
+    }
+    return norms;
+  }
+
+  /**
+   * @return The model name and its parameters.
+   */
+  @Override
+  public synchronized String toString() {
+    return "BM25(k_1=" + k_1 + ",k_3=" + k_3 + ",b=" + b +
+            ",kernel=" + (blockScoring ? "block" : "scalar") + ")";
+  }
+
   public double getScore(String[] queryStems, int internalDocId, String field) throws IOException {
     TermVector doc = new TermVector(internalDocId, field);
     double totalScore = 0;
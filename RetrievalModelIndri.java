@@ -22,6 +22,31 @@ public class RetrievalModelIndri extends RetrievalModel {
    */
   private double lambda;
 
+  /**
+   * Whether #AND and #WAND are evaluated term-at-a-time, i.e. one
+   * argument at a time over all candidate documents.
+   */
+  private boolean termAtATime = false;
+
+  /**
+   * Whether the plan of a query chooses the evaluation strategy, see
+   * {@link QryPlanner}.  Only if evaluation is set to auto; the default
+   * is document-at-a-time.
+   */
+  private boolean autoEvaluation = false;
+
+  /**
+   * Whether #SCORE uses the block scoring kernels of {@link ScoringKernels}
+   * instead of scoring one posting at a time.
+   */
+  private boolean blockScoring = false;
+
+  /**
+   * Whether logarithms and exponents in scoring use the table-driven
+   * approximations of {@link FastMath}.
+   */
+  private boolean approximateMath = false;
+
   /**
    * Set a retrieval model parameter.
    *
@@ -30,7 +55,7 @@ public class RetrievalModelIndri extends RetrievalModel {
    * @return true if the parameter is set successfully, false otherwise.
    */
   @Override
-  public boolean setParameter(String parameterName, double value) {
+  public synchronized boolean setParameter(String parameterName, double value) {
     if (parameterName.equals("mu")) {
       mu = (int) value;
     } else if (parameterName.equals("lambda")) {
@@ -52,11 +77,38 @@ public class RetrievalModelIndri extends RetrievalModel {
    * @return true if the parameter is set successfully, false otherwise.
    */
   @Override
-  public boolean setParameter(String parameterName, String value) {
+  public synchronized boolean setParameter(String parameterName, String value) {
     if (parameterName.equals("mu")) {
       mu = Integer.parseInt(value);
     } else if (parameterName.equals("lambda")) {
       lambda = Double.parseDouble(value);
+    } else if (parameterName.equals("evaluation")) {
+      if (value.equalsIgnoreCase("taat")) {
+        termAtATime = true;
+        autoEvaluation = false;
+      } else if (value.equalsIgnoreCase("daat")) {
+        termAtATime = false;
+        autoEvaluation = false;
+      } else if (value.equalsIgnoreCase("auto")) {
+        termAtATime = false;
+        autoEvaluation = true;
+      } else {
+        QryEval.fatalError("Error: Unknown evaluation strategy for retrieval model " +
+                "Indri: " +
+                value);
+      }
+    } else if (parameterName.equals("approximateMath")) {
+      approximateMath = Boolean.parseBoolean(value);
+    } else if (parameterName.equals("kernel")) {
+      if (value.equalsIgnoreCase("block")) {
+        blockScoring = true;
+      } else if (value.equalsIgnoreCase("scalar")) {
+        blockScoring = false;
+      } else {
+        QryEval.fatalError("Error: Unknown scoring kernel for retrieval model " +
+                "Indri: " +
+                value);
+      }
     } else {
       QryEval.fatalError("Error: Unknown parameter name for retrieval model " +
               "RankedBoolean: " +
@@ -80,6 +132,66 @@ public class RetrievalModelIndri extends RetrievalModel {
     return mu;
   }
 
+  /**
+   * @return true if #AND and #WAND are evaluated term-at-a-time
+   */
+  public boolean isTermAtATime() {
+    return termAtATime;
+  }
+
+  /**
+   * @return true if the evaluation strategy was set to auto, and query
+   * plans choose it
+   */
+  public boolean isAutoEvaluation() {
+    return autoEvaluation;
+  }
+
+  /**
+   * @return true if postings are scored with the block kernels
+   */
+  public boolean isBlockScoring() {
+    return blockScoring;
+  }
+
+  /**
+   * @return true if scoring uses approximate log and exp
+   */
+  public boolean isApproximateMath() {
+    return approximateMath;
+  }
+
+  /**
+   * Natural logarithm, approximated if the model is configured so.
+   *
+   * @param x The argument.
+   * @return log(x)
+   */
+  public double log(double x) {
+    return approximateMath ? FastMath.log(x) : Math.log(x);
+  }
+
+  /**
+   * Exponential function, approximated if the model is configured so.
+   *
+   * @param x The argument.
+   * @return exp(x)
+   */
+  public double exp(double x) {
+    return approximateMath ? FastMath.exp(x) : Math.exp(x);
+  }
+
+  /**
+   * @return The model name and its parameters.
+   */
+  @Override
+  public synchronized String toString() {
+    return "Indri(mu=" + mu + ",lambda=" + lambda +
+            ",evaluation=" + (autoEvaluation ? "auto" : termAtATime ? "taat" : "daat") +
+            ",kernel=" + (blockScoring ? "block" : "scalar") +
+            ",approximateMath=" + approximateMath + ")";
+  }
+
   public double getScore(String[] queryStems, int internalDocId, String field) throws IOException {
     TermVector doc = new TermVector(internalDocId, field);
     double totalScore = 0;
@@ -0,0 +1,49 @@
+import java.io.IOException;
+
+/**
+ * Iterator over the scores of a score list operator.  A document the
+ * operator does not match gets its default score, which arguments ask
+ * for with {@link #defaultScore(int)} whatever their current document
+ * is.  See {@link DocIterator}.
+ *
+ * @author junjiah
+ */
+public abstract class ScoreIterator extends DocIterator {
+
+  /**
+   * @return The score of the current document.
+   * @throws IOException
+   */
+  public abstract double score() throws IOException;
+
+  /**
+   * Calculate the score of a document the operator does not match.
+   *
+   * @param docid The internal id of the document.
+   * @return The default score.
+   * @throws IOException
+   */
+  public abstract double defaultScore(int docid) throws IOException;
+
+  /**
+   * @return An iterator that matches no document.
+   */
+  public static ScoreIterator empty() {
+    return new ScoreIterator() {
+      @Override
+      public int advance(int target) {
+        return docid = NO_MORE_DOCS;
+      }
+
+      @Override
+      public double score() {
+        return 0;
+      }
+
+      @Override
+      public double defaultScore(int docid) {
+        return 0;
+      }
+    };
+  }
+}
@@ -14,6 +14,11 @@ public class ScoreList {
 
   List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  //  The document ids in primitive form, built on first use and
+  //  dropped when the list changes.
+
+  private volatile int[] docidArray;
+
   /**
    * Sift-down operation for heap structure.
    *
@@ -63,6 +68,7 @@ public class ScoreList {
    */
   public void add(int docid, double score) {
     scores.add(new ScoreListEntry(docid, score));
+    docidArray = null;
   }
 
   /**
@@ -75,6 +81,25 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   * Get the document ids of the score list as a primitive array, in
+   * list order.  The array is built on the first call and returned by
+   * later calls until the list changes, so it must not be modified.
+   *
+   * @return The internal document ids.
+   */
+  public int[] getDocidArray() {
+    int[] docids = this.docidArray;
+    if (docids == null || docids.length != this.scores.size()) {
+      docids = new int[this.scores.size()];
+      for (int i = 0; i < docids.length; i++) {
+        docids[i] = this.scores.get(i).docid;
+      }
+      this.docidArray = docids;
+    }
+    return docids;
+  }
+
   /**
    * Get the score of the n'th document.
    *
@@ -98,6 +123,7 @@ public class ScoreList {
      * getExternalDocid only gets called once for every docs
      */
     int scoreListSize = scores.size();
+    docidArray = null;
     final Map<ScoreListEntry, String> externalIds = new HashMap<ScoreListEntry, String>();
 
     if (scoreListSize > 100) {
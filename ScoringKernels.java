@@ -0,0 +1,100 @@
+/**
+ * Block-oriented scoring kernels for the #SCORE operator.  Postings are
+ * scored from primitive tf[] and docid[] arrays, BLOCK_SIZE at a time:
+ * the per-document normalizers are first gathered into a small dense
+ * buffer, and the arithmetic is then done by straight counted loops
+ * without branches or calls, which HotSpot can compile to SIMD
+ * instructions.  Postings that do not fill a whole block are scored
+ * one at a time.
+ *
+ * @author junjiah
+ */
+public class ScoringKernels {
+
+  /**
+   * Number of postings scored together.
+   */
+  static final int BLOCK_SIZE = 16;
+
+  private ScoringKernels() {
+  }
+
+  /**
+   * Compute idf * tf / (tf + norm[docid]) for every posting.
+   *
+   * @param docids      Internal docids of the postings.
+   * @param tfs         Term frequencies of the postings.
+   * @param n           Number of postings.
+   * @param lengthNorms BM25 length normalization indexed by docid, see
+   *                    {@link RetrievalModelBM25#getLengthNorms(String)}.
+   * @param idf         The idf of the inverted list.
+   * @param scores      Output, the score of every posting.
+   */
+  public static void bm25(int[] docids, int[] tfs, int n, double[] lengthNorms, double idf,
+          double[] scores) {
+    double[] norms = new double[BLOCK_SIZE];
+
+    int i = 0;
+    for (; i + BLOCK_SIZE <= n; i += BLOCK_SIZE) {
+      for (int j = 0; j < BLOCK_SIZE; ++j) {
+        norms[j] = lengthNorms[docids[i + j]];
+      }
+      for (int j = 0; j < BLOCK_SIZE; ++j) {
+        double tf = tfs[i + j];
+        scores[i + j] = idf * (tf / (tf + norms[j]));
+      }
+    }
+
+    // remaining postings
+    for (; i < n; ++i) {
+      double tf = tfs[i];
+      scores[i] = idf * (tf / (tf + lengthNorms[docids[i]]));
+    }
+  }
+
+  /**
+   * Compute log(lambda * (tf + mu * p) / (doclen + mu) + (1 - lambda) * p)
+   * for every posting, p being the collection probability of the term.
+   *
+   * @param docids          Internal docids of the postings.
+   * @param tfs             Term frequencies of the postings.
+   * @param n               Number of postings.
+   * @param docLengths      Lengths of the documents in the field of the list.
+   * @param mu              Parameter mu of the model.
+   * @param lambda          Parameter lambda of the model.
+   * @param ctfParam1       mu * p
+   * @param ctfParam2       (1 - lambda) * p
+   * @param approximate     Whether to use {@link FastMath#log(double)}.
+   * @param scores          Output, the score of every posting.
+   */
+  public static void indri(int[] docids, int[] tfs, int n,
+          DocLengthStore.FieldLengths docLengths, int mu, double lambda, double ctfParam1,
+          double ctfParam2, boolean approximate, double[] scores) {
+    double[] smoothed = new double[BLOCK_SIZE];
+
+    int i = 0;
+    for (; i + BLOCK_SIZE <= n; i += BLOCK_SIZE) {
+      for (int j = 0; j < BLOCK_SIZE; ++j) {
+        smoothed[j] = docLengths.get(docids[i + j]) + mu;
+      }
+      for (int j = 0; j < BLOCK_SIZE; ++j) {
+        scores[i + j] = lambda * (tfs[i + j] + ctfParam1) / smoothed[j] + ctfParam2;
+      }
+      if (approximate) {
+        for (int j = 0; j < BLOCK_SIZE; ++j) {
+          scores[i + j] = FastMath.log(scores[i + j]);
+        }
+      } else {
+        for (int j = 0; j < BLOCK_SIZE; ++j) {
+          scores[i + j] = Math.log(scores[i + j]);
+        }
+      }
+    }
+
+    // remaining postings
+    for (; i < n; ++i) {
+      double p = lambda * (tfs[i] + ctfParam1) / (docLengths.get(docids[i]) + mu) + ctfParam2;
+      scores[i] = approximate ? FastMath.log(p) : Math.log(p);
+    }
+  }
+}
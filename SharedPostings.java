@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inverted lists shared by a batch of queries.  The terms of all queries
+ * in the batch are collected first, and the inverted list of every
+ * distinct term is read from the index once; the term operators of each
+ * query are then bound to the shared lists, see {@link #bind(Qryop)},
+ * instead of reading the index again.  The lists are never modified
+ * after they are fetched, so the queries of a batch can be evaluated
+ * on different threads.
+ *
+ * @author junjiah
+ */
+public class SharedPostings {
+
+  private final Map<String, InvList> lists = new HashMap<String, InvList>();
+
+  /**
+   * Fetch the inverted lists of all terms in the queries.
+   *
+   * @param queries Query trees of the batch.
+   * @throws IOException
+   */
+  public SharedPostings(Collection<Qryop> queries) throws IOException {
+    Map<String, QryopIlTerm> terms = new HashMap<String, QryopIlTerm>();
+    Map<String, Boolean> positions = new HashMap<String, Boolean>();
+    for (Qryop query : queries) {
+      collect(query, false, terms, positions);
+    }
+    for (Map.Entry<String, QryopIlTerm> entry : terms.entrySet()) {
+      QryopIlTerm term = entry.getValue();
+      lists.put(entry.getKey(), new InvList(term.getTerm(), term.getField(),
+              positions.get(entry.getKey())));
+    }
+  }
+
+  /**
+   * Collect the distinct terms of a query tree.  As in {@link QryPlanner},
+   * positions are only read for terms under #NEAR and #WINDOW, directly
+   * or through #SYN; a term is fetched with positions if any of its
+   * occurrences in the batch needs them.
+   */
+  private static void collect(Qryop op, boolean needPositions, Map<String, QryopIlTerm> terms,
+          Map<String, Boolean> positions) {
+    if (op instanceof QryopIlTerm) {
+      QryopIlTerm term = (QryopIlTerm) op;
+      String key = key(term);
+      Boolean seen = positions.get(key);
+      if (seen == null) {
+        terms.put(key, term);
+      }
+      positions.put(key, needPositions || (seen != null && seen));
+    }
+    boolean argPositions = op instanceof QryopIlNear || op instanceof QryopIlWindow ||
+            (op instanceof QryopIlSyn && needPositions);
+    for (Qryop arg : op.args) {
+      collect(arg, argPositions, terms, positions);
+    }
+  }
+
+  /**
+   * Make the terms of a query tree use the shared inverted lists.  Terms
+   * that were not in the batch keep reading the index.
+   *
+   * @param query A query tree.
+   */
+  public void bind(Qryop query) {
+    if (query instanceof QryopIlTerm) {
+      QryopIlTerm term = (QryopIlTerm) query;
+      InvList list = lists.get(key(term));
+      if (list != null) {
+        term.setSharedList(list);
+      }
+    }
+    for (Qryop arg : query.args) {
+      bind(arg);
+    }
+  }
+
+  /**
+   * @return Number of distinct terms in the batch.
+   */
+  public int size() {
+    return lists.size();
+  }
+
+  private static String key(QryopIlTerm term) {
+    return term.getField() + ":" + term.getTerm();
+  }
+}
@@ -0,0 +1,138 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the inverted lists computed by #NEAR, #WINDOW and #SYN, so
+ * that a subtree that appears several times, in one query, in several
+ * queries, or again in the expanded query of relevance feedback, is
+ * evaluated once.  Lists are keyed by the canonical form of the subtree,
+ * see {@link ResultCache#canonicalQuery(Qryop)}, whether the list has
+ * positions, and, inside a partition, by its docid range.  Inverted
+ * lists do not depend on the retrieval model, so the model is not part
+ * of the key.
+ * <p/>
+ * The cache is bounded by the total number of postings it holds, and
+ * evicts the least recently used lists first.  Cached lists are shared
+ * and must not be modified.  Disabled until {@link #configure(long)} is
+ * called with a positive size.
+ *
+ * @author junjiah
+ */
+public class SubtreeCache {
+
+  /**
+   * The cached lists, or null if caching is disabled.
+   */
+  private static LinkedHashMap<String, InvList> lists;
+
+  private static long capacity;
+
+  /**
+   * Number of postings in the cached lists.
+   */
+  private static long size = 0;
+
+  private static long lookups = 0;
+
+  private static long hits = 0;
+
+  private SubtreeCache() {
+  }
+
+  /**
+   * Set up the cache, dropping all cached lists.
+   *
+   * @param capacity Maximum number of postings in the cached lists, 0 to
+   *                 disable caching.
+   */
+  public static synchronized void configure(long capacity) {
+    lists = capacity <= 0 ? null : new LinkedHashMap<String, InvList>(64, 0.75f, true);
+    SubtreeCache.capacity = capacity;
+    size = 0;
+    lookups = 0;
+    hits = 0;
+  }
+
+  /**
+   * @return true if lists are cached.
+   */
+  public static synchronized boolean isEnabled() {
+    return lists != null;
+  }
+
+  /**
+   * Build the cache key of an operator, for the current partition.
+   *
+   * @param op The operator.
+   * @return The key, or null if caching is disabled.
+   */
+  public static String key(QryopIl op) {
+    if (!isEnabled()) {
+      return null;
+    }
+    String key = ResultCache.canonicalQuery(op);
+    if (op.plan != null && !op.plan.positions) {
+      // a list without positions cannot stand in for one with them
+      key += "[nopos]";
+    }
+    PartitionedEvaluator.Partition partition = PartitionedEvaluator.current();
+    if (partition != null) {
+      key += "[" + partition.lo + "," + partition.hi + ")";
+    }
+    return key;
+  }
+
+  /**
+   * Look up the inverted list of an operator.
+   *
+   * @param key The key of the operator, see {@link #key}, or null.
+   * @return A new result holding the cached list, or null.
+   */
+  public static synchronized QryResult get(String key) {
+    if (key == null || lists == null) {
+      return null;
+    }
+    lookups++;
+    InvList list = lists.get(key);
+    if (list == null) {
+      return null;
+    }
+    hits++;
+    // callers replace the list of their result, never the list itself
+    QryResult result = new QryResult();
+    result.invertedList = list;
+    return result;
+  }
+
+  /**
+   * Cache the inverted list of an operator.
+   *
+   * @param key  The key of the operator, see {@link #key}, or null.
+   * @param list The inverted list.
+   */
+  public static synchronized void put(String key, InvList list) {
+    if (key == null || lists == null || list.df > capacity) {
+      return;
+    }
+    InvList old = lists.put(key, list);
+    if (old != null) {
+      size -= old.df;
+    }
+    size += list.df;
+
+    Iterator<Map.Entry<String, InvList>> eldest = lists.entrySet().iterator();
+    while (size > capacity && eldest.hasNext()) {
+      size -= eldest.next().getValue().df;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @return The number of lookups, hits and the hit rate, for reporting.
+   */
+  public static synchronized String report() {
+    return String.format("Subtree cache: %d hits of %d lookups (hit rate %.4f), %d postings",
+            hits, lookups, lookups == 0 ? 0.0 : (double) hits / lookups, size);
+  }
+}